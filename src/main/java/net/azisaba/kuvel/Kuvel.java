@@ -7,23 +7,50 @@ import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
 import com.velocitypowered.api.proxy.ProxyServer;
+import io.fabric8.kubernetes.api.model.NamedContext;
+import io.fabric8.kubernetes.client.Config;
 import io.fabric8.kubernetes.client.KubernetesClient;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import io.fabric8.kubernetes.client.KubernetesClientBuilder;
 import lombok.Getter;
+import net.azisaba.kuvel.config.DiscoveryMode;
 import net.azisaba.kuvel.config.KuvelConfig;
+import net.azisaba.kuvel.config.LeaderElectionBackend;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
+import net.azisaba.kuvel.discovery.DiscoverySource;
+import net.azisaba.kuvel.discovery.impl.peer.PeerLoadBalancerDiscovery;
+import net.azisaba.kuvel.discovery.impl.peer.PeerServerDiscovery;
 import net.azisaba.kuvel.discovery.impl.redis.RedisLoadBalancerDiscovery;
 import net.azisaba.kuvel.discovery.impl.redis.RedisServerDiscovery;
+import net.azisaba.kuvel.kubernetes.KubernetesAccess;
 import net.azisaba.kuvel.listener.ChooseInitialServerListener;
 import net.azisaba.kuvel.listener.LoadBalancerListener;
+import net.azisaba.kuvel.metrics.KuvelMetrics;
+import net.azisaba.kuvel.metrics.MetricsHttpServer;
 import net.azisaba.kuvel.redis.ProxyIdProvider;
+import net.azisaba.kuvel.redis.RedisChangeFeedReader;
 import net.azisaba.kuvel.redis.RedisConnectionLeader;
+import net.azisaba.kuvel.redis.RedisPoolManager;
+import net.azisaba.kuvel.redis.RedisRegistrySynchronizer;
 import net.azisaba.kuvel.redis.RedisSubscriberExecutor;
+import net.azisaba.kuvel.redis.ShardCoordinator;
+import net.azisaba.kuvel.snapshot.RegistrySnapshot;
+import net.azisaba.kuvel.snapshot.RegistrySnapshotStore;
+import net.azisaba.kuvel.util.KeyedWorkerPool;
+import net.azisaba.kuvel.util.KuvelExecutor;
+import net.azisaba.kuvel.util.StartupTracker;
 import org.slf4j.Logger;
 
 @Plugin(
@@ -37,17 +64,34 @@ import org.slf4j.Logger;
 @Getter
 public class Kuvel {
 
+
   private final ProxyServer proxy;
   private final Logger logger;
   private final File dataDirectory;
 
+  private KuvelExecutor kuvelExecutor;
   private KubernetesClient client;
+  private KubernetesAccess kubernetesAccess;
+  // clients of the other clusters of the discovery sources, by context
+  private final Map<String, KubernetesClient> sourceClients = new HashMap<>();
   private KuvelServiceHandler kuvelServiceHandler;
   private RedisConnectionLeader redisConnectionLeader;
   private ProxyIdProvider proxyIdProvider;
   private RedisSubscriberExecutor redisSubscriberExecutor;
+  private RedisChangeFeedReader redisChangeFeedReader;
+  private RedisRegistrySynchronizer redisRegistrySynchronizer;
+  private RedisPoolManager redisPoolManager;
+  private KeyedWorkerPool registryWorkerPool;
+  private DiscoveryCache discoveryCache;
+  private ShardCoordinator shardCoordinator;
 
   private KuvelConfig kuvelConfig;
+  private StartupTracker startupTracker;
+  private RegistrySnapshotStore registrySnapshotStore;
+  private KuvelMetrics metrics;
+  private MetricsHttpServer metricsHttpServer;
+  // completes when the peer discoveries processed the initial objects, null unless in peer mode
+  private CompletableFuture<Void> peerDiscoveryReplay;
 
   @Inject
   public Kuvel(ProxyServer server, Logger logger, @DataDirectory Path dataDirectory) {
@@ -68,84 +112,377 @@ public class Kuvel {
       return;
     }
 
+    metrics = new KuvelMetrics(this);
+    metrics.runTask();
+
+    kuvelExecutor =
+        new KuvelExecutor(
+            "kuvel",
+            kuvelConfig.isVirtualThreadsEnabled(),
+            kuvelConfig.getMaxPlatformThreads(),
+            logger);
+    if (kuvelExecutor.isVirtualThreads()) {
+      logger.info("Running the discovery on virtual threads.");
+    }
+
+    if (kuvelConfig.isMetricsEnabled()) {
+      startMetricsHttpServer();
+    }
+
+    kubernetesAccess = new KubernetesAccess(this);
+    kubernetesAccess.runTask();
+
     kuvelServiceHandler = new KuvelServiceHandler(this, client, kuvelConfig.getNamespace());
+    startupTracker = new StartupTracker(logger);
+
+    if (kuvelConfig.isRegistrySnapshotEnabled()) {
+      registrySnapshotStore = new RegistrySnapshotStore(this, getRegistrySnapshotScope());
+      RegistrySnapshot snapshot = registrySnapshotStore.load();
+      if (snapshot != null && !snapshot.isEmpty()) {
+        kuvelServiceHandler.restoreSnapshot(snapshot);
+        startupTracker.markServing();
+      }
+    }
+
+    proxy.getEventManager().register(this, new LoadBalancerListener(kuvelServiceHandler));
+    proxy
+        .getEventManager()
+        .register(
+            this,
+            new ChooseInitialServerListener(
+                kuvelServiceHandler, startupTracker, kuvelConfig.getStartupLoginWaitMillis()));
 
+    // the discovery waits for Redis and the API server, so the proxy starts without waiting for it
+    kuvelExecutor.getRootScope().submit(this::runDiscovery);
+  }
+
+  private void startMetricsHttpServer() {
+    metricsHttpServer = new MetricsHttpServer(metrics, kuvelExecutor.newScope("metrics"));
+    try {
+      metricsHttpServer.start(kuvelConfig.getMetricsHost(), kuvelConfig.getMetricsPort());
+      logger.info(
+          "Serving metrics on "
+              + kuvelConfig.getMetricsHost()
+              + ":"
+              + kuvelConfig.getMetricsPort()
+              + "/metrics");
+    } catch (IOException e) {
+      logger.error("Failed to start the metrics endpoint. Metrics will not be served.", e);
+      metricsHttpServer = null;
+    }
+  }
+
+  private void runDiscovery() {
+    try {
+      if (kuvelConfig.getDiscoveryMode() == DiscoveryMode.PEER) {
+        runPeerDiscovery();
+      } else {
+        runRedisDiscovery();
+      }
+      startupTracker.markReady(true);
+    } catch (Exception e) {
+      logger.error("Failed to start the discovery. Plugin feature will be disabled.", e);
+      startupTracker.markReady(false);
+      return;
+    }
+
+    if (registrySnapshotStore != null) {
+      try {
+        awaitPeerDiscoveryReplay();
+        kuvelServiceHandler.dropUnconfirmedRestoredEntries();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        logger.error(
+            "Failed to sync the discovery cache. The restored registry is kept.", e.getCause());
+        return;
+      }
+      // only written once the registry was reconciled, so unconfirmed entries are never saved again
+      registrySnapshotStore.runTask();
+    }
+  }
+
+  /**
+   * Waits until the peer discoveries processed the objects which were in the discovery cache when
+   * it synced. They are notified asynchronously, so the registry is only complete afterwards.
+   */
+  private void awaitPeerDiscoveryReplay() throws InterruptedException, ExecutionException {
+    if (peerDiscoveryReplay != null) {
+      peerDiscoveryReplay.get();
+    }
+  }
+
+  private String getRegistrySnapshotScope() {
+    return kuvelConfig.getDiscoveryMode().getKey()
+        + "/"
+        + kuvelConfig.getProxyGroupName()
+        + "/"
+        + kuvelConfig.getNamespace()
+        + "/"
+        + String.join(",", kuvelConfig.getAdditionalDiscoverySources())
+        + "/"
+        + kuvelConfig.getLabelKeyPrefix();
+  }
+
+  /**
+   * Runs the tasks in parallel on the executor and waits for all of them.
+   *
+   * @param tasks The tasks to run.
+   */
+  private void runInParallel(Runnable... tasks) {
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[tasks.length];
+    for (int i = 0; i < tasks.length; i++) {
+      futures[i] = CompletableFuture.runAsync(tasks[i], kuvelExecutor.getRootScope());
+    }
+    CompletableFuture.allOf(futures).join();
+  }
+
+  private void runPeerDiscovery() {
+    logger.info("Running in peer mode. Redis is not used.");
+
+    startupTracker.phase(
+        "discovery cache",
+        () -> {
+          discoveryCache = new DiscoveryCache(this, createDiscoverySources());
+          discoveryCache.start();
+        });
+
+    PeerLoadBalancerDiscovery loadBalancerDiscovery =
+        new PeerLoadBalancerDiscovery(this, kuvelServiceHandler, discoveryCache);
+    PeerServerDiscovery serverDiscovery =
+        new PeerServerDiscovery(this, kuvelServiceHandler, discoveryCache);
+    startupTracker.phase(
+        "reconciliation",
+        () ->
+            runInParallel(
+                () -> kuvelServiceHandler.setAndRunLoadBalancerDiscovery(loadBalancerDiscovery),
+                () -> kuvelServiceHandler.setAndRunServerDiscovery(serverDiscovery)));
+    peerDiscoveryReplay =
+        CompletableFuture.allOf(
+            loadBalancerDiscovery.whenReplayed(), serverDiscovery.whenReplayed());
+  }
+
+  private void runRedisDiscovery() {
     Objects.requireNonNull(kuvelConfig.getRedisConnectionData());
     Objects.requireNonNull(kuvelConfig.getProxyGroupName());
 
-    proxyIdProvider =
-        new ProxyIdProvider(
-            kuvelConfig.getRedisConnectionData().createJedisPool(),
-            kuvelConfig.getProxyGroupName());
-    proxyIdProvider.runTask(proxy, this);
+    startupTracker.phase(
+        "redis",
+        () -> {
+          redisPoolManager = new RedisPoolManager(this, kuvelConfig.getRedisConnectionData());
+          redisPoolManager.runTask();
+
+          proxyIdProvider =
+              new ProxyIdProvider(redisPoolManager.getPool(), kuvelConfig.getProxyGroupName());
+          proxyIdProvider.runTask(kuvelExecutor.getRootScope());
+        });
 
     logger.info("This proxy's id is: " + proxyIdProvider.getId());
 
     redisConnectionLeader =
         new RedisConnectionLeader(
             this,
-            kuvelConfig.getRedisConnectionData().createJedisPool(),
+            redisPoolManager.getPool(),
             kuvelConfig.getProxyGroupName(),
             proxyIdProvider.getId());
 
-    redisConnectionLeader.trySwitch();
+    if (kuvelConfig.isWarmStandby()
+        || !kuvelConfig.getAdditionalDiscoverySources().isEmpty()) {
+      startupTracker.phase(
+          "discovery cache",
+          () -> {
+            discoveryCache = new DiscoveryCache(this, createDiscoverySources());
+            discoveryCache.start();
+          });
+    }
 
-    kuvelServiceHandler.setAndRunLoadBalancerDiscovery(
-        new RedisLoadBalancerDiscovery(
-            client,
-            this,
-            kuvelConfig.getNamespace(),
-            kuvelConfig.getRedisConnectionData().createJedisPool(),
-            kuvelConfig.getProxyGroupName(),
-            redisConnectionLeader,
-            kuvelServiceHandler));
+    startupTracker.phase(
+        "leader election",
+        () -> {
+          if (kuvelConfig.getDiscoveryMode() == DiscoveryMode.SHARDED) {
+            shardCoordinator =
+                new ShardCoordinator(
+                    this,
+                    redisPoolManager.getPool(),
+                    kuvelConfig.getProxyGroupName(),
+                    proxyIdProvider.getId());
+            shardCoordinator.start();
+            redisConnectionLeader.enableSharding(shardCoordinator);
+          } else {
+            redisConnectionLeader.startElection();
+          }
+        });
 
-    kuvelServiceHandler.setAndRunServerDiscovery(
-        new RedisServerDiscovery(
-            client,
+    redisChangeFeedReader =
+        new RedisChangeFeedReader(
             this,
-            kuvelConfig.getNamespace(),
-            kuvelConfig.getRedisConnectionData().createJedisPool(),
-            kuvelConfig.getProxyGroupName(),
-            redisConnectionLeader,
-            kuvelServiceHandler));
+            redisPoolManager.getBlockingPool(),
+            kuvelConfig.getProxyGroupName());
+    redisChangeFeedReader.markStartPosition();
 
-    proxy
-        .getScheduler()
-        .buildTask(
-            this,
+    // the only place the discoveries are installed at startup, the leader election defers its
+    // takeover until this is done. The registrations of servers and load balancers do not depend
+    // on each other's order
+    boolean reconciledAsLeader = redisConnectionLeader.isLeader();
+    startupTracker.phase(
+        "reconciliation",
+        () ->
+            runInParallel(
+                () ->
+                    kuvelServiceHandler.setAndRunLoadBalancerDiscovery(
+                        new RedisLoadBalancerDiscovery(
+                            client,
+                            this,
+                            kuvelConfig.getNamespace(),
+                            redisPoolManager.getPool(),
+                            kuvelConfig.getProxyGroupName(),
+                            redisConnectionLeader,
+                            kuvelServiceHandler,
+                            discoveryCache)),
+                () ->
+                    kuvelServiceHandler.setAndRunServerDiscovery(
+                        new RedisServerDiscovery(
+                            client,
+                            this,
+                            kuvelConfig.getNamespace(),
+                            redisPoolManager.getPool(),
+                            kuvelConfig.getProxyGroupName(),
+                            redisConnectionLeader,
+                            kuvelServiceHandler,
+                            discoveryCache))));
+    redisConnectionLeader.onStartupReconciled(reconciledAsLeader);
+
+    long renewIntervalMillis = kuvelConfig.getLeaderRenewIntervalMillis();
+    kuvelExecutor
+        .getRootScope()
+        .repeat(
             () -> {
-              if (redisConnectionLeader.isLeader()) {
-                redisConnectionLeader.extendLeaderExpire();
-              } else {
+              try {
                 redisConnectionLeader.trySwitch();
+              } catch (Exception e) {
+                logger.warn("Failed to renew the leader lease", e);
               }
-            })
-        .repeat(5, TimeUnit.SECONDS)
-        .schedule();
+            },
+            0,
+            renewIntervalMillis,
+            TimeUnit.MILLISECONDS);
 
     redisSubscriberExecutor =
         new RedisSubscriberExecutor(
-            kuvelConfig.getRedisConnectionData().createJedisPool(),
-            kuvelConfig.getProxyGroupName());
-    redisSubscriberExecutor.subscribe(this, kuvelServiceHandler, redisConnectionLeader);
+            redisPoolManager.getBlockingPool(),
+            kuvelConfig.getProxyGroupName(),
+            kuvelExecutor.newScope("redis-subscriber"));
+    registryWorkerPool =
+        new KeyedWorkerPool(
+            "kuvel-registry-worker",
+            kuvelConfig.getRegistryWorkerThreads(),
+            kuvelConfig.getRegistryWorkerQueueCapacity(),
+            logger);
+    registryWorkerPool.start();
+    redisRegistrySynchronizer =
+        new RedisRegistrySynchronizer(
+            this,
+            redisPoolManager.getPool(),
+            kuvelConfig.getProxyGroupName(),
+            kuvelServiceHandler,
+            redisConnectionLeader,
+            registryWorkerPool);
+    if (kuvelConfig.getDiscoveryMode() == DiscoveryMode.REDIS
+        && kuvelConfig.getLeaderElectionBackend() == LeaderElectionBackend.REDIS) {
+      redisConnectionLeader.checkLeaderExpiryNotifications();
+    }
+    redisSubscriberExecutor.subscribe(
+        redisConnectionLeader,
+        redisChangeFeedReader,
+        redisRegistrySynchronizer,
+        registryWorkerPool);
+  }
 
-    proxy.getEventManager().register(this, new LoadBalancerListener(kuvelServiceHandler));
-    proxy
-        .getEventManager()
-        .register(this, new ChooseInitialServerListener(proxy, kuvelServiceHandler));
+  private List<DiscoverySource> createDiscoverySources() {
+    NamedContext namedContext = client.getConfiguration().getCurrentContext();
+    String currentContext = namedContext == null ? "default" : namedContext.getName();
+
+    List<DiscoverySource> sources = new ArrayList<>();
+    sources.add(
+        new DiscoverySource(
+            currentContext + "/" + kuvelConfig.getNamespace(),
+            client,
+            kuvelConfig.getNamespace(),
+            true));
+
+    for (String entry : kuvelConfig.getAdditionalDiscoverySources()) {
+      int separator = entry.lastIndexOf('/');
+      String context = separator < 0 ? currentContext : entry.substring(0, separator);
+      String namespace = entry.substring(separator + 1);
+      String name = context + "/" + namespace;
+      if (sources.stream().anyMatch(source -> source.getName().equals(name))) {
+        logger.warn("Discovery source " + name + " is configured twice. Ignoring.");
+        continue;
+      }
+
+      KubernetesClient sourceClient = client;
+      if (!context.equals(currentContext)) {
+        sourceClient =
+            sourceClients.computeIfAbsent(
+                context,
+                key -> new KubernetesClientBuilder().withConfig(Config.autoConfigure(key)).build());
+      }
+      sources.add(new DiscoverySource(name, sourceClient, namespace, false));
+      logger.info("Discovering servers in " + name + " as well.");
+    }
+    return sources;
   }
 
   @Subscribe
   public void onProxyShutdown(ProxyShutdownEvent event) {
+    if (metricsHttpServer != null) {
+      metricsHttpServer.shutdown();
+    }
+    if (metrics != null) {
+      metrics.shutdown();
+    }
+    if (registrySnapshotStore != null) {
+      registrySnapshotStore.shutdown();
+    }
+    if (redisChangeFeedReader != null) {
+      redisChangeFeedReader.shutdown();
+    }
+    if (redisRegistrySynchronizer != null) {
+      redisRegistrySynchronizer.shutdown();
+    }
+    if (registryWorkerPool != null) {
+      registryWorkerPool.shutdown();
+    }
     if (kuvelServiceHandler != null) {
       kuvelServiceHandler.shutdown();
     }
+    if (discoveryCache != null) {
+      discoveryCache.shutdown();
+    }
+    if (kubernetesAccess != null) {
+      kubernetesAccess.shutdown();
+    }
+    for (KubernetesClient sourceClient : sourceClients.values()) {
+      sourceClient.close();
+    }
     if (redisConnectionLeader != null) {
       redisConnectionLeader.leaveLeader();
     }
+    if (shardCoordinator != null) {
+      shardCoordinator.shutdown();
+    }
+    if (redisSubscriberExecutor != null) {
+      redisSubscriberExecutor.shutdown();
+    }
     if (proxyIdProvider != null) {
       proxyIdProvider.deleteProxyId();
     }
+    if (kuvelExecutor != null) {
+      kuvelExecutor.shutdown();
+    }
+    if (redisPoolManager != null) {
+      redisPoolManager.shutdown();
+    }
   }
 }
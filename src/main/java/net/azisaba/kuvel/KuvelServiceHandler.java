@@ -1,22 +1,40 @@
 package net.azisaba.kuvel;
 
+import com.velocitypowered.api.proxy.server.RegisteredServer;
 import com.velocitypowered.api.proxy.server.ServerInfo;
+import io.fabric8.kubernetes.api.model.OwnerReference;
 import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
+import net.azisaba.kuvel.discovery.DiscoverySource;
 import net.azisaba.kuvel.discovery.LoadBalancerDiscovery;
 import net.azisaba.kuvel.discovery.ServerDiscovery;
 import net.azisaba.kuvel.loadbalancer.LoadBalancer;
+import net.azisaba.kuvel.loadbalancer.LoadBalancingStrategy;
+import net.azisaba.kuvel.loadbalancer.strategy.impl.RoundRobinLoadBalancingStrategy;
+import net.azisaba.kuvel.snapshot.RegistrySnapshot;
+import net.azisaba.kuvel.snapshot.RegistrySnapshot.LoadBalancerEntry;
+import net.azisaba.kuvel.snapshot.RegistrySnapshot.ServerEntry;
 import net.azisaba.kuvel.util.LabelKeys;
+import net.azisaba.kuvel.util.ServerOwnerIndex;
 import net.azisaba.kuvel.util.UidAndServerNameMap;
 
 @Getter
@@ -26,12 +44,34 @@ public class KuvelServiceHandler {
   private final Kuvel plugin;
   private final KubernetesClient client;
   private final String namespace;
-  private final HashMap<String, LoadBalancer> loadBalancerServerMap = new HashMap<>();
+  private final ConcurrentHashMap<String, LoadBalancer> loadBalancerServerMap =
+      new ConcurrentHashMap<>();
 
   private final UidAndServerNameMap podUidAndServerNameMap = new UidAndServerNameMap();
   private final UidAndServerNameMap replicaSetUidAndServerNameMap = new UidAndServerNameMap();
-
-  private final List<String> initialServerNames = new ArrayList<>();
+  // registered pod servers by the uids of their ReplicaSets
+  private final ServerOwnerIndex podServerOwnerIndex = new ServerOwnerIndex();
+
+  private final Set<String> initialServerNames = ConcurrentHashMap.newKeySet();
+  // resolved on every change of the initial servers instead of on every login
+  private volatile List<RegisteredServer> initialServers = List.of();
+  @Getter(lazy = true)
+  private final LoadBalancingStrategy initialServerStrategy =
+      plugin.getKuvelConfig().getInitialServerStrategy().createStrategy(this::getPlayerCount);
+
+  // entries restored from the registry snapshot which the discovery did not confirm yet, by name.
+  // They are routable, but their names may be taken by the discovery.
+  private final ConcurrentHashMap<String, String> restoredServers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, LoadBalancer> restoredLoadBalancers =
+      new ConcurrentHashMap<>();
+  @Getter(AccessLevel.NONE)
+  private final Object restoreLock = new Object();
+
+  // pods to register whose sources did not complete their initial list yet, by uid. They are
+  // registered once the source synced.
+  private final ConcurrentHashMap<String, String> pendingPodRegistrations =
+      new ConcurrentHashMap<>();
+  private final Set<DiscoverySource> awaitedSources = ConcurrentHashMap.newKeySet();
 
   private final AtomicReference<ServerDiscovery> serverDiscovery = new AtomicReference<>();
   private final AtomicReference<LoadBalancerDiscovery> loadBalancerDiscovery =
@@ -44,14 +84,18 @@ public class KuvelServiceHandler {
    */
   public void registerLoadBalancer(LoadBalancer loadBalancer) {
     String serverName = loadBalancer.getServer().getServerInfo().getName();
-    loadBalancerServerMap.put(serverName, loadBalancer);
+    synchronized (restoreLock) {
+      restoredLoadBalancers.remove(serverName);
+      loadBalancerServerMap.put(serverName, loadBalancer);
+    }
     replicaSetUidAndServerNameMap.register(loadBalancer.getReplicaSetUid(), serverName);
 
     updateLoadBalancerEndpoints(loadBalancer);
 
-    if (loadBalancer.isInitialServer() && !initialServerNames.contains(serverName)) {
-      initialServerNames.add(serverName);
+    if (loadBalancer.isInitialServer()) {
+      addInitialServer(serverName);
     }
+    plugin.getMetrics().getLoadBalancerRegistrations().increment();
 
     plugin
         .getLogger()
@@ -94,7 +138,8 @@ public class KuvelServiceHandler {
     loadBalancerServerMap.remove(serverName);
     replicaSetUidAndServerNameMap.unregister(loadBalancer.getReplicaSetUid());
 
-    initialServerNames.remove(serverName);
+    removeInitialServer(serverName);
+    plugin.getMetrics().getLoadBalancerUnregistrations().increment();
 
     plugin
         .getLogger()
@@ -106,6 +151,226 @@ public class KuvelServiceHandler {
                 + ")");
   }
 
+  /**
+   * Chooses the initial server of a joining player among the initial servers with the configured
+   * strategy.
+   *
+   * @return The chosen server, or null if there is no initial server.
+   */
+  @Nullable
+  public RegisteredServer chooseInitialServer() {
+    List<RegisteredServer> servers = initialServers;
+    if (servers.isEmpty()) {
+      return null;
+    }
+    return getInitialServerStrategy().choose(servers);
+  }
+
+  /**
+   * Counts the players of an initial server. A load balancer has no players of its own, so it
+   * counts the players of all its endpoints.
+   *
+   * @param server The initial server.
+   * @return The number of players on this proxy.
+   */
+  private int getPlayerCount(RegisteredServer server) {
+    LoadBalancer loadBalancer = loadBalancerServerMap.get(server.getServerInfo().getName());
+    if (loadBalancer == null) {
+      return server.getPlayersConnected().size();
+    }
+
+    int players = 0;
+    for (RegisteredServer target : loadBalancer.getTargets()) {
+      players += target.getPlayersConnected().size();
+    }
+    return players;
+  }
+
+  private void addInitialServer(String serverName) {
+    // refreshed even if the name is known, since a re-registered server has a new handle
+    initialServerNames.add(serverName);
+    refreshInitialServers();
+  }
+
+  private void removeInitialServer(String serverName) {
+    if (initialServerNames.remove(serverName)) {
+      refreshInitialServers();
+    }
+  }
+
+  private synchronized void refreshInitialServers() {
+    List<RegisteredServer> servers = new ArrayList<>(initialServerNames.size());
+    for (String serverName : initialServerNames) {
+      plugin.getProxy().getServer(serverName).ifPresent(servers::add);
+    }
+    initialServers = List.copyOf(servers);
+  }
+
+  /**
+   * Gets whether the server name is taken. Names of restored entries which the discovery did not
+   * confirm yet are free, so the discovery can register them again.
+   *
+   * @param serverName The server name to check.
+   * @return true if a server with the name is registered and not only restored.
+   */
+  public boolean isServerNameUsed(String serverName) {
+    return plugin.getProxy().getServer(serverName).isPresent()
+        && !restoredServers.containsKey(serverName)
+        && !restoredLoadBalancers.containsKey(serverName);
+  }
+
+  /**
+   * Registers the servers and load balancers of a registry snapshot, so players can be routed
+   * before the discovery finished. The entries are replaced when the discovery registers their
+   * names, and the others are removed by {@link #dropUnconfirmedRestoredEntries()}.
+   *
+   * @param snapshot The snapshot to restore.
+   */
+  public void restoreSnapshot(RegistrySnapshot snapshot) {
+    synchronized (restoreLock) {
+      for (ServerEntry entry : snapshot.getServers()) {
+        if (plugin.getProxy().getServer(entry.getName()).isPresent()) {
+          continue;
+        }
+
+        plugin
+            .getProxy()
+            .registerServer(
+                new ServerInfo(
+                    entry.getName(), new InetSocketAddress(entry.getHost(), entry.getPort())));
+        restoredServers.put(entry.getName(), entry.getPodUid());
+        podServerOwnerIndex.put(entry.getName(), entry.getOwnerUids());
+        if (entry.isInitialServer()) {
+          addInitialServer(entry.getName());
+        }
+      }
+
+      for (LoadBalancerEntry entry : snapshot.getLoadBalancers()) {
+        if (plugin.getProxy().getServer(entry.getName()).isPresent()) {
+          continue;
+        }
+
+        RegisteredServer server =
+            plugin
+                .getProxy()
+                .registerServer(
+                    new ServerInfo(entry.getName(), new InetSocketAddress("0.0.0.0", 0)));
+        LoadBalancer loadBalancer =
+            new LoadBalancer(
+                plugin.getProxy(),
+                server,
+                new RoundRobinLoadBalancingStrategy(),
+                entry.getReplicaSetUid(),
+                entry.isInitialServer());
+        loadBalancer.addEndpoints(podServerOwnerIndex.getServerNames(entry.getReplicaSetUid()));
+        restoredLoadBalancers.put(entry.getName(), loadBalancer);
+        loadBalancerServerMap.put(entry.getName(), loadBalancer);
+        if (entry.isInitialServer()) {
+          addInitialServer(entry.getName());
+        }
+      }
+    }
+
+    plugin
+        .getLogger()
+        .info(
+            "Restored "
+                + restoredServers.size()
+                + " servers and "
+                + restoredLoadBalancers.size()
+                + " load balancers from the registry snapshot");
+  }
+
+  /**
+   * Unregisters the restored entries which the discovery did not register again. Call it once the
+   * discovery reconciled the registry.
+   */
+  public void dropUnconfirmedRestoredEntries() {
+    int droppedServers = 0;
+    int droppedLoadBalancers = 0;
+    synchronized (restoreLock) {
+      for (String serverName : restoredServers.keySet()) {
+        restoredServers.remove(serverName);
+        plugin
+            .getProxy()
+            .getServer(serverName)
+            .ifPresent(server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
+        podServerOwnerIndex.remove(serverName);
+        for (LoadBalancer loadBalancer : loadBalancerServerMap.values()) {
+          loadBalancer.removeEndpoint(serverName);
+        }
+        removeInitialServer(serverName);
+        droppedServers++;
+      }
+
+      for (Entry<String, LoadBalancer> entry : restoredLoadBalancers.entrySet()) {
+        String serverName = entry.getKey();
+        restoredLoadBalancers.remove(serverName);
+        loadBalancerServerMap.remove(serverName, entry.getValue());
+        plugin
+            .getProxy()
+            .getServer(serverName)
+            .ifPresent(server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
+        removeInitialServer(serverName);
+        droppedLoadBalancers++;
+      }
+    }
+
+    if (droppedServers > 0 || droppedLoadBalancers > 0) {
+      plugin
+          .getLogger()
+          .info(
+              "Removed "
+                  + droppedServers
+                  + " servers and "
+                  + droppedLoadBalancers
+                  + " load balancers of the registry snapshot which no longer exist");
+    }
+  }
+
+  /**
+   * Takes a snapshot of the registered servers and load balancers, including the restored ones
+   * which were not confirmed yet.
+   *
+   * @param scope The scope of the snapshot.
+   * @return The snapshot.
+   */
+  public RegistrySnapshot createSnapshot(String scope) {
+    TreeMap<String, String> serverNameToPodUid = new TreeMap<>(restoredServers);
+    for (Entry<String, String> entry : podUidAndServerNameMap.getAllMap().entrySet()) {
+      serverNameToPodUid.put(entry.getValue(), entry.getKey());
+    }
+
+    List<ServerEntry> servers = new ArrayList<>(serverNameToPodUid.size());
+    for (Entry<String, String> entry : serverNameToPodUid.entrySet()) {
+      Optional<RegisteredServer> server = plugin.getProxy().getServer(entry.getKey());
+      if (server.isEmpty()) {
+        continue;
+      }
+
+      InetSocketAddress address = server.get().getServerInfo().getAddress();
+      servers.add(
+          new ServerEntry(
+              entry.getKey(),
+              entry.getValue(),
+              address.getHostString(),
+              address.getPort(),
+              initialServerNames.contains(entry.getKey()),
+              podServerOwnerIndex.getOwnerUids(entry.getKey())));
+    }
+
+    List<LoadBalancerEntry> loadBalancers = new ArrayList<>();
+    for (LoadBalancer loadBalancer : new TreeMap<>(loadBalancerServerMap).values()) {
+      loadBalancers.add(
+          new LoadBalancerEntry(
+              loadBalancer.getServer().getServerInfo().getName(),
+              loadBalancer.getReplicaSetUid(),
+              loadBalancer.isInitialServer()));
+    }
+
+    return new RegistrySnapshot(scope, System.currentTimeMillis(), servers, loadBalancers);
+  }
+
   /**
    * Get a registered load balancer instance.
    *
@@ -117,30 +382,69 @@ public class KuvelServiceHandler {
   }
 
   /**
-   * Update endpoints of a load balancer.
+   * Update endpoints of a load balancer from the registered pods of its ReplicaSet. Endpoints are
+   * only added, since a pod which is registered concurrently may already have added itself after
+   * the load balancer was registered.
    *
    * @param loadBalancer The load balancer to update.
    */
   private void updateLoadBalancerEndpoints(LoadBalancer loadBalancer) {
-    // TODO: This may be replaced by more improved function
-    List<Pod> pods =
-        client
-            .pods()
-            .inNamespace(namespace)
-            .withLabel(LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()), "true")
-            .list()
-            .getItems();
-
-    List<String> endpoints = new ArrayList<>();
-    for (Pod pod : pods) {
-      if (pod.hasOwnerReferenceFor(loadBalancer.getReplicaSetUid())) {
-        String serverName = podUidAndServerNameMap.getServerNameFromUid(pod.getMetadata().getUid());
-        if (serverName != null) {
-          endpoints.add(serverName);
+    loadBalancer.addEndpoints(podServerOwnerIndex.getServerNames(loadBalancer.getReplicaSetUid()));
+  }
+
+  /**
+   * Indexes a registered pod server by its owners and adds it to the endpoints of the load
+   * balancers of the owners.
+   *
+   * @param serverName The name of the pod server.
+   * @param pod The pod.
+   */
+  private void indexPodServer(String serverName, Pod pod) {
+    List<String> ownerUids = new ArrayList<>();
+    for (OwnerReference ownerReference : pod.getMetadata().getOwnerReferences()) {
+      ownerUids.add(ownerReference.getUid());
+    }
+    podServerOwnerIndex.put(serverName, ownerUids);
+
+    for (String ownerUid : ownerUids) {
+      getLoadBalancerByReplicaSetUid(ownerUid)
+          .ifPresent(loadBalancer -> loadBalancer.addEndpoint(serverName));
+    }
+  }
+
+  private Optional<LoadBalancer> getLoadBalancerByReplicaSetUid(String replicaSetUid) {
+    String loadBalancerName = replicaSetUidAndServerNameMap.getServerNameFromUid(replicaSetUid);
+    if (loadBalancerName == null) {
+      // restored load balancers are not mapped until the discovery confirms them
+      for (LoadBalancer loadBalancer : restoredLoadBalancers.values()) {
+        if (loadBalancer.getReplicaSetUid().equals(replicaSetUid)) {
+          return Optional.of(loadBalancer);
         }
       }
+      return Optional.empty();
     }
-    loadBalancer.setEndpoints(endpoints);
+    return Optional.ofNullable(loadBalancerServerMap.get(loadBalancerName));
+  }
+
+  /**
+   * Lists the discovery-enabled pods of the namespace with a list request. This is used for the
+   * pods of the primary source while the discovery cache is not available.
+   *
+   * @return The discovery-enabled pods.
+   */
+  private List<Pod> listDiscoveryPods() {
+    // the same list as the server discovery lists, so concurrent lists are shared
+    return plugin
+        .getKubernetesAccess()
+        .list(
+            "pods/" + namespace + "/discovery",
+            client
+                .pods()
+                .inNamespace(namespace)
+                .withLabel(
+                    LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(
+                        plugin.getKuvelConfig().getLabelKeyPrefix()),
+                    "true"));
   }
 
   /**
@@ -151,39 +455,53 @@ public class KuvelServiceHandler {
    *     one.
    */
   public void setAndRunServerDiscovery(@Nullable ServerDiscovery newServerDiscovery) {
-    if (newServerDiscovery != null) {
+    setAndRunServerDiscovery(newServerDiscovery, false);
+  }
+
+  /**
+   * Replace new server discovery instance and unregister old one. If the registry of this proxy is
+   * already loaded, e.g. a warm follower takes over the leadership, the startup registration is
+   * skipped and the discovery continues incrementally from the current state.
+   *
+   * @param newServerDiscovery The new server discovery instance. Specify null for shutdown current
+   *     one.
+   * @param registryLoaded Whether the servers are already registered to this proxy.
+   */
+  public void setAndRunServerDiscovery(
+      @Nullable ServerDiscovery newServerDiscovery, boolean registryLoaded) {
+    if (newServerDiscovery != null && !registryLoaded) {
       HashMap<String, Pod> servers = newServerDiscovery.getServersForStartup();
 
       for (Entry<String, Pod> entry : servers.entrySet()) {
         Pod pod = entry.getValue();
         InetSocketAddress address = new InetSocketAddress(pod.getStatus().getPodIP(), 25565);
-        plugin.getProxy().getServer(entry.getKey()).ifPresent(server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
-        plugin.getProxy().registerServer(new ServerInfo(entry.getKey(), address));
+        synchronized (restoreLock) {
+          restoredServers.remove(entry.getKey());
+          plugin
+              .getProxy()
+              .getServer(entry.getKey())
+              .ifPresent(server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
+          plugin.getProxy().registerServer(new ServerInfo(entry.getKey(), address));
+        }
 
         String initialServerStr = pod.getMetadata().getLabels().getOrDefault(
                 LabelKeys.INITIAL_SERVER.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()), "false");
         if (Boolean.parseBoolean(initialServerStr)) {
-          initialServerNames.add(entry.getKey());
+          addInitialServer(entry.getKey());
         }
 
-        for (LoadBalancer loadBalancer : loadBalancerServerMap.values()) {
-          if (pod.hasOwnerReferenceFor(loadBalancer.getReplicaSetUid())) {
-            loadBalancer.addEndpoint(entry.getKey());
-          }
-        }
+        indexPodServer(entry.getKey(), pod);
       }
+    }
 
+    if (newServerDiscovery != null) {
       newServerDiscovery.start();
     }
 
-    serverDiscovery.getAndUpdate(
-        (oldInstance) -> {
-          if (oldInstance != null) {
-            oldInstance.shutdown();
-          }
-
-          return newServerDiscovery;
-        });
+    ServerDiscovery oldInstance = serverDiscovery.getAndSet(newServerDiscovery);
+    if (oldInstance != null) {
+      oldInstance.shutdown();
+    }
   }
 
   /**
@@ -194,18 +512,30 @@ public class KuvelServiceHandler {
    *     one.
    */
   public void setAndRunLoadBalancerDiscovery(@Nullable LoadBalancerDiscovery newInstance) {
+    setAndRunLoadBalancerDiscovery(newInstance, false);
+  }
+
+  /**
+   * Replace new load balancer discovery instance and unregister old one. If the registry of this
+   * proxy is already loaded, the startup registration is skipped.
+   *
+   * @param newInstance The new load balancer discovery instance. Specify null for shutdown current
+   *     one.
+   * @param registryLoaded Whether the load balancers are already registered to this proxy.
+   */
+  public void setAndRunLoadBalancerDiscovery(
+      @Nullable LoadBalancerDiscovery newInstance, boolean registryLoaded) {
     if (newInstance != null) {
-      newInstance.registerLoadBalancersForStartup();
+      if (!registryLoaded) {
+        newInstance.registerLoadBalancersForStartup();
+      }
       newInstance.start();
     }
 
-    loadBalancerDiscovery.getAndUpdate(
-        oldInstance -> {
-          if (oldInstance != null) {
-            oldInstance.shutdown();
-          }
-          return newInstance;
-        });
+    LoadBalancerDiscovery oldInstance = loadBalancerDiscovery.getAndSet(newInstance);
+    if (oldInstance != null) {
+      oldInstance.shutdown();
+    }
   }
 
   /** Shutdown all discovery instances. */
@@ -221,36 +551,54 @@ public class KuvelServiceHandler {
    * @param serverName The name of the server.
    */
   public void registerPod(Pod pod, String serverName) {
-    var currentServer = plugin.getProxy().getServer(serverName);
+    registerPods(Collections.singletonMap(serverName, pod));
+  }
 
-    if (currentServer.isPresent() && podUidAndServerNameMap.getUidFromServerName(serverName) == null) {
-      plugin
-          .getLogger()
-          .warn("Skipped registering server " + serverName + " because the name is already used");
-      return;
-    }
+  /**
+   * Register pods for the specified server names. Load balancer endpoints are updated once for the
+   * whole batch.
+   *
+   * @param serverNameToPod The map of server names and pods to register.
+   */
+  public void registerPods(Map<String, Pod> serverNameToPod) {
+    for (Entry<String, Pod> entry : serverNameToPod.entrySet()) {
+      String serverName = entry.getKey();
+      Pod pod = entry.getValue();
+
+      synchronized (restoreLock) {
+        var currentServer = plugin.getProxy().getServer(serverName);
+        boolean restored = restoredServers.remove(serverName) != null;
+
+        if (currentServer.isPresent()
+            && !restored
+            && podUidAndServerNameMap.getUidFromServerName(serverName) == null) {
+          plugin
+              .getLogger()
+              .warn(
+                  "Skipped registering server " + serverName + " because the name is already used");
+          continue;
+        }
 
-    InetSocketAddress address = new InetSocketAddress(pod.getStatus().getPodIP(), 25565);
-    currentServer.ifPresent(server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
-    plugin.getProxy().registerServer(new ServerInfo(serverName, address));
-    podUidAndServerNameMap.register(pod.getMetadata().getUid(), serverName);
+        InetSocketAddress address = new InetSocketAddress(pod.getStatus().getPodIP(), 25565);
+        currentServer.ifPresent(
+            server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
+        plugin.getProxy().registerServer(new ServerInfo(serverName, address));
+        podUidAndServerNameMap.register(pod.getMetadata().getUid(), serverName);
+      }
+      indexPodServer(serverName, pod);
 
-    for (LoadBalancer loadBalancer : loadBalancerServerMap.values()) {
-      if (pod.hasOwnerReferenceFor(loadBalancer.getReplicaSetUid())) {
-        loadBalancer.addEndpoint(serverName);
+      String initialServerStr =
+          pod.getMetadata().getLabels().getOrDefault(
+                  LabelKeys.INITIAL_SERVER.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()), "false");
+      if (Boolean.parseBoolean(initialServerStr)) {
+        addInitialServer(serverName);
       }
-    }
+      plugin.getMetrics().getServerRegistrations().increment();
 
-    String initialServerStr =
-        pod.getMetadata().getLabels().getOrDefault(
-                LabelKeys.INITIAL_SERVER.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()), "false");
-    if (Boolean.parseBoolean(initialServerStr)) {
-      initialServerNames.add(serverName);
+      plugin
+          .getLogger()
+          .info("Registered server: " + serverName + " (" + pod.getMetadata().getUid() + ")");
     }
-
-    plugin
-        .getLogger()
-        .info("Registered server: " + serverName + " (" + pod.getMetadata().getUid() + ")");
   }
 
   /**
@@ -260,46 +608,142 @@ public class KuvelServiceHandler {
    * @param serverName The name of the server.
    */
   public void registerPod(String podUid, String serverName) {
-    Optional<Pod> pod =
-        client
-            .pods()
-            .inNamespace(namespace)
-            .withLabel(LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(
-                    plugin.getKuvelConfig().getLabelKeyPrefix()), "true")
-            .list()
-            .getItems()
-            .stream()
-            .filter(p -> p.getMetadata().getUid().equals(podUid))
-            .findFirst();
+    registerPodsByUid(Collections.singletonMap(podUid, serverName));
+  }
+
+  /**
+   * Register pods with pod uids for the specified server names. Each pod is resolved through the
+   * discovery source which owns it. Pods of the primary namespace are fetched with a single list
+   * request for the whole batch while the cache is not available. Pods of a source which did not
+   * complete its initial list yet are kept pending and registered once it synced.
+   *
+   * @param podUidToServerName The map of pod uids and server names to register.
+   */
+  public void registerPodsByUid(Map<String, String> podUidToServerName) {
+    if (podUidToServerName.isEmpty()) {
+      return;
+    }
+
+    DiscoveryCache discoveryCache = plugin.getDiscoveryCache();
+    LinkedHashMap<String, Pod> serverNameToPod = new LinkedHashMap<>();
+    HashMap<String, String> listedPods = new HashMap<>();
+    for (Entry<String, String> entry : podUidToServerName.entrySet()) {
+      String uid = entry.getKey();
+      String serverName = entry.getValue();
+      pendingPodRegistrations.remove(uid);
+
+      DiscoverySource source = discoveryCache == null ? null : discoveryCache.getSource(uid);
+      if (discoveryCache == null || (source != null && source.isPrimary() && !source.isSynced())) {
+        listedPods.put(uid, serverName);
+      } else if (source != null && !source.isSynced()) {
+        awaitSource(source, uid, serverName);
+      } else if (source != null) {
+        Pod pod = source.getPod(uid);
+        if (pod != null) {
+          serverNameToPod.put(serverName, pod);
+        }
+      }
+    }
 
-    pod.ifPresent(p -> registerPod(p, serverName));
+    if (!listedPods.isEmpty()) {
+      for (Pod pod : listDiscoveryPods()) {
+        String serverName = listedPods.get(pod.getMetadata().getUid());
+        if (serverName != null) {
+          serverNameToPod.put(serverName, pod);
+        }
+      }
+    }
+
+    registerPods(serverNameToPod);
   }
 
   /**
-   * Unregister a pod with the pod uid.
+   * Returns whether pods are waiting for their source to complete its initial list.
    *
-   * @param podUid The pod uid to unregister.
+   * @return true if a registration is pending.
    */
-  public void unregisterPod(String podUid) {
-    if (podUidAndServerNameMap.getServerNameFromUid(podUid) == null) {
+  public boolean hasPendingPodRegistrations() {
+    return !pendingPodRegistrations.isEmpty();
+  }
+
+  private void awaitSource(DiscoverySource source, String uid, String serverName) {
+    pendingPodRegistrations.put(uid, serverName);
+    if (!awaitedSources.add(source)) {
       return;
     }
 
-    String serverName = podUidAndServerNameMap.unregister(podUid);
-    plugin
-        .getProxy()
-        .getServer(serverName)
-        .ifPresent(server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
+    source
+        .whenSynced()
+        .whenComplete(
+            (unused, throwable) -> {
+              awaitedSources.remove(source);
+              if (throwable != null) {
+                pendingPodRegistrations.keySet().removeIf(source::owns);
+                plugin
+                    .getLogger()
+                    .warn(
+                        "Discovery source "
+                            + source.getName()
+                            + " failed to sync. Its pending servers are registered by the next"
+                            + " registry check.",
+                        throwable);
+                return;
+              }
+
+              plugin
+                  .getKuvelExecutor()
+                  .getRootScope()
+                  .execute(() -> registerPendingPods(source));
+            });
+  }
 
-    for (LoadBalancer loadBalancer : loadBalancerServerMap.values()) {
-      if (loadBalancer.getEndpointServers().contains(serverName)) {
-        loadBalancer.removeEndpoint(serverName);
+  private void registerPendingPods(DiscoverySource source) {
+    LinkedHashMap<String, String> podUidToServerName = new LinkedHashMap<>();
+    for (Entry<String, String> entry : pendingPodRegistrations.entrySet()) {
+      if (source.owns(entry.getKey())) {
+        podUidToServerName.put(entry.getKey(), entry.getValue());
       }
     }
+    registerPodsByUid(podUidToServerName);
+  }
+
+  /**
+   * Unregister a pod with the pod uid.
+   *
+   * @param podUid The pod uid to unregister.
+   */
+  public void unregisterPod(String podUid) {
+    unregisterPods(Collections.singletonList(podUid));
+  }
 
-    initialServerNames.remove(serverName);
+  /**
+   * Unregister pods with the pod uids. Only the load balancers of the owners of the pods are
+   * updated.
+   *
+   * @param podUids The pod uids to unregister.
+   */
+  public void unregisterPods(Collection<String> podUids) {
+    for (String podUid : podUids) {
+      pendingPodRegistrations.remove(podUid);
+      String serverName = podUidAndServerNameMap.unregister(podUid);
+      if (serverName == null) {
+        continue;
+      }
 
-    plugin.getLogger().info("Unregistered server: " + serverName + " (" + podUid + ")");
+      plugin
+          .getProxy()
+          .getServer(serverName)
+          .ifPresent(server -> plugin.getProxy().unregisterServer(server.getServerInfo()));
+
+      for (String ownerUid : podServerOwnerIndex.remove(serverName)) {
+        getLoadBalancerByReplicaSetUid(ownerUid)
+            .ifPresent(loadBalancer -> loadBalancer.removeEndpoint(serverName));
+      }
+      removeInitialServer(serverName);
+      plugin.getMetrics().getServerUnregistrations().increment();
+
+      plugin.getLogger().info("Unregistered server: " + serverName + " (" + podUid + ")");
+    }
   }
 
   /**
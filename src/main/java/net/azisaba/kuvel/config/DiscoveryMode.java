@@ -0,0 +1,40 @@
+package net.azisaba.kuvel.config;
+
+import javax.annotation.Nullable;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+
+/** How the proxies of a group agree on the registry. */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public enum DiscoveryMode {
+  /** The leader discovers servers and shares the names through Redis. */
+  REDIS("redis"),
+  /** Every proxy discovers servers itself and derives the names from the pod metadata. */
+  PEER("peer"),
+  /**
+   * Every proxy discovers the pods and ReplicaSets it owns by rendezvous hashing and shares the
+   * names through Redis.
+   */
+  SHARDED("sharded");
+
+  private final String key;
+
+  public String getKey() {
+    return key;
+  }
+
+  @Nullable
+  public static DiscoveryMode fromKey(String key) {
+    for (DiscoveryMode mode : values()) {
+      if (mode.key.equalsIgnoreCase(key)) {
+        return mode;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return getKey();
+  }
+}
@@ -0,0 +1,58 @@
+package net.azisaba.kuvel.config;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import javax.annotation.Nullable;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.loadbalancer.LoadBalancingStrategy;
+import net.azisaba.kuvel.loadbalancer.strategy.impl.MinimumPlayerLoadBalancingStrategy;
+import net.azisaba.kuvel.loadbalancer.strategy.impl.RandomLoadBalancingStrategy;
+import net.azisaba.kuvel.loadbalancer.strategy.impl.RoundRobinLoadBalancingStrategy;
+
+/** How the initial server of a joining player is chosen among the initial servers. */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public enum InitialServerStrategy {
+  /** A random initial server. */
+  RANDOM("random", playerCounter -> new RandomLoadBalancingStrategy()),
+  /** The initial servers in turn. */
+  ROUND_ROBIN("round-robin", playerCounter -> new RoundRobinLoadBalancingStrategy()),
+  /**
+   * The initial server with the fewest players on this proxy. A load balancer counts the players of
+   * all its endpoints.
+   */
+  LEAST_PLAYERS("least-players", MinimumPlayerLoadBalancingStrategy::new);
+
+  private final String key;
+  private final Function<ToIntFunction<RegisteredServer>, LoadBalancingStrategy> factory;
+
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Creates the strategy.
+   *
+   * @param playerCounter Counts the players of an initial server for {@link #LEAST_PLAYERS}.
+   * @return The strategy.
+   */
+  public LoadBalancingStrategy createStrategy(ToIntFunction<RegisteredServer> playerCounter) {
+    return factory.apply(playerCounter);
+  }
+
+  @Nullable
+  public static InitialServerStrategy fromKey(String key) {
+    for (InitialServerStrategy strategy : values()) {
+      if (strategy.key.equalsIgnoreCase(key)) {
+        return strategy;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return getKey();
+  }
+}
@@ -2,6 +2,8 @@ package net.azisaba.kuvel.config;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import javax.annotation.Nullable;
 import lombok.Getter;
@@ -21,7 +23,45 @@ public class KuvelConfig {
   private boolean redisEnabled;
   @Nullable private RedisConnectionData redisConnectionData;
   @Nullable private String proxyGroupName;
+  private long changeStreamMaxLength;
+  private long antiEntropyIntervalSeconds;
+  private long leaderLeaseMillis;
+  private long leaderRenewIntervalMillis;
+  private LeaderElectionBackend leaderElectionBackend;
+  private long leaseDurationSeconds;
+  private long leaseRenewDeadlineSeconds;
+  private long leaseRetryPeriodSeconds;
+  private int registryWorkerThreads;
+  private int registryWorkerQueueCapacity;
+  private int redisTimeoutMillis;
+  private int redisPoolMaxTotal;
+  private int redisPoolMaxIdle;
+  private int redisPoolMinIdle;
+  private long redisPoolMaxWaitMillis;
+  private long redisPoolEvictionIntervalSeconds;
+  private long redisPoolMinEvictableIdleSeconds;
   private String labelKeyPrefix;
+  private long discoveryBatchWindowMillis;
+  private int discoveryMaxBatchSize;
+  private long listPageSize;
+  private double kubernetesQps;
+  private int kubernetesBurst;
+  private int kubernetesMaxRetries;
+  private long kubernetesRetryBaseDelayMillis;
+  private boolean warmStandby;
+  private DiscoveryMode discoveryMode;
+  private InitialServerStrategy initialServerStrategy;
+  private long startupLoginWaitMillis;
+  private boolean registrySnapshotEnabled;
+  private boolean virtualThreadsEnabled;
+  private int maxPlatformThreads;
+  private long registrySnapshotIntervalSeconds;
+  private long registrySnapshotMaxAgeSeconds;
+  private boolean metricsEnabled;
+  private String metricsHost;
+  private int metricsPort;
+  // "<namespace>" or "<context>/<namespace>" entries watched in addition to the namespace
+  private List<String> additionalDiscoverySources;
 
   public void load() throws IOException {
     File uppercaseDataFolder = new File(plugin.getDataDirectory().getParentFile(), "Kuvel");
@@ -60,6 +100,7 @@ public class KuvelConfig {
     }
     String username = env.getOrDefault("KUVEL_REDIS_CONNECTION_USERNAME", conf.getString("redis.connection.username"));
     String password = env.getOrDefault("KUVEL_REDIS_CONNECTION_PASSWORD", conf.getString("redis.connection.password"));
+    int database = Math.max(0, conf.getInt("redis.connection.database", 0));
 
     if (hostname == null || port <= 0) {
       redisEnabled = false;
@@ -68,10 +109,81 @@ public class KuvelConfig {
           .warn(
               "Redis is enabled, but hostname or port is invalid. Redis sync will be disabled.");
     } else {
-      redisConnectionData = new RedisConnectionData(hostname, port, username, password);
+      redisConnectionData = new RedisConnectionData(hostname, port, username, password, database);
     }
 
     proxyGroupName = env.getOrDefault("KUVEL_REDIS_GROUPNAME", conf.getString("redis.group-name", null));
+    changeStreamMaxLength = Math.max(100, conf.getLong("redis.change-stream-max-length", 10000));
+    antiEntropyIntervalSeconds = Math.max(1, conf.getLong("redis.anti-entropy-interval-seconds", 5));
+    leaderLeaseMillis = Math.max(1000, conf.getLong("redis.leader.lease-millis", 3000));
+    leaderRenewIntervalMillis = Math.max(100, Math.min(leaderLeaseMillis / 3, conf.getLong("redis.leader.renew-interval-millis", 1000)));
+    String backendKey =
+        env.getOrDefault(
+            "KUVEL_LEADER_ELECTION_BACKEND", conf.getString("leader-election.backend", "redis"));
+    leaderElectionBackend = LeaderElectionBackend.fromKey(backendKey);
+    if (leaderElectionBackend == null) {
+      leaderElectionBackend = LeaderElectionBackend.REDIS;
+      plugin
+          .getLogger()
+          .warn("Unknown leader election backend '" + backendKey + "'. Using redis.");
+    }
+    leaseDurationSeconds = Math.max(2, conf.getLong("leader-election.kubernetes.lease-duration-seconds", 15));
+    leaseRenewDeadlineSeconds = Math.max(1, Math.min(leaseDurationSeconds - 1, conf.getLong("leader-election.kubernetes.renew-deadline-seconds", 10)));
+    leaseRetryPeriodSeconds = Math.max(1, Math.min(leaseRenewDeadlineSeconds, conf.getLong("leader-election.kubernetes.retry-period-seconds", 2)));
+    registryWorkerThreads = Math.max(1, conf.getInt("redis.apply-workers", 4));
+    registryWorkerQueueCapacity = Math.max(16, conf.getInt("redis.apply-queue-capacity", 1024));
+    redisTimeoutMillis = Math.max(1500, conf.getInt("redis.connection.timeout-millis", 3000));
+    redisPoolMaxTotal = Math.max(1, conf.getInt("redis.pool.max-total", 16));
+    redisPoolMaxIdle = Math.max(0, Math.min(redisPoolMaxTotal, conf.getInt("redis.pool.max-idle", 8)));
+    redisPoolMinIdle = Math.max(0, Math.min(redisPoolMaxIdle, conf.getInt("redis.pool.min-idle", 1)));
+    redisPoolMaxWaitMillis = Math.max(1, conf.getLong("redis.pool.max-wait-millis", 2000));
+    redisPoolEvictionIntervalSeconds = Math.max(1, conf.getLong("redis.pool.eviction-interval-seconds", 30));
+    redisPoolMinEvictableIdleSeconds = Math.max(1, conf.getLong("redis.pool.min-evictable-idle-seconds", 60));
     labelKeyPrefix = env.getOrDefault("KUVEL_LABEL_KEY_PREFIX", conf.getString("label-key-prefix", "kuvel.azisaba.net"));
+
+    discoveryBatchWindowMillis = Math.max(1, conf.getLong("discovery.batch-window-millis", 250));
+    discoveryMaxBatchSize = Math.max(1, conf.getInt("discovery.max-batch-size", 64));
+    listPageSize = Math.max(10, conf.getLong("discovery.list-page-size", 500));
+    kubernetesQps = Math.max(0.1, conf.getDouble("kubernetes.qps", 20));
+    kubernetesBurst = Math.max(1, conf.getInt("kubernetes.burst", 40));
+    kubernetesMaxRetries = Math.max(0, conf.getInt("kubernetes.max-retries", 3));
+    kubernetesRetryBaseDelayMillis = Math.max(10, conf.getLong("kubernetes.retry-base-delay-millis", 200));
+    warmStandby = conf.getBoolean("discovery.warm-standby", true);
+    String modeKey = env.getOrDefault("KUVEL_DISCOVERY_MODE", conf.getString("discovery.mode", "redis"));
+    discoveryMode = DiscoveryMode.fromKey(modeKey);
+    if (discoveryMode == null) {
+      discoveryMode = DiscoveryMode.REDIS;
+      plugin.getLogger().warn("Unknown discovery mode '" + modeKey + "'. Using redis.");
+    }
+    startupLoginWaitMillis = Math.max(0, conf.getLong("initial-server.startup-wait-millis", 10000));
+    virtualThreadsEnabled = conf.getBoolean("executor.virtual-threads", true);
+    maxPlatformThreads = Math.max(2, conf.getInt("executor.max-platform-threads", 16));
+    registrySnapshotEnabled = conf.getBoolean("registry-snapshot.enabled", true);
+    registrySnapshotIntervalSeconds = Math.max(1, conf.getLong("registry-snapshot.interval-seconds", 5));
+    registrySnapshotMaxAgeSeconds = Math.max(registrySnapshotIntervalSeconds * 2, conf.getLong("registry-snapshot.max-age-seconds", 300));
+    metricsEnabled = conf.getBoolean("metrics.enabled", false);
+    metricsHost = conf.getString("metrics.host", "127.0.0.1");
+    metricsPort = conf.getInt("metrics.port", 9225);
+    String initialServerStrategyKey = conf.getString("initial-server.strategy", "random");
+    initialServerStrategy = InitialServerStrategy.fromKey(initialServerStrategyKey);
+    if (initialServerStrategy == null) {
+      initialServerStrategy = InitialServerStrategy.RANDOM;
+      plugin.getLogger().warn("Unknown initial server strategy '" + initialServerStrategyKey + "'. Using random.");
+    }
+    additionalDiscoverySources = new ArrayList<>();
+    String sourcesEnv = env.get("KUVEL_DISCOVERY_SOURCES");
+    if (sourcesEnv != null) {
+      for (String source : sourcesEnv.split(",")) {
+        if (!source.isBlank()) {
+          additionalDiscoverySources.add(source.trim());
+        }
+      }
+    } else if (conf.get("discovery.sources") instanceof List<?> sources) {
+      for (Object source : sources) {
+        if (source != null && !source.toString().isBlank()) {
+          additionalDiscoverySources.add(source.toString().trim());
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,35 @@
+package net.azisaba.kuvel.config;
+
+import javax.annotation.Nullable;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+
+/** Backends which elect the leader of a proxy group. */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public enum LeaderElectionBackend {
+  /** A lease key in Redis. The leader changes whenever Redis is unreachable. */
+  REDIS("redis"),
+  /** A {@code coordination.k8s.io/v1} Lease in the namespace. Redis only issues the epochs. */
+  KUBERNETES("kubernetes");
+
+  private final String key;
+
+  public String getKey() {
+    return key;
+  }
+
+  @Nullable
+  public static LeaderElectionBackend fromKey(String key) {
+    for (LeaderElectionBackend backend : values()) {
+      if (backend.key.equalsIgnoreCase(key)) {
+        return backend;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return getKey();
+  }
+}
@@ -0,0 +1,215 @@
+package net.azisaba.kuvel.discovery;
+
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.apps.ReplicaSet;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.discovery.DiscoverySource.Health;
+
+/**
+ * Keeps the discovery-enabled pods and ReplicaSets of all {@link DiscoverySource}s in memory with
+ * informers and merges them into one view. It runs on every proxy, so a follower which becomes the
+ * leader already knows the cluster state and can continue discovery incrementally instead of
+ * listing and reprocessing everything. In peer mode, the discovery of every proxy is driven by the
+ * events of this cache.
+ */
+@RequiredArgsConstructor
+public class DiscoveryCache {
+
+  private static final long HEALTH_CHECK_INTERVAL_SECONDS = 10;
+
+  private final Kuvel plugin;
+  // the first source is the primary one
+  @Getter private final List<DiscoverySource> sources;
+
+  private final HashMap<DiscoverySource, Health> lastHealth = new HashMap<>();
+  private ScheduledTask healthTask;
+
+  /**
+   * Starts the informers of all sources. They sync concurrently, and the cache is usable once
+   * {@link #isSynced()} returns true.
+   */
+  public void start() {
+    String labelKeyPrefix = plugin.getKuvelConfig().getLabelKeyPrefix();
+    long listPageSize = plugin.getKuvelConfig().getListPageSize();
+    for (DiscoverySource source : sources) {
+      source.start(labelKeyPrefix, listPageSize);
+    }
+
+    healthTask =
+        plugin
+            .getProxy()
+            .getScheduler()
+            .buildTask(plugin, this::reportHealth)
+            .repeat(HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            .schedule();
+  }
+
+  public void shutdown() {
+    if (healthTask != null) {
+      healthTask.cancel();
+    }
+    for (DiscoverySource source : sources) {
+      source.stop();
+    }
+  }
+
+  /**
+   * Returns whether the primary source completed its initial list. The other sources may still be
+   * syncing, see {@link #isDeletionObservable(String)}.
+   *
+   * @return true if the cache reflects the primary namespace.
+   */
+  public boolean isSynced() {
+    return sources.get(0).isSynced();
+  }
+
+  /**
+   * Returns the future which completes when the primary source completed its initial list.
+   *
+   * @return The future of the initial sync.
+   */
+  public CompletableFuture<Void> whenSynced() {
+    return sources.get(0).whenSynced();
+  }
+
+  /**
+   * Returns whether the absence of the specified uid from its source means it was deleted. Objects
+   * of the primary source can always be listed directly. Objects of another source may only be
+   * treated as deleted after the source completed its initial list.
+   *
+   * @param uid The qualified uid.
+   * @return true if the uid may be unregistered when it is missing.
+   */
+  public boolean isDeletionObservable(String uid) {
+    DiscoverySource source = getSource(uid);
+    return source != null && (source.isPrimary() || source.isSynced());
+  }
+
+  public List<Pod> getPods() {
+    if (sources.size() == 1) {
+      return sources.get(0).getPods();
+    }
+
+    List<Pod> pods = new ArrayList<>();
+    for (DiscoverySource source : sources) {
+      pods.addAll(source.getPods());
+    }
+    return pods;
+  }
+
+  public List<ReplicaSet> getReplicaSets() {
+    if (sources.size() == 1) {
+      return sources.get(0).getReplicaSets();
+    }
+
+    List<ReplicaSet> replicaSets = new ArrayList<>();
+    for (DiscoverySource source : sources) {
+      replicaSets.addAll(source.getReplicaSets());
+    }
+    return replicaSets;
+  }
+
+  @Nullable
+  public Pod getPod(String uid) {
+    DiscoverySource source = getSource(uid);
+    return source == null ? null : source.getPod(uid);
+  }
+
+  @Nullable
+  public ReplicaSet getReplicaSet(String uid) {
+    DiscoverySource source = getSource(uid);
+    return source == null ? null : source.getReplicaSet(uid);
+  }
+
+  /**
+   * Gets the cached ReplicaSets of all sources which have the specified preferred server name.
+   *
+   * @param serverName The preferred server name.
+   * @return The ReplicaSets with the name.
+   */
+  public List<ReplicaSet> getReplicaSetsByServerName(String serverName) {
+    if (sources.size() == 1) {
+      return sources.get(0).getReplicaSetsByServerName(serverName);
+    }
+
+    List<ReplicaSet> replicaSets = new ArrayList<>();
+    for (DiscoverySource source : sources) {
+      replicaSets.addAll(source.getReplicaSetsByServerName(serverName));
+    }
+    return replicaSets;
+  }
+
+  /**
+   * Adds a handler which is notified of pod changes of all sources. The pods already in the cache
+   * are replayed to the handler as additions. Must be called after {@link #start()}.
+   *
+   * @param handler The handler to add.
+   */
+  public void addPodHandler(ResourceEventHandler<Pod> handler) {
+    for (DiscoverySource source : sources) {
+      source.addPodHandler(handler);
+    }
+  }
+
+  /**
+   * Adds a handler which is notified of ReplicaSet changes of all sources. The ReplicaSets already
+   * in the cache are replayed to the handler as additions. Must be called after {@link #start()}.
+   *
+   * @param handler The handler to add.
+   */
+  public void addReplicaSetHandler(ResourceEventHandler<ReplicaSet> handler) {
+    for (DiscoverySource source : sources) {
+      source.addReplicaSetHandler(handler);
+    }
+  }
+
+  /**
+   * Gets the source which discovers the object of the specified uid.
+   *
+   * @param uid The qualified uid.
+   * @return The source, or null if no source has the uid.
+   */
+  @Nullable
+  public DiscoverySource getSource(String uid) {
+    for (DiscoverySource source : sources) {
+      if (source.owns(uid)) {
+        return source;
+      }
+    }
+    return null;
+  }
+
+  private void reportHealth() {
+    for (DiscoverySource source : sources) {
+      Health health = source.getHealth();
+      Health previous = lastHealth.put(source, health);
+      if (health == previous || (previous == null && health == Health.HEALTHY)) {
+        continue;
+      }
+
+      if (health == Health.HEALTHY) {
+        plugin.getLogger().info("Discovery source " + source.getName() + " is healthy again.");
+      } else {
+        plugin
+            .getLogger()
+            .warn(
+                "Discovery source "
+                    + source.getName()
+                    + " is "
+                    + health.name().toLowerCase(Locale.ROOT)
+                    + ". Its last known objects are kept.");
+      }
+    }
+  }
+}
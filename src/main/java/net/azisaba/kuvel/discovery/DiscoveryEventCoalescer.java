@@ -0,0 +1,100 @@
+package net.azisaba.kuvel.discovery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.util.TaskScope;
+
+/**
+ * Collects discovery events over a short window and hands them to the flusher as one batch. Events
+ * are keyed (e.g. by pod uid), so only the latest event for a key survives until the next flush.
+ *
+ * @param <T> The type of the event.
+ */
+@RequiredArgsConstructor
+public class DiscoveryEventCoalescer<T> {
+
+  private final Kuvel plugin;
+  private final TaskScope taskScope;
+  private final long windowMillis;
+  private final int maxBatchSize;
+  private final Consumer<List<T>> flusher;
+
+  private final AtomicReference<Future<?>> taskReference = new AtomicReference<>();
+  private LinkedHashMap<String, T> pending = new LinkedHashMap<>();
+
+  /** Starts flushing the pending events every window. */
+  public void start() {
+    Future<?> task =
+        taskScope.repeat(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    Future<?> oldTask = taskReference.getAndSet(task);
+    if (oldTask != null) {
+      oldTask.cancel(false);
+    }
+  }
+
+  /** Stops the window task. Pending events are discarded. */
+  public void shutdown() {
+    Future<?> task = taskReference.getAndSet(null);
+    if (task != null) {
+      task.cancel(false);
+    }
+
+    synchronized (this) {
+      pending = new LinkedHashMap<>();
+    }
+  }
+
+  /**
+   * Adds an event to the current batch. The batch is flushed immediately when it reaches the max
+   * batch size.
+   *
+   * @param key The key of the event. A newer event replaces the pending one with the same key.
+   * @param event The event.
+   */
+  public void offer(String key, T event) {
+    List<T> batch = null;
+    synchronized (this) {
+      pending.remove(key);
+      pending.put(key, event);
+
+      if (pending.size() >= maxBatchSize) {
+        batch = new ArrayList<>(pending.values());
+        pending = new LinkedHashMap<>();
+      }
+    }
+
+    if (batch != null) {
+      accept(batch);
+    }
+  }
+
+  /** Flushes all pending events now. */
+  public void flush() {
+    List<T> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      batch = new ArrayList<>(pending.values());
+      pending = new LinkedHashMap<>();
+    }
+
+    accept(batch);
+  }
+
+  private void accept(List<T> batch) {
+    try {
+      flusher.accept(batch);
+    } catch (Exception ex) {
+      plugin.getLogger().error("Failed to apply " + batch.size() + " discovery events", ex);
+    }
+  }
+}
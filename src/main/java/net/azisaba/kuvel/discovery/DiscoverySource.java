@@ -0,0 +1,325 @@
+package net.azisaba.kuvel.discovery;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.OwnerReference;
+import io.fabric8.kubernetes.api.model.OwnerReferenceBuilder;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
+import io.fabric8.kubernetes.api.model.apps.ReplicaSet;
+import io.fabric8.kubernetes.api.model.apps.ReplicaSetBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import javax.annotation.Nullable;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.util.LabelKeys;
+
+/**
+ * A namespace of a cluster which is watched for discovery. Every source has its own client and
+ * informers, so a slow or unreachable cluster never delays the others.
+ *
+ * <p>The uids of the primary source are used as is, so existing registries stay valid. The uids of
+ * the other sources, including the uids in owner references, are qualified as {@code
+ * <source name>/<uid>}, so the objects of all sources can share one registry.
+ */
+@RequiredArgsConstructor
+public class DiscoverySource {
+
+  private static final String UID_INDEX = "uid";
+  private static final String SERVER_NAME_INDEX = "server-name";
+
+  /** The health of a source. */
+  public enum Health {
+    /** The initial list has not completed yet. */
+    STARTING,
+    /** The informers are synced and watching. */
+    HEALTHY,
+    /** The watch is lost. The objects of the last sync are served until it recovers. */
+    DISCONNECTED
+  }
+
+  // "<context>/<namespace>"
+  @Getter private final String name;
+  @Getter private final KubernetesClient client;
+  @Getter private final String namespace;
+  @Getter private final boolean primary;
+
+  // qualified copies of the objects of a non-primary source, by qualified uid
+  private final ConcurrentHashMap<String, Pod> qualifiedPods = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ReplicaSet> qualifiedReplicaSets =
+      new ConcurrentHashMap<>();
+
+  private SharedIndexInformer<Pod> podInformer;
+  private SharedIndexInformer<ReplicaSet> replicaSetInformer;
+  private final CompletableFuture<Void> synced = new CompletableFuture<>();
+
+  /**
+   * Starts the informers. They sync in the background and list in pages of the specified size.
+   *
+   * @param labelKeyPrefix The prefix of the label keys.
+   * @param listPageSize The maximum number of objects per list request.
+   */
+  public void start(String labelKeyPrefix, long listPageSize) {
+    String enableLabel = LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(labelKeyPrefix);
+    String serverNameLabel = LabelKeys.PREFERRED_SERVER_NAME.getKey(labelKeyPrefix);
+
+    podInformer =
+        client
+            .pods()
+            .inNamespace(namespace)
+            .withLabel(enableLabel, "true")
+            .withLimit(listPageSize)
+            .runnableInformer(0);
+    podInformer.addIndexers(Map.of(UID_INDEX, uidIndexFunction()));
+
+    replicaSetInformer =
+        client
+            .apps()
+            .replicaSets()
+            .inNamespace(namespace)
+            .withLabel(enableLabel, "true")
+            .withLimit(listPageSize)
+            .runnableInformer(0);
+    replicaSetInformer.addIndexers(
+        Map.of(
+            UID_INDEX,
+            uidIndexFunction(),
+            SERVER_NAME_INDEX,
+            labelIndexFunction(serverNameLabel)));
+
+    if (!primary) {
+      podInformer.addEventHandler(qualifyingHandler(qualifiedPods, this::qualify, null));
+      replicaSetInformer.addEventHandler(
+          qualifyingHandler(qualifiedReplicaSets, this::qualify, null));
+    }
+
+    CompletableFuture.allOf(
+            podInformer.start().toCompletableFuture(),
+            replicaSetInformer.start().toCompletableFuture())
+        .whenComplete(
+            (unused, throwable) -> {
+              if (throwable != null) {
+                synced.completeExceptionally(throwable);
+              } else {
+                synced.complete(null);
+              }
+            });
+  }
+
+  /**
+   * Returns the future which completes when both informers completed their initial list.
+   *
+   * @return The future of the initial sync.
+   */
+  public CompletableFuture<Void> whenSynced() {
+    return synced;
+  }
+
+  public void stop() {
+    if (podInformer != null) {
+      podInformer.stop();
+    }
+    if (replicaSetInformer != null) {
+      replicaSetInformer.stop();
+    }
+  }
+
+  public boolean isSynced() {
+    return podInformer != null
+        && replicaSetInformer != null
+        && podInformer.hasSynced()
+        && replicaSetInformer.hasSynced();
+  }
+
+  public Health getHealth() {
+    if (!isSynced()) {
+      return Health.STARTING;
+    }
+    if (!podInformer.isWatching() || !replicaSetInformer.isWatching()) {
+      return Health.DISCONNECTED;
+    }
+    return Health.HEALTHY;
+  }
+
+  /**
+   * Returns whether the qualified uid belongs to this source.
+   *
+   * @param uid The qualified uid.
+   * @return true if the object is discovered by this source.
+   */
+  public boolean owns(String uid) {
+    return primary ? uid.indexOf('/') < 0 : uid.startsWith(name + "/");
+  }
+
+  public List<Pod> getPods() {
+    if (podInformer == null) {
+      return Collections.emptyList();
+    }
+    return primary ? podInformer.getStore().list() : new ArrayList<>(qualifiedPods.values());
+  }
+
+  public List<ReplicaSet> getReplicaSets() {
+    if (replicaSetInformer == null) {
+      return Collections.emptyList();
+    }
+    return primary
+        ? replicaSetInformer.getStore().list()
+        : new ArrayList<>(qualifiedReplicaSets.values());
+  }
+
+  @Nullable
+  public Pod getPod(String uid) {
+    if (podInformer == null) {
+      return null;
+    }
+    return primary ? findByUid(podInformer, uid) : qualifiedPods.get(uid);
+  }
+
+  @Nullable
+  public ReplicaSet getReplicaSet(String uid) {
+    if (replicaSetInformer == null) {
+      return null;
+    }
+    return primary ? findByUid(replicaSetInformer, uid) : qualifiedReplicaSets.get(uid);
+  }
+
+  public List<ReplicaSet> getReplicaSetsByServerName(String serverName) {
+    if (replicaSetInformer == null) {
+      return Collections.emptyList();
+    }
+
+    List<ReplicaSet> replicaSets =
+        replicaSetInformer.getIndexer().byIndex(SERVER_NAME_INDEX, serverName);
+    if (primary || replicaSets.isEmpty()) {
+      return replicaSets;
+    }
+
+    List<ReplicaSet> qualified = new ArrayList<>(replicaSets.size());
+    for (ReplicaSet replicaSet : replicaSets) {
+      ReplicaSet copy = qualifiedReplicaSets.get(qualifyUid(replicaSet.getMetadata().getUid()));
+      if (copy != null) {
+        qualified.add(copy);
+      }
+    }
+    return qualified;
+  }
+
+  /**
+   * Adds a handler which is notified of pod changes with qualified pods.
+   *
+   * @param handler The handler to add.
+   */
+  public void addPodHandler(ResourceEventHandler<Pod> handler) {
+    podInformer.addEventHandler(
+        primary ? handler : qualifyingHandler(qualifiedPods, this::qualify, handler));
+  }
+
+  /**
+   * Adds a handler which is notified of ReplicaSet changes with qualified ReplicaSets.
+   *
+   * @param handler The handler to add.
+   */
+  public void addReplicaSetHandler(ResourceEventHandler<ReplicaSet> handler) {
+    replicaSetInformer.addEventHandler(
+        primary ? handler : qualifyingHandler(qualifiedReplicaSets, this::qualify, handler));
+  }
+
+  private String qualifyUid(String uid) {
+    return primary ? uid : name + "/" + uid;
+  }
+
+  private Pod qualify(Pod pod) {
+    return new PodBuilder(pod)
+        .editMetadata()
+        .withUid(qualifyUid(pod.getMetadata().getUid()))
+        .withOwnerReferences(qualify(pod.getMetadata().getOwnerReferences()))
+        .endMetadata()
+        .build();
+  }
+
+  private ReplicaSet qualify(ReplicaSet replicaSet) {
+    return new ReplicaSetBuilder(replicaSet)
+        .editMetadata()
+        .withUid(qualifyUid(replicaSet.getMetadata().getUid()))
+        .withOwnerReferences(qualify(replicaSet.getMetadata().getOwnerReferences()))
+        .endMetadata()
+        .build();
+  }
+
+  private List<OwnerReference> qualify(List<OwnerReference> ownerReferences) {
+    List<OwnerReference> qualified = new ArrayList<>(ownerReferences.size());
+    for (OwnerReference ownerReference : ownerReferences) {
+      qualified.add(
+          new OwnerReferenceBuilder(ownerReference)
+              .withUid(qualifyUid(ownerReference.getUid()))
+              .build());
+    }
+    return qualified;
+  }
+
+  /**
+   * Keeps the qualified copies up to date and passes them to the handler. Every handler updates
+   * the copies itself before it is notified, because the informer does not order the handlers.
+   */
+  private <T extends HasMetadata> ResourceEventHandler<T> qualifyingHandler(
+      Map<String, T> copies,
+      UnaryOperator<T> qualifier,
+      @Nullable ResourceEventHandler<T> handler) {
+    return new ResourceEventHandler<>() {
+      @Override
+      public void onAdd(T obj) {
+        T copy = qualifier.apply(obj);
+        copies.put(copy.getMetadata().getUid(), copy);
+        if (handler != null) {
+          handler.onAdd(copy);
+        }
+      }
+
+      @Override
+      public void onUpdate(T oldObj, T newObj) {
+        T copy = qualifier.apply(newObj);
+        copies.put(copy.getMetadata().getUid(), copy);
+        if (handler != null) {
+          handler.onUpdate(qualifier.apply(oldObj), copy);
+        }
+      }
+
+      @Override
+      public void onDelete(T obj, boolean deletedFinalStateUnknown) {
+        T copy = qualifier.apply(obj);
+        copies.remove(copy.getMetadata().getUid());
+        if (handler != null) {
+          handler.onDelete(copy, deletedFinalStateUnknown);
+        }
+      }
+    };
+  }
+
+  @Nullable
+  private static <T extends HasMetadata> T findByUid(SharedIndexInformer<T> informer, String uid) {
+    List<T> items = informer.getIndexer().byIndex(UID_INDEX, uid);
+    return items.isEmpty() ? null : items.get(0);
+  }
+
+  private static <T extends HasMetadata> Function<T, List<String>> labelIndexFunction(
+      String labelKey) {
+    return item -> {
+      Map<String, String> labels = item.getMetadata().getLabels();
+      String value = labels == null ? null : labels.get(labelKey);
+      return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    };
+  }
+
+  private static <T extends HasMetadata> Function<T, List<String>> uidIndexFunction() {
+    return item -> Collections.singletonList(item.getMetadata().getUid());
+  }
+}
@@ -0,0 +1,81 @@
+package net.azisaba.kuvel.discovery;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Tracks whether a handler added to the {@link DiscoveryCache} has processed the objects which
+ * were in the cache when it synced. The informer replays them to the handler asynchronously, so
+ * this completes once the handler has seen every one of them, either as an addition, an update or
+ * a deletion.
+ */
+public class ReplayTracker {
+
+  private final Set<String> seenUids = ConcurrentHashMap.newKeySet();
+  private final CompletableFuture<Void> replayed = new CompletableFuture<>();
+  @Nullable private volatile Set<String> expectedUids;
+
+  /**
+   * Waits for the cache to sync, and then for the handler to see the objects of the cache. Call
+   * this after the handler was added, so every object in the cache is notified to the handler.
+   *
+   * @param discoveryCache The cache the handler was added to.
+   * @param objects The objects of the cache the handler is notified of.
+   */
+  public void expectAfterSync(
+      DiscoveryCache discoveryCache, Supplier<List<? extends HasMetadata>> objects) {
+    discoveryCache
+        .whenSynced()
+        .whenComplete(
+            (unused, throwable) -> {
+              if (throwable != null) {
+                replayed.completeExceptionally(throwable);
+                return;
+              }
+
+              Set<String> uids = new HashSet<>();
+              for (HasMetadata object : objects.get()) {
+                uids.add(object.getMetadata().getUid());
+              }
+              expectedUids = uids;
+              checkReplayed();
+            });
+  }
+
+  /**
+   * Records that the handler processed the object. Call this after the handler processed it.
+   *
+   * @param object The object.
+   */
+  public void seen(HasMetadata object) {
+    if (replayed.isDone()) {
+      return;
+    }
+
+    seenUids.add(object.getMetadata().getUid());
+    checkReplayed();
+  }
+
+  /**
+   * Returns the future which completes when the handler has seen the objects of the cache.
+   *
+   * @return The future of the replay.
+   */
+  public CompletableFuture<Void> whenReplayed() {
+    return replayed;
+  }
+
+  private void checkReplayed() {
+    Set<String> expected = expectedUids;
+    if (expected != null && seenUids.containsAll(expected) && replayed.complete(null)) {
+      seenUids.clear();
+      expectedUids = null;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package net.azisaba.kuvel.discovery;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Tracks termination deadlines of pods in a single priority queue. Discovery drains the expired
+ * deadlines periodically and handles them in one batch instead of scheduling a task per pod.
+ */
+public class TerminationDeadlineScheduler {
+
+  private final PriorityQueue<Deadline> queue =
+      new PriorityQueue<>(Comparator.comparingLong(Deadline::getFireAt));
+  private final HashMap<String, Deadline> deadlines = new HashMap<>();
+
+  /**
+   * Schedules or reschedules the deadline of the specified pod.
+   *
+   * @param uid The pod uid.
+   * @param fireAt The epoch millis when the deadline expires.
+   */
+  public synchronized void schedule(String uid, long fireAt) {
+    Deadline current = deadlines.get(uid);
+    if (current != null) {
+      if (current.getFireAt() == fireAt) {
+        return;
+      }
+      current.cancelled = true;
+    }
+
+    Deadline deadline = new Deadline(uid, fireAt);
+    deadlines.put(uid, deadline);
+    queue.add(deadline);
+  }
+
+  /**
+   * Cancels the deadline of the specified pod if it is scheduled.
+   *
+   * @param uid The pod uid.
+   */
+  public synchronized void cancel(String uid) {
+    Deadline deadline = deadlines.remove(uid);
+    if (deadline != null) {
+      deadline.cancelled = true;
+    }
+  }
+
+  /**
+   * Removes and returns all deadlines which expired at the specified time.
+   *
+   * @param now The current epoch millis.
+   * @return The pod uid list of expired deadlines in the order of expiration.
+   */
+  public synchronized List<String> pollExpired(long now) {
+    List<String> expired = new ArrayList<>();
+    while (!queue.isEmpty() && queue.peek().getFireAt() <= now) {
+      Deadline deadline = queue.poll();
+      if (deadline.cancelled) {
+        continue;
+      }
+
+      deadlines.remove(deadline.getUid());
+      expired.add(deadline.getUid());
+    }
+    return expired;
+  }
+
+  public synchronized int size() {
+    return deadlines.size();
+  }
+
+  public synchronized void clear() {
+    queue.clear();
+    deadlines.clear();
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  private static class Deadline {
+
+    private final String uid;
+    private final long fireAt;
+    private boolean cancelled = false;
+  }
+}
@@ -1,18 +1,21 @@
 package net.azisaba.kuvel.discovery.diffchecker;
 
 import io.fabric8.kubernetes.api.model.Pod;
-import io.fabric8.kubernetes.client.KubernetesClient;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
+import javax.annotation.Nullable;
 import lombok.NoArgsConstructor;
 
 @NoArgsConstructor
 public class PodDiffChecker {
 
-  private final HashMap<String, Pod> podMap = new HashMap<>();
+  private final ConcurrentHashMap<String, Pod> podMap = new ConcurrentHashMap<>();
   private final List<BiFunction<Pod, Pod, Boolean>> comparators = new ArrayList<>();
 
   public PodDiffChecker init() {
@@ -20,6 +23,11 @@ public class PodDiffChecker {
 
     comparators.add(
         (pod1, pod2) -> Objects.equals(pod1.getStatus().getPhase(), pod2.getStatus().getPhase()));
+    comparators.add(
+        (pod1, pod2) ->
+            Objects.equals(
+                pod1.getMetadata().getDeletionTimestamp(),
+                pod2.getMetadata().getDeletionTimestamp()));
     return this;
   }
 
@@ -44,14 +52,39 @@ public class PodDiffChecker {
     return false;
   }
 
-  public List<String> getDeletedPodUidList(KubernetesClient client) {
-    List<String> uidList = new ArrayList<>(podMap.keySet());
-    client.pods().list().getItems().forEach(pod -> uidList.remove(pod.getMetadata().getUid()));
+  /**
+   * Gets the last observed state of the pod without calling the API server.
+   *
+   * @param uid The pod uid.
+   * @return The cached pod, or null if the pod is not known or already deleted.
+   */
+  @Nullable
+  public Pod getCachedPod(String uid) {
+    return podMap.get(uid);
+  }
 
-    for (String uid : uidList) {
-      podMap.remove(uid);
-    }
+  /**
+   * Gets the uids of known pods which are not in the specified pod list and forgets them.
+   *
+   * @param currentPods The current pods, e.g. from the discovery cache.
+   * @return The deleted pod uids.
+   */
+  public List<String> getDeletedPodUidList(Collection<Pod> currentPods) {
+    HashSet<String> currentUids = new HashSet<>();
+    currentPods.forEach(pod -> currentUids.add(pod.getMetadata().getUid()));
+    return getDeletedPodUidList(currentUids);
+  }
 
+  /**
+   * Gets the uids of known pods which are not in the specified uid set and forgets them.
+   *
+   * @param currentUids The uids of the current pods, e.g. collected while listing page by page.
+   * @return The deleted pod uids.
+   */
+  public List<String> getDeletedPodUidList(Set<String> currentUids) {
+    List<String> uidList = new ArrayList<>(podMap.keySet());
+    uidList.removeAll(currentUids);
+    uidList.forEach(podMap::remove);
     return uidList;
   }
 }
@@ -1,11 +1,13 @@
 package net.azisaba.kuvel.discovery.diffchecker;
 
 import io.fabric8.kubernetes.api.model.apps.ReplicaSet;
-import io.fabric8.kubernetes.client.KubernetesClient;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.BiFunction;
 import lombok.NoArgsConstructor;
 
@@ -45,19 +47,29 @@ public class ReplicaSetDiffChecker {
     return false;
   }
 
-  public List<String> getDeletedReplicaSetUidList(KubernetesClient client) {
-    List<String> uidList = new ArrayList<>(replicaSetMap.keySet());
-    client
-        .apps()
-        .replicaSets()
-        .list()
-        .getItems()
-        .forEach(pod -> uidList.remove(pod.getMetadata().getUid()));
-
-    for (String uid : uidList) {
-      replicaSetMap.remove(uid);
-    }
+  /**
+   * Gets the uids of known ReplicaSets which are not in the specified list and forgets them.
+   *
+   * @param currentReplicaSets The current ReplicaSets, e.g. from the discovery cache.
+   * @return The deleted ReplicaSet uids.
+   */
+  public List<String> getDeletedReplicaSetUidList(Collection<ReplicaSet> currentReplicaSets) {
+    HashSet<String> currentUids = new HashSet<>();
+    currentReplicaSets.forEach(replicaSet -> currentUids.add(replicaSet.getMetadata().getUid()));
+    return getDeletedReplicaSetUidList(currentUids);
+  }
 
+  /**
+   * Gets the uids of known ReplicaSets which are not in the specified uid set and forgets them.
+   *
+   * @param currentUids The uids of the current ReplicaSets, e.g. collected while listing page by
+   *     page.
+   * @return The deleted ReplicaSet uids.
+   */
+  public List<String> getDeletedReplicaSetUidList(Set<String> currentUids) {
+    List<String> uidList = new ArrayList<>(replicaSetMap.keySet());
+    uidList.removeAll(currentUids);
+    uidList.forEach(replicaSetMap::remove);
     return uidList;
   }
 }
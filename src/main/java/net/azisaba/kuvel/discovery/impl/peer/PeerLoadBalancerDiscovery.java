@@ -0,0 +1,180 @@
+package net.azisaba.kuvel.discovery.impl.peer;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+import io.fabric8.kubernetes.api.model.apps.ReplicaSet;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import java.net.InetSocketAddress;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
+import net.azisaba.kuvel.discovery.ReplayTracker;
+import net.azisaba.kuvel.discovery.LoadBalancerDiscovery;
+import net.azisaba.kuvel.loadbalancer.LoadBalancer;
+import net.azisaba.kuvel.loadbalancer.strategy.impl.RoundRobinLoadBalancingStrategy;
+import net.azisaba.kuvel.util.LabelKeys;
+
+/**
+ * Discovers load balancers on every proxy from the events of the {@link DiscoveryCache} without
+ * Redis. When several ReplicaSets with replicas want the same server name, e.g. during a rollout,
+ * the oldest one gets it, so all proxies pick the same ReplicaSet without coordinating.
+ */
+@RequiredArgsConstructor
+public class PeerLoadBalancerDiscovery implements LoadBalancerDiscovery {
+
+  private static final Comparator<ReplicaSet> OLDEST_FIRST =
+      Comparator.comparing(
+              (ReplicaSet replicaSet) -> replicaSet.getMetadata().getCreationTimestamp(),
+              Comparator.nullsLast(Comparator.naturalOrder()))
+          .thenComparing(replicaSet -> replicaSet.getMetadata().getUid());
+
+  private final Kuvel plugin;
+  private final KuvelServiceHandler kuvelServiceHandler;
+  private final DiscoveryCache discoveryCache;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final ReplayTracker replayTracker = new ReplayTracker();
+
+  private volatile boolean running = false;
+
+  @Override
+  public void start() {
+    running = true;
+
+    discoveryCache.addReplicaSetHandler(
+        new ResourceEventHandler<>() {
+          @Override
+          public void onAdd(ReplicaSet replicaSet) {
+            reconcile(getServerName(replicaSet));
+            replayTracker.seen(replicaSet);
+          }
+
+          @Override
+          public void onUpdate(ReplicaSet oldReplicaSet, ReplicaSet newReplicaSet) {
+            String oldServerName = getServerName(oldReplicaSet);
+            String newServerName = getServerName(newReplicaSet);
+            if (!Objects.equals(oldServerName, newServerName)) {
+              reconcile(oldServerName);
+            }
+            reconcile(newServerName);
+            replayTracker.seen(newReplicaSet);
+          }
+
+          @Override
+          public void onDelete(ReplicaSet replicaSet, boolean deletedFinalStateUnknown) {
+            reconcile(getServerName(replicaSet));
+            replayTracker.seen(replicaSet);
+          }
+        });
+    replayTracker.expectAfterSync(discoveryCache, discoveryCache::getReplicaSets);
+  }
+
+  /**
+   * Returns the future which completes when the ReplicaSets which were in the cache when it synced
+   * are reconciled.
+   *
+   * @return The future of the replay.
+   */
+  public CompletableFuture<Void> whenReplayed() {
+    return replayTracker.whenReplayed();
+  }
+
+  @Override
+  public void shutdown() {
+    running = false;
+  }
+
+  /** Does nothing. The ReplicaSets which exist at startup are replayed by the informer. */
+  @Override
+  public void registerLoadBalancersForStartup() {}
+
+  /**
+   * Registers the load balancer of the specified name to the oldest ReplicaSet with replicas
+   * which wants the name, or unregisters it if there is none.
+   *
+   * @param serverName The server name of the load balancer.
+   */
+  private void reconcile(@Nullable String serverName) {
+    if (!running || serverName == null) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      ReplicaSet owner =
+          discoveryCache.getReplicaSetsByServerName(serverName).stream()
+              .filter(replicaSet -> getReplicas(replicaSet) > 0)
+              .min(OLDEST_FIRST)
+              .orElse(null);
+      String ownerUid = owner == null ? null : owner.getMetadata().getUid();
+      String registeredUid =
+          kuvelServiceHandler.getReplicaSetUidAndServerNameMap().getUidFromServerName(serverName);
+      if (Objects.equals(ownerUid, registeredUid)) {
+        return;
+      }
+
+      if (registeredUid != null) {
+        kuvelServiceHandler.unregisterLoadBalancer(registeredUid);
+      }
+      if (owner != null) {
+        register(owner, serverName);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void register(ReplicaSet replicaSet, String serverName) {
+    if (kuvelServiceHandler.isServerNameUsed(serverName)) {
+      plugin
+          .getLogger()
+          .warn(
+              "Skipped registering load balancer "
+                  + serverName
+                  + " because the name is already used");
+      return;
+    }
+
+    Map<String, String> labels = replicaSet.getMetadata().getLabels();
+    boolean initialServer =
+        labels
+            .getOrDefault(
+                LabelKeys.INITIAL_SERVER.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()),
+                "false")
+            .equalsIgnoreCase("true");
+
+    RegisteredServer server =
+        plugin
+            .getProxy()
+            .registerServer(new ServerInfo(serverName, new InetSocketAddress("0.0.0.0", 0)));
+
+    kuvelServiceHandler.registerLoadBalancer(
+        new LoadBalancer(
+            plugin.getProxy(),
+            server,
+            new RoundRobinLoadBalancingStrategy(),
+            replicaSet.getMetadata().getUid(),
+            initialServer));
+  }
+
+  @Nullable
+  private String getServerName(ReplicaSet replicaSet) {
+    Map<String, String> labels = replicaSet.getMetadata().getLabels();
+    return labels == null
+        ? null
+        : labels.get(
+            LabelKeys.PREFERRED_SERVER_NAME.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()));
+  }
+
+  private static int getReplicas(ReplicaSet replicaSet) {
+    Integer replicas = replicaSet.getStatus() == null ? null : replicaSet.getStatus().getReplicas();
+    return replicas == null ? 0 : replicas;
+  }
+}
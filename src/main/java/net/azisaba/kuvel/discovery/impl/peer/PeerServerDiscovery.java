@@ -0,0 +1,212 @@
+package net.azisaba.kuvel.discovery.impl.peer;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
+import net.azisaba.kuvel.discovery.ReplayTracker;
+import net.azisaba.kuvel.discovery.ServerDiscovery;
+import net.azisaba.kuvel.discovery.TerminationDeadlineScheduler;
+import net.azisaba.kuvel.util.TaskScope;
+import org.apache.commons.lang3.time.DateFormatUtils;
+
+/**
+ * Discovers servers on every proxy from the events of the {@link DiscoveryCache} without Redis.
+ * The server names are derived with {@link PeerServerNames}, so all proxies reach the same
+ * registry without coordinating.
+ */
+@RequiredArgsConstructor
+public class PeerServerDiscovery implements ServerDiscovery {
+
+  private static final long UNREGISTER_BEFORE_DELETION_MILLIS = TimeUnit.SECONDS.toMillis(50);
+
+  private final Kuvel plugin;
+  private final KuvelServiceHandler kuvelServiceHandler;
+  private final DiscoveryCache discoveryCache;
+
+  private final AtomicReference<TaskScope> taskScopeReference = new AtomicReference<>();
+  private final TerminationDeadlineScheduler terminationDeadlineScheduler =
+      new TerminationDeadlineScheduler();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final ReplayTracker replayTracker = new ReplayTracker();
+  // pods whose name is taken by a server not managed by Kuvel, so the conflict is logged once
+  private final Set<String> conflictingPodUids = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean running = false;
+
+  @Override
+  public void start() {
+    running = true;
+
+    // the informer replays the cached pods as additions, so this also registers the servers
+    // which exist at startup
+    discoveryCache.addPodHandler(
+        new ResourceEventHandler<>() {
+          @Override
+          public void onAdd(Pod pod) {
+            processUpdatedPod(pod);
+            replayTracker.seen(pod);
+          }
+
+          @Override
+          public void onUpdate(Pod oldPod, Pod newPod) {
+            processUpdatedPod(newPod);
+            replayTracker.seen(newPod);
+          }
+
+          @Override
+          public void onDelete(Pod pod, boolean deletedFinalStateUnknown) {
+            unregisterPod(pod.getMetadata().getUid());
+            replayTracker.seen(pod);
+          }
+        });
+    replayTracker.expectAfterSync(discoveryCache, discoveryCache::getPods);
+
+    TaskScope taskScope = plugin.getKuvelExecutor().newScope("server-discovery");
+    TaskScope oldScope = taskScopeReference.getAndSet(taskScope);
+    if (oldScope != null) {
+      oldScope.cancel();
+    }
+    taskScope.repeat(this::processExpiredTerminationDeadlines, 0, 1, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void shutdown() {
+    running = false;
+    TaskScope scope = taskScopeReference.getAndSet(null);
+    if (scope != null) {
+      scope.cancel();
+    }
+    terminationDeadlineScheduler.clear();
+  }
+
+  /**
+   * Returns the future which completes when the pods which were in the cache when it synced are
+   * registered.
+   *
+   * @return The future of the replay.
+   */
+  public CompletableFuture<Void> whenReplayed() {
+    return replayTracker.whenReplayed();
+  }
+
+  /**
+   * Returns no servers. The servers which exist at startup are registered by {@link #start()} as
+   * the informer replays them.
+   */
+  @Override
+  public HashMap<String, Pod> getServersForStartup() {
+    return new HashMap<>();
+  }
+
+  private void processUpdatedPod(Pod pod) {
+    if (!running) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      String uid = pod.getMetadata().getUid();
+      if (pod.getMetadata().getDeletionTimestamp() != null) {
+        try {
+          Date deletionEndDate =
+              DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.parse(
+                  pod.getMetadata().getDeletionTimestamp());
+          long unregisterAt = deletionEndDate.getTime() - UNREGISTER_BEFORE_DELETION_MILLIS;
+
+          if (unregisterAt <= System.currentTimeMillis()) {
+            terminationDeadlineScheduler.cancel(uid);
+            kuvelServiceHandler.unregisterPod(uid);
+          } else {
+            terminationDeadlineScheduler.schedule(uid, unregisterAt);
+          }
+        } catch (ParseException e) {
+          plugin.getLogger().warn("Failed to parse the deletion timestamp of pod " + uid, e);
+        }
+      } else if ("Running".equalsIgnoreCase(pod.getStatus().getPhase())
+          && !kuvelServiceHandler.isPodRegistered(uid)) {
+        registerPod(pod);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void unregisterPod(String uid) {
+    if (!running) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      conflictingPodUids.remove(uid);
+      terminationDeadlineScheduler.cancel(uid);
+      kuvelServiceHandler.unregisterPod(uid);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void processExpiredTerminationDeadlines() {
+    List<String> expiredUidList =
+        terminationDeadlineScheduler.pollExpired(System.currentTimeMillis());
+    if (expiredUidList.isEmpty()) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      for (String uid : expiredUidList) {
+        Pod pod = discoveryCache.getPod(uid);
+        if (pod != null && pod.getMetadata().getDeletionTimestamp() == null) {
+          continue;
+        }
+
+        kuvelServiceHandler.unregisterPod(uid);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Registers the pod with its derived name. The name is never changed on conflict, since the other
+   * proxies would not know about it. A pod whose name is taken by a server which is not managed by
+   * Kuvel, e.g. a server in velocity.toml, is not registered on this proxy.
+   */
+  private void registerPod(Pod pod) {
+    String uid = pod.getMetadata().getUid();
+    String serverName =
+        PeerServerNames.getServerName(pod, plugin.getKuvelConfig().getLabelKeyPrefix());
+    String ownerUid =
+        kuvelServiceHandler.getPodUidAndServerNameMap().getUidFromServerName(serverName);
+    if (ownerUid == null && kuvelServiceHandler.isServerNameUsed(serverName)) {
+      if (conflictingPodUids.add(uid)) {
+        plugin
+            .getLogger()
+            .warn(
+                "Pod "
+                    + uid
+                    + " is not registered because its server name "
+                    + serverName
+                    + " is used by a server which is not managed by Kuvel");
+      }
+      return;
+    }
+
+    conflictingPodUids.remove(uid);
+    kuvelServiceHandler.registerPod(pod, serverName);
+  }
+}
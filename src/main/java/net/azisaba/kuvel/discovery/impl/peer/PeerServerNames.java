@@ -0,0 +1,94 @@
+package net.azisaba.kuvel.discovery.impl.peer;
+
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+import io.fabric8.kubernetes.api.model.OwnerReference;
+import io.fabric8.kubernetes.api.model.Pod;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import javax.annotation.Nullable;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import net.azisaba.kuvel.util.LabelKeys;
+
+/**
+ * Derives server names from pod metadata only, so every proxy names a pod the same without
+ * coordinating with the others.
+ *
+ * <p>A pod managed by a controller is named {@code <preferred>-<suffix>}. The suffix is the
+ * ordinal for StatefulSet pods and the random part of the generated pod name for other pods, e.g.
+ * {@code lobby-x7k2p} for the pod {@code lobby-6d4f9-x7k2p}. The suffix of a pod without a
+ * controller is the first 8 hex digits of the SHA-1 of the pod uid, since two such pods may share
+ * the preferred name and which one a proxy sees first differs between the proxies.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class PeerServerNames {
+
+  private static final int HASH_SUFFIX_LENGTH = 8;
+
+  /**
+   * Gets the server name of the pod.
+   *
+   * @param pod The pod.
+   * @param labelKeyPrefix The prefix of the label keys.
+   * @return The server name.
+   */
+  public static String getServerName(Pod pod, String labelKeyPrefix) {
+    String preferredServerName = getPreferredServerName(pod, labelKeyPrefix);
+    String suffix = getControllerSuffix(pod.getMetadata());
+    if (suffix == null) {
+      suffix = hashSuffix(pod.getMetadata().getUid());
+    }
+    return preferredServerName + "-" + suffix;
+  }
+
+  private static String getPreferredServerName(Pod pod, String labelKeyPrefix) {
+    Map<String, String> labels = pod.getMetadata().getLabels();
+    String preferredServerName =
+        labels == null ? null : labels.get(LabelKeys.PREFERRED_SERVER_NAME.getKey(labelKeyPrefix));
+    return preferredServerName == null ? pod.getMetadata().getName() : preferredServerName;
+  }
+
+  @Nullable
+  private static String getControllerSuffix(ObjectMeta metadata) {
+    OwnerReference controller = null;
+    for (OwnerReference ownerReference : metadata.getOwnerReferences()) {
+      if (Boolean.TRUE.equals(ownerReference.getController())) {
+        controller = ownerReference;
+        break;
+      }
+    }
+    if (controller == null) {
+      return null;
+    }
+
+    String name = metadata.getName();
+    if ("StatefulSet".equals(controller.getKind())) {
+      return name.substring(name.lastIndexOf('-') + 1);
+    }
+
+    String generateName = metadata.getGenerateName();
+    if (generateName != null
+        && name.length() > generateName.length()
+        && name.startsWith(generateName)) {
+      return name.substring(generateName.length());
+    }
+    return hashSuffix(metadata.getUid());
+  }
+
+  private static String hashSuffix(String uid) {
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-1").digest(uid.getBytes(StandardCharsets.UTF_8));
+      StringBuilder builder = new StringBuilder(HASH_SUFFIX_LENGTH);
+      for (int i = 0; builder.length() < HASH_SUFFIX_LENGTH; i++) {
+        builder.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+        builder.append(Character.forDigit(hash[i] & 0xF, 16));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+}
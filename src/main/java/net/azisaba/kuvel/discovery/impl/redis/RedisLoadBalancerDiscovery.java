@@ -2,28 +2,36 @@ package net.azisaba.kuvel.discovery.impl.redis;
 
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 import com.velocitypowered.api.proxy.server.ServerInfo;
-import com.velocitypowered.api.scheduler.ScheduledTask;
 import io.fabric8.kubernetes.api.model.apps.ReplicaSet;
+import io.fabric8.kubernetes.api.model.apps.ReplicaSetList;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
+import io.fabric8.kubernetes.client.dsl.RollableScalableResource;
 import java.net.InetSocketAddress;
 import java.util.ArrayDeque;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import lombok.RequiredArgsConstructor;
 import net.azisaba.kuvel.Kuvel;
 import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
 import net.azisaba.kuvel.discovery.LoadBalancerDiscovery;
 import net.azisaba.kuvel.discovery.diffchecker.ReplicaSetDiffChecker;
 import net.azisaba.kuvel.loadbalancer.LoadBalancer;
 import net.azisaba.kuvel.loadbalancer.strategy.impl.RoundRobinLoadBalancingStrategy;
 import net.azisaba.kuvel.redis.RedisConnectionLeader;
 import net.azisaba.kuvel.redis.RedisKeys;
+import net.azisaba.kuvel.redis.ShardCoordinator;
 import net.azisaba.kuvel.util.LabelKeys;
+import net.azisaba.kuvel.util.TaskScope;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
@@ -37,59 +45,140 @@ public class RedisLoadBalancerDiscovery implements LoadBalancerDiscovery {
   private final String groupName;
   private final RedisConnectionLeader redisConnectionLeader;
   private final KuvelServiceHandler kuvelServiceHandler;
+  // null if warm standby is disabled
+  @Nullable private final DiscoveryCache discoveryCache;
 
-  private final AtomicReference<ScheduledTask> taskReference = new AtomicReference<>();
+  // the tasks of the current run, cancelled together on shutdown, e.g. when the leadership is lost
+  private final AtomicReference<TaskScope> taskScopeReference = new AtomicReference<>();
   private final ReplicaSetDiffChecker replicaSetDiffChecker = new ReplicaSetDiffChecker().init();
   private final ReentrantLock lock = new ReentrantLock();
+  private final Runnable rebalanceListener = this::rebalance;
 
   private final HashMap<String, ArrayDeque<String>> loadBalancerDeleteWaitQueues = new HashMap<>();
 
   @Override
   public void start() {
-    if (!redisConnectionLeader.isLeader()) {
+    if (!redisConnectionLeader.isWriter()) {
       return;
     }
 
+    if (isCacheSynced()) {
+      hydrate(getCachedReplicaSets());
+    }
+
+    ShardCoordinator shardCoordinator = plugin.getShardCoordinator();
+    if (shardCoordinator != null) {
+      shardCoordinator.addRebalanceListener(rebalanceListener);
+    }
+
     Runnable runnable =
         () -> {
-          String labelKeyPrefix = plugin.getKuvelConfig().getLabelKeyPrefix();
-          List<ReplicaSet> replicaSetList =
-              client
-                  .apps()
-                  .replicaSets()
-                  .inNamespace(namespace)
-                  .withLabel(LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(labelKeyPrefix), "true")
-                  .withLabel(LabelKeys.PREFERRED_SERVER_NAME.getKey(labelKeyPrefix))
-                  .list()
-                  .getItems();
-
-          for (ReplicaSet replicaSet : replicaSetList) {
-            if (replicaSetDiffChecker.diff(replicaSet)) {
-              processUpdatedReplicaSet(replicaSet);
-            }
+          HashSet<String> replicaSetUids = new HashSet<>();
+          Consumer<ReplicaSet> visitor =
+              replicaSet -> {
+                String uid = replicaSet.getMetadata().getUid();
+                replicaSetUids.add(uid);
+                if (replicaSetDiffChecker.diff(replicaSet)
+                    && redisConnectionLeader.isResponsibleFor(uid)) {
+                  processUpdatedReplicaSet(replicaSet);
+                }
+              };
+          if (isCacheSynced()) {
+            getCachedReplicaSets().forEach(visitor);
+          } else {
+            forEachReplicaSet(visitor);
           }
 
           List<String> deletedReplicaSetUid =
-              replicaSetDiffChecker.getDeletedReplicaSetUidList(client);
+              replicaSetDiffChecker.getDeletedReplicaSetUidList(replicaSetUids);
 
           for (String uid : deletedReplicaSetUid) {
-            unregisterOrIgnore(uid);
+            if (redisConnectionLeader.isResponsibleFor(uid) && isDeletionObservable(uid)) {
+              unregisterOrIgnore(uid);
+            }
           }
+
+          retryWaitingLoadBalancers();
         };
 
-    taskReference.getAndUpdate(
-        task -> {
-          if (task != null) {
-            task.cancel();
-          }
+    TaskScope taskScope = plugin.getKuvelExecutor().newScope("load-balancer-discovery");
+    TaskScope oldScope = taskScopeReference.getAndSet(taskScope);
+    if (oldScope != null) {
+      oldScope.cancel();
+    }
+    taskScope.repeat(
+        plugin.getMetrics().getReplicaSetDiscoveryTicks().timed(runnable), 0, 5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Seeds the diff checker with the cached ReplicaSets, so the first tick only processes
+   * ReplicaSets which changed afterwards. Only the ReplicaSets whose state does not match the
+   * registry are processed now.
+   *
+   * @param replicaSets The cached ReplicaSets.
+   */
+  private void hydrate(List<ReplicaSet> replicaSets) {
+    lock.lock();
+    try {
+      HashSet<String> replicaSetUids = new HashSet<>();
+      for (ReplicaSet replicaSet : replicaSets) {
+        String uid = replicaSet.getMetadata().getUid();
+        replicaSetUids.add(uid);
+        replicaSetDiffChecker.diff(replicaSet);
+
+        boolean registered =
+            kuvelServiceHandler.getReplicaSetUidAndServerNameMap().getServerNameFromUid(uid)
+                != null;
+        if (redisConnectionLeader.isResponsibleFor(uid)
+            && registered == replicaSet.getStatus().getReplicas() <= 0) {
+          processUpdatedReplicaSet(replicaSet);
+        }
+      }
+
+      for (String uid :
+          kuvelServiceHandler.getReplicaSetUidAndServerNameMap().getAllMap().keySet()) {
+        if (!replicaSetUids.contains(uid)
+            && redisConnectionLeader.isResponsibleFor(uid)
+            && isDeletionObservable(uid)) {
+          unregisterOrIgnore(uid);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
 
-          return plugin
-              .getProxy()
-              .getScheduler()
-              .buildTask(plugin, runnable)
-              .repeat(5, TimeUnit.SECONDS)
-              .schedule();
-        });
+  /** Takes over the ReplicaSets which this proxy owns after the shard members changed. */
+  private void rebalance() {
+    hydrate(isCacheSynced() ? getCachedReplicaSets() : listReplicaSets());
+  }
+
+  /**
+   * Registers the waiting ReplicaSets whose server name became free. The name may be released by
+   * another shard member, so this does not rely on the unregistration of this proxy.
+   */
+  private void retryWaitingLoadBalancers() {
+    lock.lock();
+    try {
+      // registering may queue the ReplicaSet again, so iterate over a copy
+      for (Map.Entry<String, ArrayDeque<String>> entry :
+          new ArrayList<>(loadBalancerDeleteWaitQueues.entrySet())) {
+        String serverName = entry.getKey();
+        if (entry.getValue().isEmpty() || kuvelServiceHandler.isServerNameUsed(serverName)) {
+          continue;
+        }
+
+        ReplicaSet nextReplicaSet = null;
+        while (!entry.getValue().isEmpty() && nextReplicaSet == null) {
+          nextReplicaSet = getReplicaSetFromUid(entry.getValue().poll());
+        }
+        if (nextReplicaSet != null) {
+          registerOrIgnore(nextReplicaSet);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
   private void processUpdatedReplicaSet(ReplicaSet replicaSet) {
@@ -132,45 +221,49 @@ public class RedisLoadBalancerDiscovery implements LoadBalancerDiscovery {
       return;
     }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      if (!isFetchedFromRedis) {
-        Collection<String> loadBalancerNames =
-            jedis.hgetAll(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName).values();
-
-        if (loadBalancerNames.contains(serverName)
-            || plugin.getProxy().getServer(serverName).isPresent()) {
+    if (!isFetchedFromRedis && kuvelServiceHandler.isServerNameUsed(serverName)) {
+      waitForDeletion(serverName, uid);
+      return;
+    }
 
-          if (loadBalancerDeleteWaitQueues.containsKey(serverName)) {
-            ArrayDeque<String> queue = loadBalancerDeleteWaitQueues.get(serverName);
-            if (!queue.contains(uid)) {
-              queue.add(uid);
-            }
-          } else {
-            ArrayDeque<String> queue = new ArrayDeque<>();
-            queue.add(uid);
-            loadBalancerDeleteWaitQueues.put(serverName, queue);
-          }
-          return;
-        }
-      }
+    // followers only mirror the registry, the leader owns the writes
+    boolean writeToRedis =
+        !isFetchedFromRedis
+            || (redisConnectionLeader.isWriter() && redisConnectionLeader.isResponsibleFor(uid));
+    if (writeToRedis
+        && !redisConnectionLeader.registerLoadBalancer(uid, serverName, initialServer)) {
+      waitForDeletion(serverName, uid);
+      return;
+    }
 
-      kuvelServiceHandler.getReplicaSetUidAndServerNameMap().register(uid, serverName);
-      jedis.hset(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName, uid, serverName);
+    kuvelServiceHandler.getReplicaSetUidAndServerNameMap().register(uid, serverName);
 
-      redisConnectionLeader.publishNewLoadBalancer(uid, serverName, initialServer);
+    RegisteredServer server =
+        plugin
+            .getProxy()
+            .registerServer(new ServerInfo(serverName, new InetSocketAddress("0.0.0.0", 0)));
 
-      RegisteredServer server =
-          plugin
-              .getProxy()
-              .registerServer(new ServerInfo(serverName, new InetSocketAddress("0.0.0.0", 0)));
+    kuvelServiceHandler.registerLoadBalancer(
+        new LoadBalancer(
+            plugin.getProxy(),
+            server,
+            new RoundRobinLoadBalancingStrategy(),
+            uid,
+            initialServer));
+  }
 
-      kuvelServiceHandler.registerLoadBalancer(
-          new LoadBalancer(
-              plugin.getProxy(),
-              server,
-              new RoundRobinLoadBalancingStrategy(),
-              uid,
-              initialServer));
+  /**
+   * Queues the ReplicaSet to be registered after the server which currently uses the name is
+   * deleted.
+   *
+   * @param serverName The server name the ReplicaSet wants to use.
+   * @param uid The ReplicaSet uid.
+   */
+  private void waitForDeletion(String serverName, String uid) {
+    ArrayDeque<String> queue =
+        loadBalancerDeleteWaitQueues.computeIfAbsent(serverName, k -> new ArrayDeque<>());
+    if (!queue.contains(uid)) {
+      queue.add(uid);
     }
   }
 
@@ -183,11 +276,7 @@ public class RedisLoadBalancerDiscovery implements LoadBalancerDiscovery {
     }
 
     kuvelServiceHandler.unregisterLoadBalancer(uid);
-    redisConnectionLeader.publishDeletedLoadBalancer(uid);
-
-    try (Jedis jedis = jedisPool.getResource()) {
-      jedis.hdel(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName, uid);
-    }
+    redisConnectionLeader.unregisterLoadBalancer(uid);
 
     ArrayDeque<String> nextUidQueue = loadBalancerDeleteWaitQueues.get(serverName);
     if (nextUidQueue == null) {
@@ -207,51 +296,53 @@ public class RedisLoadBalancerDiscovery implements LoadBalancerDiscovery {
 
     final ReplicaSet finalNextReplicaSet = nextReplicaSet;
 
-    plugin
-        .getProxy()
-        .getScheduler()
-        .buildTask(plugin, () -> registerOrIgnore(finalNextReplicaSet))
-        .delay(0, TimeUnit.SECONDS)
-        .schedule();
+    TaskScope taskScope = taskScopeReference.get();
+    if (taskScope != null) {
+      taskScope.submit(() -> registerOrIgnore(finalNextReplicaSet));
+    }
   }
 
   @Override
   public void shutdown() {
-    taskReference.getAndUpdate(
-        task -> {
-          if (task != null) {
-            task.cancel();
-          }
-          return null;
-        });
+    ShardCoordinator shardCoordinator = plugin.getShardCoordinator();
+    if (shardCoordinator != null) {
+      shardCoordinator.removeRebalanceListener(rebalanceListener);
+    }
+    TaskScope scope = taskScopeReference.getAndSet(null);
+    if (scope != null) {
+      scope.cancel();
+    }
   }
 
   @Override
   public void registerLoadBalancersForStartup() {
-    if (redisConnectionLeader.isLeader()) {
+    // one snapshot for all lookups instead of a list request per registered load balancer
+    Map<String, ReplicaSet> replicaSetsByUid = new HashMap<>();
+    for (ReplicaSet replicaSet : isCacheSynced() ? getCachedReplicaSets() : listReplicaSets()) {
+      replicaSetsByUid.put(replicaSet.getMetadata().getUid(), replicaSet);
+    }
+
+    if (redisConnectionLeader.isWriter()) {
       try (Jedis jedis = jedisPool.getResource()) {
         Map<String, String> uidAndServerNameMapInRedis =
             jedis.hgetAll(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName);
         for (Map.Entry<String, String> entry : uidAndServerNameMapInRedis.entrySet()) {
-          ReplicaSet replicaSet = getReplicaSetFromUid(entry.getKey());
+          ReplicaSet replicaSet = replicaSetsByUid.get(entry.getKey());
           if (replicaSet == null) {
-            jedis.hdel(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName, entry.getKey());
+            if (redisConnectionLeader.isResponsibleFor(entry.getKey())
+                && isDeletionObservable(entry.getKey())) {
+              redisConnectionLeader.unregisterLoadBalancer(entry.getKey());
+            }
             continue;
           }
           registerOrIgnore(replicaSet, true);
         }
 
-        String labelKeyPrefix = plugin.getKuvelConfig().getLabelKeyPrefix();
-        client
-            .apps()
-            .replicaSets()
-            .inNamespace(namespace)
-            .withLabel(LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(labelKeyPrefix), "true")
-            .withLabel(LabelKeys.PREFERRED_SERVER_NAME.getKey(labelKeyPrefix))
-            .list()
-            .getItems()
-            .stream()
+        replicaSetsByUid.values().stream()
             .filter(replicaSet -> replicaSet.getStatus().getReplicas() > 0)
+            .filter(
+                replicaSet ->
+                    redisConnectionLeader.isResponsibleFor(replicaSet.getMetadata().getUid()))
             .filter(
                 replicaSet ->
                     !uidAndServerNameMapInRedis.containsKey(replicaSet.getMetadata().getUid()))
@@ -262,7 +353,7 @@ public class RedisLoadBalancerDiscovery implements LoadBalancerDiscovery {
         Map<String, String> uidAndServerNameMapInRedis =
             jedis.hgetAll(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName);
         for (Map.Entry<String, String> entry : uidAndServerNameMapInRedis.entrySet()) {
-          ReplicaSet replicaSet = getReplicaSetFromUid(entry.getKey());
+          ReplicaSet replicaSet = replicaSetsByUid.get(entry.getKey());
           if (replicaSet == null) {
             continue;
           }
@@ -272,19 +363,71 @@ public class RedisLoadBalancerDiscovery implements LoadBalancerDiscovery {
     }
   }
 
-  private ReplicaSet getReplicaSetFromUid(String uid) {
+  private boolean isCacheSynced() {
+    return discoveryCache != null && discoveryCache.isSynced();
+  }
+
+  private boolean isDeletionObservable(String uid) {
+    return discoveryCache == null || discoveryCache.isDeletionObservable(uid);
+  }
+
+  private List<ReplicaSet> listReplicaSets() {
+    return plugin
+        .getKubernetesAccess()
+        .list("replicasets/" + namespace + "/load-balancers", discoveryReplicaSets());
+  }
+
+  private void forEachReplicaSet(Consumer<ReplicaSet> consumer) {
+    plugin.getKubernetesAccess().forEach(discoveryReplicaSets(), consumer);
+  }
+
+  private FilterWatchListDeletable<ReplicaSet, ReplicaSetList, RollableScalableResource<ReplicaSet>>
+      discoveryReplicaSets() {
     String labelKeyPrefix = plugin.getKuvelConfig().getLabelKeyPrefix();
     return client
         .apps()
         .replicaSets()
         .inNamespace(namespace)
         .withLabel(LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(labelKeyPrefix), "true")
-        .withLabel(LabelKeys.PREFERRED_SERVER_NAME.getKey(labelKeyPrefix))
-        .list()
-        .getItems()
-        .stream()
-        .filter(replicaSet -> replicaSet.getMetadata().getUid().equals(uid))
-        .findAny()
-        .orElse(null);
+        .withLabel(LabelKeys.PREFERRED_SERVER_NAME.getKey(labelKeyPrefix));
+  }
+
+  /**
+   * Gets the cached ReplicaSets which have a preferred server name, the same as {@link
+   * #listReplicaSets()} returns.
+   */
+  private List<ReplicaSet> getCachedReplicaSets() {
+    String preferredServerNameKey =
+        LabelKeys.PREFERRED_SERVER_NAME.getKey(plugin.getKuvelConfig().getLabelKeyPrefix());
+    List<ReplicaSet> replicaSets = new ArrayList<>();
+    for (ReplicaSet replicaSet : discoveryCache.getReplicaSets()) {
+      Map<String, String> labels = replicaSet.getMetadata().getLabels();
+      if (labels != null && labels.containsKey(preferredServerNameKey)) {
+        replicaSets.add(replicaSet);
+      }
+    }
+    return replicaSets;
+  }
+
+  @Nullable
+  private ReplicaSet getReplicaSetFromUid(String uid) {
+    if (isCacheSynced()) {
+      ReplicaSet replicaSet = discoveryCache.getReplicaSet(uid);
+      if (replicaSet == null
+          || !replicaSet
+              .getMetadata()
+              .getLabels()
+              .containsKey(
+                  LabelKeys.PREFERRED_SERVER_NAME.getKey(
+                      plugin.getKuvelConfig().getLabelKeyPrefix()))) {
+        return null;
+      }
+      return replicaSet;
+    }
+
+    return plugin
+        .getKubernetesAccess()
+        .findFirst(
+            discoveryReplicaSets(), replicaSet -> replicaSet.getMetadata().getUid().equals(uid));
   }
 }
@@ -1,28 +1,44 @@
 package net.azisaba.kuvel.discovery.impl.redis;
 
-import com.velocitypowered.api.scheduler.ScheduledTask;
+import io.fabric8.kubernetes.api.model.ContainerStatus;
 import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodCondition;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.api.model.PodStatus;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
+import io.fabric8.kubernetes.client.dsl.PodResource;
 import java.text.ParseException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Function;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import net.azisaba.kuvel.Kuvel;
 import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
+import net.azisaba.kuvel.discovery.DiscoveryEventCoalescer;
 import net.azisaba.kuvel.discovery.ServerDiscovery;
+import net.azisaba.kuvel.discovery.TerminationDeadlineScheduler;
 import net.azisaba.kuvel.discovery.diffchecker.PodDiffChecker;
+import net.azisaba.kuvel.redis.PropagationTrace;
 import net.azisaba.kuvel.redis.RedisConnectionLeader;
 import net.azisaba.kuvel.redis.RedisKeys;
+import net.azisaba.kuvel.redis.ShardCoordinator;
 import net.azisaba.kuvel.util.LabelKeys;
+import net.azisaba.kuvel.util.TaskScope;
 import org.apache.commons.lang3.time.DateFormatUtils;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -30,6 +46,8 @@ import redis.clients.jedis.JedisPool;
 @RequiredArgsConstructor
 public class RedisServerDiscovery implements ServerDiscovery {
 
+  private static final long UNREGISTER_BEFORE_DELETION_MILLIS = TimeUnit.SECONDS.toMillis(50);
+
   private final KubernetesClient client;
   private final Kuvel plugin;
   private final String namespace;
@@ -37,114 +55,128 @@ public class RedisServerDiscovery implements ServerDiscovery {
   private final String groupName;
   private final RedisConnectionLeader redisConnectionLeader;
   private final KuvelServiceHandler kuvelServiceHandler;
+  // null if warm standby is disabled
+  @Nullable private final DiscoveryCache discoveryCache;
 
-  private final AtomicReference<ScheduledTask> taskReference = new AtomicReference<>();
+  // the tasks of the current run, cancelled together on shutdown, e.g. when the leadership is lost
+  private final AtomicReference<TaskScope> taskScopeReference = new AtomicReference<>();
   private final PodDiffChecker podDiffChecker = new PodDiffChecker().init();
+  private final TerminationDeadlineScheduler terminationDeadlineScheduler =
+      new TerminationDeadlineScheduler();
   private final ReentrantLock lock = new ReentrantLock();
+  private final Runnable rebalanceListener = this::rebalance;
+
+  private DiscoveryEventCoalescer<PodChange> podChangeCoalescer;
 
   @Override
   public void start() {
-    if (!redisConnectionLeader.isLeader()) {
+    if (!redisConnectionLeader.isWriter()) {
       return;
     }
 
+    TaskScope taskScope = plugin.getKuvelExecutor().newScope("server-discovery");
+    TaskScope oldScope = taskScopeReference.getAndSet(taskScope);
+    if (oldScope != null) {
+      oldScope.cancel();
+    }
+
+    podChangeCoalescer =
+        new DiscoveryEventCoalescer<>(
+            plugin,
+            taskScope,
+            plugin.getKuvelConfig().getDiscoveryBatchWindowMillis(),
+            plugin.getKuvelConfig().getDiscoveryMaxBatchSize(),
+            this::applyPodChanges);
+    podChangeCoalescer.start();
+
+    if (isCacheSynced()) {
+      hydrate(discoveryCache.getPods());
+    }
+
+    ShardCoordinator shardCoordinator = plugin.getShardCoordinator();
+    if (shardCoordinator != null) {
+      shardCoordinator.addRebalanceListener(rebalanceListener);
+    }
+
     Runnable runnable =
         () -> {
-          List<Pod> podList =
-              client
-                  .pods()
-                  .inNamespace(namespace)
-                  .withLabel(LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()), "true")
-                  .list()
-                  .getItems();
-
-          for (Pod pod : podList) {
-            if (podDiffChecker.diff(pod)) {
-              processUpdatedPod(pod);
-            }
+          HashSet<String> podUids = new HashSet<>();
+          Consumer<Pod> visitor =
+              pod -> {
+                String uid = pod.getMetadata().getUid();
+                podUids.add(uid);
+                if (podDiffChecker.diff(pod) && redisConnectionLeader.isResponsibleFor(uid)) {
+                  processUpdatedPod(pod);
+                }
+              };
+          if (isCacheSynced()) {
+            discoveryCache.getPods().forEach(visitor);
+          } else {
+            forEachPod(visitor);
           }
 
-          List<String> uidList = podDiffChecker.getDeletedPodUidList(client);
+          List<String> uidList = podDiffChecker.getDeletedPodUidList(podUids);
+          uidList.removeIf(
+              uid -> !redisConnectionLeader.isResponsibleFor(uid) || !isDeletionObservable(uid));
+          uidList.forEach(terminationDeadlineScheduler::cancel);
           uidList.forEach(this::unregisterPodOrIgnore);
         };
 
-    taskReference.getAndUpdate(
-        task -> {
-          if (task != null) {
-            task.cancel();
-          }
-
-          return plugin
-              .getProxy()
-              .getScheduler()
-              .buildTask(plugin, runnable)
-              .repeat(5, TimeUnit.SECONDS)
-              .schedule();
-        });
+    taskScope.repeat(
+        plugin.getMetrics().getPodDiscoveryTicks().timed(runnable), 0, 5, TimeUnit.SECONDS);
+    taskScope.repeat(this::processExpiredTerminationDeadlines, 0, 1, TimeUnit.SECONDS);
   }
 
   @Override
   public void shutdown() {
-    taskReference.getAndUpdate(
-        task -> {
-          if (task != null) {
-            task.cancel();
-          }
-          return null;
-        });
+    ShardCoordinator shardCoordinator = plugin.getShardCoordinator();
+    if (shardCoordinator != null) {
+      shardCoordinator.removeRebalanceListener(rebalanceListener);
+    }
+    TaskScope scope = taskScopeReference.getAndSet(null);
+    if (scope != null) {
+      scope.cancel();
+    }
+    terminationDeadlineScheduler.clear();
+
+    if (podChangeCoalescer != null) {
+      podChangeCoalescer.shutdown();
+    }
   }
 
   @Override
   public HashMap<String, Pod> getServersForStartup() {
+    // one snapshot for all lookups instead of a list request per registered server
+    Map<String, Pod> podsByUid = getPodsByUid();
+
     Map<String, String> podIdToServerNameMap;
-    if (redisConnectionLeader.isLeader()) {
+    if (redisConnectionLeader.isWriter()) {
       try (Jedis jedis = jedisPool.getResource()) {
         podIdToServerNameMap = new HashMap<>(jedis.hgetAll(RedisKeys.SERVERS_PREFIX + groupName));
+      }
 
-        for (String podUid : new ArrayList<>(podIdToServerNameMap.keySet())) {
-          if (getPodByUid(podUid) == null) {
-            podIdToServerNameMap.remove(podUid);
-            jedis.hdel(RedisKeys.SERVERS_PREFIX + groupName, podUid);
-            redisConnectionLeader.publishDeletedServer(podUid);
-          }
+      List<String> stalePodUids = new ArrayList<>();
+      for (String podUid : podIdToServerNameMap.keySet()) {
+        if (redisConnectionLeader.isResponsibleFor(podUid)
+            && isDeletionObservable(podUid)
+            && !podsByUid.containsKey(podUid)) {
+          stalePodUids.add(podUid);
+        }
+      }
+      stalePodUids.forEach(podIdToServerNameMap::remove);
+
+      LinkedHashMap<String, String> preferredServerNames = new LinkedHashMap<>();
+      for (Pod pod : podsByUid.values()) {
+        String uid = pod.getMetadata().getUid();
+        if ("Running".equalsIgnoreCase(pod.getStatus().getPhase())
+            && !podIdToServerNameMap.containsKey(uid)
+            && redisConnectionLeader.isResponsibleFor(uid)) {
+          preferredServerNames.put(uid, getPreferredServerName(pod));
         }
-
-        Map<String, String> loadBalancerMap =
-            jedis.hgetAll(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName);
-
-        String labelKeyPrefix = plugin.getKuvelConfig().getLabelKeyPrefix();
-        client
-            .pods()
-            .inNamespace(namespace)
-            .withLabel(LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(labelKeyPrefix), "true")
-            .withField("status.phase", "Running")
-            .list()
-            .getItems()
-            .forEach(
-                pod -> {
-                  String uid = pod.getMetadata().getUid();
-                  if (podIdToServerNameMap.containsKey(uid)) {
-                    return;
-                  }
-
-                  String preferServerName =
-                      pod.getMetadata()
-                          .getLabels()
-                          .getOrDefault(
-                              LabelKeys.PREFERRED_SERVER_NAME.getKey(labelKeyPrefix),
-                              pod.getMetadata().getName());
-                  String serverName =
-                      getValidServerName(
-                          preferServerName,
-                          (name) ->
-                              !podIdToServerNameMap.containsValue(name)
-                                  && !loadBalancerMap.containsValue(name)
-                                  && plugin.getProxy().getServer(name).isEmpty());
-
-                  podIdToServerNameMap.put(uid, serverName);
-                  jedis.hset(RedisKeys.SERVERS_PREFIX + groupName, uid, serverName);
-                });
       }
+
+      podIdToServerNameMap.putAll(
+          redisConnectionLeader.updateServers(preferredServerNames, stalePodUids));
     } else {
       try (Jedis jedis = jedisPool.getResource()) {
         podIdToServerNameMap = jedis.hgetAll(RedisKeys.SERVERS_PREFIX + groupName);
@@ -152,7 +184,7 @@ public class RedisServerDiscovery implements ServerDiscovery {
     }
 
     String verb = "Fetched";
-    if (redisConnectionLeader.isLeader()) {
+    if (redisConnectionLeader.isWriter()) {
       verb = "Found";
     }
 
@@ -161,7 +193,7 @@ public class RedisServerDiscovery implements ServerDiscovery {
       plugin
           .getLogger()
           .info(verb + " server: " + entry.getValue() + " (" + entry.getKey() + ")");
-      Pod pod = getPodByUid(entry.getKey());
+      Pod pod = podsByUid.get(entry.getKey());
       if (pod == null) {
         plugin
             .getLogger()
@@ -175,43 +207,96 @@ public class RedisServerDiscovery implements ServerDiscovery {
     return servers;
   }
 
-  private void processUpdatedPod(Pod pod) {
+  /**
+   * Seeds the diff checker with the cached pods, so the first tick only processes pods which
+   * changed afterwards. Only the pods of this proxy whose state does not match the registry are
+   * processed now.
+   *
+   * @param pods The cached pods.
+   */
+  private void hydrate(List<Pod> pods) {
     lock.lock();
     try {
-      if (pod.getStatus().getPhase().equalsIgnoreCase("Running")) {
-        registerPodOrIgnore(pod);
-      } else if (pod.getStatus().getPhase().equalsIgnoreCase("Terminating")) {
-        if (pod.getMetadata().getDeletionTimestamp() == null) {
-          return;
+      HashSet<String> podUids = new HashSet<>();
+      for (Pod pod : pods) {
+        String uid = pod.getMetadata().getUid();
+        podUids.add(uid);
+        podDiffChecker.diff(pod);
+
+        if (redisConnectionLeader.isResponsibleFor(uid)
+            && (pod.getMetadata().getDeletionTimestamp() != null
+                || !kuvelServiceHandler.isPodRegistered(uid))) {
+          processUpdatedPod(pod);
         }
+      }
 
+      for (String uid : kuvelServiceHandler.getPodUidAndServerNameMap().getAllMap().keySet()) {
+        if (!podUids.contains(uid)
+            && redisConnectionLeader.isResponsibleFor(uid)
+            && isDeletionObservable(uid)) {
+          unregisterPodOrIgnore(uid);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes over the pods which this proxy owns after the shard members changed. Pods which changed
+   * while another proxy owned them are processed like on a leader takeover.
+   */
+  private void rebalance() {
+    hydrate(isCacheSynced() ? discoveryCache.getPods() : listPods());
+  }
+
+  private void processUpdatedPod(Pod pod) {
+    lock.lock();
+    try {
+      if (pod.getMetadata().getDeletionTimestamp() != null) {
         try {
           Date deletionEndDate =
               DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.parse(
                   pod.getMetadata().getDeletionTimestamp());
-          Date now = new Date();
-          long secondsRemaining = deletionEndDate.getTime() - now.getTime();
+          long unregisterAt = deletionEndDate.getTime() - UNREGISTER_BEFORE_DELETION_MILLIS;
 
-          if (secondsRemaining < 50) {
+          if (unregisterAt <= System.currentTimeMillis()) {
+            terminationDeadlineScheduler.cancel(pod.getMetadata().getUid());
             unregisterPodOrIgnore(pod);
           } else {
-            plugin
-                .getProxy()
-                .getScheduler()
-                .buildTask(
-                    plugin,
-                    () -> {
-                      Pod p = getPodByUid(pod.getMetadata().getUid());
-                      if (p != null) {
-                        processUpdatedPod(p);
-                      }
-                    })
-                .delay(secondsRemaining - 49, TimeUnit.SECONDS)
-                .schedule();
+            terminationDeadlineScheduler.schedule(pod.getMetadata().getUid(), unregisterAt);
           }
         } catch (ParseException e) {
           e.printStackTrace();
         }
+      } else if (pod.getStatus().getPhase().equalsIgnoreCase("Running")) {
+        registerPodOrIgnore(pod);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Unregisters all pods whose termination deadline has expired. The decision is made from the
+   * cached pod state, so this never calls the API server.
+   */
+  private void processExpiredTerminationDeadlines() {
+    List<String> expiredUidList =
+        terminationDeadlineScheduler.pollExpired(System.currentTimeMillis());
+    if (expiredUidList.isEmpty()) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      for (String uid : expiredUidList) {
+        Pod pod = podDiffChecker.getCachedPod(uid);
+        if (pod == null || pod.getMetadata().getDeletionTimestamp() == null) {
+          continue;
+        }
+
+        unregisterPodOrIgnore(uid);
       }
     } finally {
       lock.unlock();
@@ -224,88 +309,170 @@ public class RedisServerDiscovery implements ServerDiscovery {
       return;
     }
 
-    String serverName;
+    podChangeCoalescer.offer(uid, new PodChange(uid, pod));
+  }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      Map<String, String> serverMap = jedis.hgetAll(RedisKeys.SERVERS_PREFIX.getKey() + groupName);
-      Map<String, String> loadBalancerMap =
-          jedis.hgetAll(RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName);
+  private void unregisterPodOrIgnore(Pod pod) {
+    unregisterPodOrIgnore(pod.getMetadata().getUid());
+  }
 
-      String preferServerName =
-          pod.getMetadata()
-              .getLabels()
-              .getOrDefault(LabelKeys.PREFERRED_SERVER_NAME.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()), pod.getMetadata().getName());
+  public void unregisterPodOrIgnore(String uid) {
+    // the pod may still be waiting in the coalescer, so the registration is checked on apply
+    podChangeCoalescer.offer(uid, new PodChange(uid, null));
+  }
 
-      serverName =
-          getValidServerName(
-              preferServerName,
-              (name) ->
-                  !serverMap.containsValue(name)
-                      && !loadBalancerMap.containsValue(name)
-                      && plugin.getProxy().getServer(name).isEmpty());
+  /**
+   * Applies a batch of pod changes with a single atomic Redis script, which also allocates the
+   * server names and publishes a single notification.
+   *
+   * @param changes The pod changes to apply.
+   */
+  private void applyPodChanges(List<PodChange> changes) {
+    lock.lock();
+    try {
+      LinkedHashMap<String, Pod> registrations = new LinkedHashMap<>();
+      List<String> unregistrations = new ArrayList<>();
+      for (PodChange change : changes) {
+        boolean registered = kuvelServiceHandler.isPodRegistered(change.getUid());
+        if (change.getPod() != null && !registered) {
+          registrations.put(change.getUid(), change.getPod());
+        } else if (change.getPod() == null && registered) {
+          unregistrations.add(change.getUid());
+        }
+      }
 
-      kuvelServiceHandler.getPodUidAndServerNameMap().register(uid, serverName);
-      jedis.hset(RedisKeys.SERVERS_PREFIX.getKey() + groupName, uid, serverName);
+      if (registrations.isEmpty() && unregistrations.isEmpty()) {
+        return;
+      }
 
-      redisConnectionLeader.publishNewServer(uid, serverName);
-      kuvelServiceHandler.registerPod(pod, serverName);
+      PropagationTrace trace = new PropagationTrace(System.currentTimeMillis());
+      for (PodChange change : changes) {
+        if (registrations.containsKey(change.getUid())) {
+          trace.addPod(
+              change.getUid(), getReadyAtMillis(change.getPod()), change.getDetectedAtMillis());
+        }
+      }
+
+      LinkedHashMap<String, String> preferredServerNames = new LinkedHashMap<>();
+      for (Entry<String, Pod> entry : registrations.entrySet()) {
+        preferredServerNames.put(entry.getKey(), getPreferredServerName(entry.getValue()));
+      }
+
+      Map<String, String> allocatedServerNames =
+          redisConnectionLeader.updateServers(preferredServerNames, unregistrations, trace);
+
+      LinkedHashMap<String, Pod> serverNameToPod = new LinkedHashMap<>();
+      for (Entry<String, String> entry : allocatedServerNames.entrySet()) {
+        serverNameToPod.put(entry.getValue(), registrations.get(entry.getKey()));
+      }
+
+      kuvelServiceHandler.unregisterPods(unregistrations);
+      kuvelServiceHandler.registerPods(serverNameToPod);
+
+      for (String uid : allocatedServerNames.keySet()) {
+        if (kuvelServiceHandler.isPodRegistered(uid)) {
+          trace.recordRegistered(plugin.getMetrics(), uid);
+        }
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
-  private void unregisterPodOrIgnore(Pod pod) {
-    unregisterPodOrIgnore(pod.getMetadata().getUid());
+  private boolean isCacheSynced() {
+    return discoveryCache != null && discoveryCache.isSynced();
   }
 
-  public void unregisterPodOrIgnore(String uid) {
-    if (kuvelServiceHandler.getPodUidAndServerNameMap().getServerNameFromUid(uid) == null) {
-      return;
-    }
+  private boolean isDeletionObservable(String uid) {
+    return discoveryCache == null || discoveryCache.isDeletionObservable(uid);
+  }
 
-    kuvelServiceHandler.unregisterPod(uid);
-    // podUidAndServerNameMap.unregister(uid); // no need
-    redisConnectionLeader.publishDeletedServer(uid);
+  private List<Pod> listPods() {
+    return plugin.getKubernetesAccess().list("pods/" + namespace + "/discovery", discoveryPods());
+  }
+
+  private void forEachPod(Consumer<Pod> consumer) {
+    plugin.getKubernetesAccess().forEach(discoveryPods(), consumer);
+  }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      jedis.hdel(RedisKeys.SERVERS_PREFIX.getKey() + groupName, uid);
+  private FilterWatchListDeletable<Pod, PodList, PodResource> discoveryPods() {
+    return client
+        .pods()
+        .inNamespace(namespace)
+        .withLabel(
+            LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()),
+            "true");
+  }
+
+  private Map<String, Pod> getPodsByUid() {
+    HashMap<String, Pod> podsByUid = new HashMap<>();
+    Consumer<Pod> collector = pod -> podsByUid.put(pod.getMetadata().getUid(), pod);
+    if (isCacheSynced()) {
+      discoveryCache.getPods().forEach(collector);
+    } else {
+      forEachPod(collector);
     }
+    return podsByUid;
   }
 
-  private Pod getPodByUid(String podUid) {
-    return client.pods().list().getItems().stream()
-        .filter(pod -> pod.getMetadata().getUid().equals(podUid))
-        .findFirst()
-        .orElse(null);
+  /**
+   * Returns when the pod became ready, or when its last container started if it is not ready yet,
+   * since the servers are registered once the pod is running.
+   *
+   * @param pod The pod.
+   * @return The time in milliseconds, or 0 if unknown.
+   */
+  private static long getReadyAtMillis(Pod pod) {
+    PodStatus status = pod.getStatus();
+    if (status.getConditions() != null) {
+      for (PodCondition condition : status.getConditions()) {
+        if ("Ready".equals(condition.getType()) && "True".equals(condition.getStatus())) {
+          return parseTimestamp(condition.getLastTransitionTime());
+        }
+      }
+    }
+
+    long startedAtMillis = 0;
+    if (status.getContainerStatuses() != null) {
+      for (ContainerStatus containerStatus : status.getContainerStatuses()) {
+        if (containerStatus.getState() != null && containerStatus.getState().getRunning() != null) {
+          startedAtMillis =
+              Math.max(
+                  startedAtMillis,
+                  parseTimestamp(containerStatus.getState().getRunning().getStartedAt()));
+        }
+      }
+    }
+    return startedAtMillis;
   }
 
-  private String getValidServerName(String prefer, Function<String, Boolean> isValid) {
-    if (isValid.apply(prefer)) {
-      return prefer;
+  private static long parseTimestamp(@Nullable String timestamp) {
+    if (timestamp == null) {
+      return 0;
     }
 
-    String name = prefer + "-1";
-    int i = 1;
-    while (!isValid.apply(name)) {
-      name = name.substring(0, name.length() - (1 + String.valueOf(i).length())) + "-" + (i + 1);
-      i++;
+    try {
+      return Instant.parse(timestamp).toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return 0;
     }
-    return name;
   }
 
-  private Runnable getDelayRunnable(ExecutorService executor, Runnable runnable) {
-    return () -> {
-      try {
-        Thread.sleep(3000);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-      }
+  private String getPreferredServerName(Pod pod) {
+    return pod.getMetadata()
+        .getLabels()
+        .getOrDefault(
+            LabelKeys.PREFERRED_SERVER_NAME.getKey(plugin.getKuvelConfig().getLabelKeyPrefix()),
+            pod.getMetadata().getName());
+  }
 
-      try {
-        runnable.run();
-      } catch (Exception ex) {
-        ex.printStackTrace();
-      } finally {
-        executor.submit(getDelayRunnable(executor, runnable));
-      }
-    };
+  @Getter
+  @RequiredArgsConstructor
+  private static class PodChange {
+
+    private final String uid;
+    // null if the pod should be unregistered
+    @Nullable private final Pod pod;
+    private final long detectedAtMillis = System.currentTimeMillis();
   }
 }
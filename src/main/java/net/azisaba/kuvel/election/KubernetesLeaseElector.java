@@ -0,0 +1,116 @@
+package net.azisaba.kuvel.election;
+
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.extended.leaderelection.LeaderCallbacks;
+import io.fabric8.kubernetes.client.extended.leaderelection.LeaderElectionConfig;
+import io.fabric8.kubernetes.client.extended.leaderelection.LeaderElectionConfigBuilder;
+import io.fabric8.kubernetes.client.extended.leaderelection.resourcelock.LeaseLock;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+
+/**
+ * Elects the leader with a {@code coordination.k8s.io/v1} Lease through the fabric8 leader
+ * elector. The Lease is renewed by the API server, not Redis, so a Redis outage does not move the
+ * leadership. The elector gives up after it loses the Lease, so a new round is started to stay a
+ * candidate until {@link #stop()} is called.
+ */
+public class KubernetesLeaseElector {
+
+  private final KubernetesClient client;
+  private final String namespace;
+  private final String leaseName;
+  private final String identity;
+  private final Duration leaseDuration;
+  private final Duration renewDeadline;
+  private final Duration retryPeriod;
+  private final Runnable onStartLeading;
+  private final Runnable onStopLeading;
+  private final Logger logger;
+
+  private volatile boolean running = false;
+  private CompletableFuture<?> electionFuture;
+
+  public KubernetesLeaseElector(
+      KubernetesClient client,
+      String namespace,
+      String leaseName,
+      String identity,
+      Duration leaseDuration,
+      Duration renewDeadline,
+      Duration retryPeriod,
+      Runnable onStartLeading,
+      Runnable onStopLeading,
+      Logger logger) {
+    this.client = client;
+    this.namespace = namespace;
+    this.leaseName = leaseName;
+    this.identity = identity;
+    this.leaseDuration = leaseDuration;
+    this.renewDeadline = renewDeadline;
+    this.retryPeriod = retryPeriod;
+    this.onStartLeading = onStartLeading;
+    this.onStopLeading = onStopLeading;
+    this.logger = logger;
+  }
+
+  /** Starts competing for the Lease. */
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    startRound();
+  }
+
+  /** Stops competing for the Lease and releases it if this proxy holds it. */
+  public synchronized void stop() {
+    running = false;
+    if (electionFuture != null) {
+      electionFuture.cancel(true);
+      electionFuture = null;
+    }
+  }
+
+  private synchronized void startRound() {
+    if (!running) {
+      return;
+    }
+
+    LeaderElectionConfig config =
+        new LeaderElectionConfigBuilder()
+            .withName(leaseName)
+            .withLock(new LeaseLock(namespace, leaseName, identity))
+            .withLeaseDuration(leaseDuration)
+            .withRenewDeadline(renewDeadline)
+            .withRetryPeriod(retryPeriod)
+            .withReleaseOnCancel(true)
+            .withLeaderCallbacks(
+                new LeaderCallbacks(onStartLeading, onStopLeading, this::onNewLeader))
+            .build();
+
+    CompletableFuture<?> future = client.leaderElector().withConfig(config).build().start();
+    electionFuture = future;
+    future.whenComplete(
+        (result, error) -> {
+          if (!running) {
+            return;
+          }
+          if (error != null && !(error instanceof CancellationException)) {
+            logger.warn("Leader election on Lease " + leaseName + " failed. Retrying.", error);
+          }
+          CompletableFuture.runAsync(
+              this::startRound,
+              CompletableFuture.delayedExecutor(
+                  retryPeriod.toMillis(), TimeUnit.MILLISECONDS));
+        });
+  }
+
+  private void onNewLeader(String leaderIdentity) {
+    if (!identity.equals(leaderIdentity)) {
+      logger.info("Proxy " + leaderIdentity + " holds the leader Lease " + leaseName + ".");
+    }
+  }
+}
@@ -0,0 +1,416 @@
+package net.azisaba.kuvel.kubernetes;
+
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.KubernetesResourceList;
+import io.fabric8.kubernetes.api.model.ListMeta;
+import io.fabric8.kubernetes.api.model.ListOptionsBuilder;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.Listable;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.config.KuvelConfig;
+import net.azisaba.kuvel.metrics.LatencyHistogram;
+
+/**
+ * The shared path of all Kubernetes API requests of the discovery. Requests are limited by a
+ * token bucket, so a burst of discovery work cannot trip the priority and fairness throttling of
+ * the API server, and retried with jittered exponential backoff when the API server is throttling
+ * or unavailable. Identical list requests which are in flight at the same time are sent once and
+ * share the result.
+ *
+ * <p>Lists are requested page by page with {@code limit} and {@code continue}, so only one page of
+ * a large list is held in memory and transferred at a time. A continue token expires after a few
+ * minutes, which a list paced by the QPS budget and backoff may exceed. The list is then restarted
+ * from the first page.
+ */
+public class KubernetesAccess {
+
+  private static final long STATS_INTERVAL_SECONDS = 60;
+  private static final long MAX_RETRY_DELAY_MILLIS = 10_000;
+
+  private final Kuvel plugin;
+  private final double qps;
+  private final double burst;
+  private final int maxRetries;
+  private final long retryBaseDelayMillis;
+  private final long pageSize;
+
+  private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight =
+      new ConcurrentHashMap<>();
+
+  private double tokens;
+  private long lastRefillNanos = System.nanoTime();
+
+  private final LongAdder callCount = new LongAdder();
+  private final LongAdder callNanos = new LongAdder();
+  private final AtomicLong maxCallNanos = new AtomicLong();
+  private final LatencyHistogram callLatency = new LatencyHistogram();
+  private final LongAdder failedCount = new LongAdder();
+  private final LongAdder retryCount = new LongAdder();
+  private final LongAdder coalescedCount = new LongAdder();
+  private final LongAdder throttledCount = new LongAdder();
+  private final LongAdder throttledNanos = new LongAdder();
+  private final LongAdder serverThrottledCount = new LongAdder();
+  private final LongAdder restartedListCount = new LongAdder();
+
+  private ScheduledTask statsTask;
+  private long lastReportedThrottleCount = 0;
+
+  public KubernetesAccess(Kuvel plugin) {
+    this.plugin = plugin;
+
+    KuvelConfig config = plugin.getKuvelConfig();
+    this.qps = config.getKubernetesQps();
+    this.burst = config.getKubernetesBurst();
+    this.maxRetries = config.getKubernetesMaxRetries();
+    this.retryBaseDelayMillis = config.getKubernetesRetryBaseDelayMillis();
+    this.pageSize = config.getListPageSize();
+    this.tokens = burst;
+  }
+
+  /** Starts logging the statistics when requests were throttled. */
+  public void runTask() {
+    statsTask =
+        plugin
+            .getProxy()
+            .getScheduler()
+            .buildTask(plugin, this::reportThrottling)
+            .repeat(STATS_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            .schedule();
+  }
+
+  public void shutdown() {
+    if (statsTask != null) {
+      statsTask.cancel();
+    }
+  }
+
+  /**
+   * Sends a request within the QPS budget and retries it while the API server is throttling or
+   * unavailable.
+   *
+   * @param request The request.
+   * @param <T> The type of the response.
+   * @return The response.
+   * @throws KubernetesClientException If the request failed and is not retryable, or all retries
+   *     failed.
+   */
+  public <T> T execute(Supplier<T> request) {
+    for (int attempt = 0; ; attempt++) {
+      acquirePermit();
+
+      long start = System.nanoTime();
+      try {
+        T response = request.get();
+        recordCall(System.nanoTime() - start);
+        return response;
+      } catch (KubernetesClientException e) {
+        recordCall(System.nanoTime() - start);
+        if (e.getCode() == 429) {
+          serverThrottledCount.increment();
+        }
+        if (attempt >= maxRetries || !isRetryable(e)) {
+          failedCount.increment();
+          throw e;
+        }
+
+        retryCount.increment();
+        sleep(getRetryDelayMillis(attempt), TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Runs the request unless a request with the same key is already in flight, in which case its
+   * result is shared. The key must identify everything the result depends on.
+   *
+   * @param key The key of the request.
+   * @param request The request.
+   * @param <T> The type of the result. The result is shared, so it must not be modified.
+   * @return The result.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T coalesce(String key, Supplier<T> request) {
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      coalescedCount.increment();
+      try {
+        return (T) existing.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException cause) {
+          throw cause;
+        }
+        throw e;
+      }
+    }
+
+    try {
+      T result = request.get();
+      future.complete(result);
+      return result;
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * Lists all resources. Concurrent lists with the same key are sent once.
+   *
+   * @param key The key of the list, which must identify the resource type, namespace and
+   *     selectors.
+   * @param listable The resources to list, e.g. {@code client.pods().inNamespace(namespace)}.
+   * @param <T> The type of the resources.
+   * @param <L> The type of the list of the resources.
+   * @return The unmodifiable list of the resources.
+   */
+  public <T extends HasMetadata, L extends KubernetesResourceList<T>> List<T> list(
+      String key, Listable<L> listable) {
+    return coalesce(
+        key,
+        () -> {
+          List<T> resources = new ArrayList<>();
+          scan(
+              listable,
+              resource -> {
+                resources.add(resource);
+                return false;
+              },
+              resources::clear);
+          return Collections.unmodifiableList(resources);
+        });
+  }
+
+  /**
+   * Passes every resource to the consumer as its page arrives. Use it if the resources do not
+   * have to be kept. If the list is restarted because its continue token expired, the resources
+   * of the pages before are passed again, so the consumer must accept a resource twice.
+   *
+   * @param listable The resources to list.
+   * @param consumer The consumer of the resources.
+   * @param <T> The type of the resources.
+   * @param <L> The type of the list of the resources.
+   */
+  public <T extends HasMetadata, L extends KubernetesResourceList<T>> void forEach(
+      Listable<L> listable, Consumer<T> consumer) {
+    scan(
+        listable,
+        resource -> {
+          consumer.accept(resource);
+          return false;
+        },
+        () -> {});
+  }
+
+  /**
+   * Finds the first resource which matches the predicate. The remaining pages are not requested
+   * once it is found.
+   *
+   * @param listable The resources to list.
+   * @param predicate The predicate to match.
+   * @param <T> The type of the resources.
+   * @param <L> The type of the list of the resources.
+   * @return The first matching resource, or null if no resource matches.
+   */
+  @Nullable
+  public <T extends HasMetadata, L extends KubernetesResourceList<T>> T findFirst(
+      Listable<L> listable, Predicate<T> predicate) {
+    return scan(listable, predicate, () -> {});
+  }
+
+  public long getCallCount() {
+    return callCount.sum();
+  }
+
+  public long getAverageCallMicros() {
+    long count = callCount.sum();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(callNanos.sum() / count);
+  }
+
+  public long getMaxCallMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxCallNanos.get());
+  }
+
+  public LatencyHistogram getCallLatency() {
+    return callLatency;
+  }
+
+  /** Returns the number of requests which failed after all retries. */
+  public long getFailedCount() {
+    return failedCount.sum();
+  }
+
+  public long getRetryCount() {
+    return retryCount.sum();
+  }
+
+  /** Returns the number of requests which shared the result of an identical request. */
+  public long getCoalescedCount() {
+    return coalescedCount.sum();
+  }
+
+  /** Returns the number of requests which waited for the QPS budget. */
+  public long getThrottledCount() {
+    return throttledCount.sum();
+  }
+
+  public long getThrottledMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+  }
+
+  /** Returns the number of requests which the API server rejected with 429 Too Many Requests. */
+  public long getServerThrottledCount() {
+    return serverThrottledCount.sum();
+  }
+
+  /** Returns the number of lists which were restarted because their continue token expired. */
+  public long getRestartedListCount() {
+    return restartedListCount.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "calls="
+        + getCallCount()
+        + ", avgCall="
+        + getAverageCallMicros()
+        + "us, maxCall="
+        + getMaxCallMicros()
+        + "us, failed="
+        + getFailedCount()
+        + ", retries="
+        + getRetryCount()
+        + ", coalesced="
+        + getCoalescedCount()
+        + ", throttled="
+        + getThrottledCount()
+        + " ("
+        + getThrottledMillis()
+        + "ms), serverThrottled="
+        + getServerThrottledCount()
+        + ", restartedLists="
+        + getRestartedListCount();
+  }
+
+  /**
+   * Requests the pages until a resource matches. When the continue token expired (410 Gone), the
+   * list is restarted from the first page after the restart callback, up to the retry limit.
+   */
+  @Nullable
+  private <T extends HasMetadata, L extends KubernetesResourceList<T>> T scan(
+      Listable<L> listable, Predicate<T> stopAt, Runnable onRestart) {
+    String continueToken = null;
+    int restarts = 0;
+    while (true) {
+      String token = continueToken;
+      L page;
+      try {
+        page =
+            execute(
+                () ->
+                    listable.list(
+                        new ListOptionsBuilder().withLimit(pageSize).withContinue(token).build()));
+      } catch (KubernetesClientException e) {
+        if (token == null || e.getCode() != HttpURLConnection.HTTP_GONE || restarts >= maxRetries) {
+          throw e;
+        }
+
+        restarts++;
+        restartedListCount.increment();
+        onRestart.run();
+        continueToken = null;
+        continue;
+      }
+
+      for (T resource : page.getItems()) {
+        if (stopAt.test(resource)) {
+          return resource;
+        }
+      }
+
+      ListMeta metadata = page.getMetadata();
+      continueToken = metadata == null ? null : metadata.getContinue();
+      if (continueToken == null || continueToken.isEmpty()) {
+        return null;
+      }
+    }
+  }
+
+  private void acquirePermit() {
+    long waitNanos = reservePermit();
+    if (waitNanos > 0) {
+      throttledCount.increment();
+      throttledNanos.add(waitNanos);
+      sleep(waitNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Takes a token from the bucket. The bucket may go negative, which reserves a future token for
+   * this request, so waiting requests are served in order.
+   *
+   * @return The nanoseconds to wait until the reserved token is available.
+   */
+  private synchronized long reservePermit() {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefillNanos) * qps / TimeUnit.SECONDS.toNanos(1));
+    lastRefillNanos = now;
+    tokens--;
+    return tokens >= 0 ? 0 : (long) (-tokens / qps * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private long getRetryDelayMillis(int attempt) {
+    long delay = Math.min(MAX_RETRY_DELAY_MILLIS, retryBaseDelayMillis << Math.min(attempt, 16));
+    // a random delay between half and the whole backoff, so retrying proxies do not synchronize
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  private boolean isRetryable(KubernetesClientException e) {
+    int code = e.getCode();
+    // 0 is a connection failure without a response
+    return code == 0 || code == 429 || code >= 500;
+  }
+
+  private void recordCall(long nanos) {
+    callCount.increment();
+    callNanos.add(nanos);
+    maxCallNanos.accumulateAndGet(nanos, Math::max);
+    callLatency.record(nanos);
+  }
+
+  private void sleep(long duration, TimeUnit unit) {
+    try {
+      unit.sleep(duration);
+    } catch (InterruptedException e) {
+      throw KubernetesClientException.launderThrowable(e);
+    }
+  }
+
+  private void reportThrottling() {
+    long throttleCount = getThrottledCount() + getServerThrottledCount() + getFailedCount();
+    if (throttleCount == lastReportedThrottleCount) {
+      return;
+    }
+    lastReportedThrottleCount = throttleCount;
+
+    plugin.getLogger().warn("Kubernetes API " + this);
+  }
+}
@@ -1,40 +1,34 @@
 package net.azisaba.kuvel.listener;
 
+import com.velocitypowered.api.event.EventTask;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.player.PlayerChooseInitialServerEvent;
-import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
 import lombok.RequiredArgsConstructor;
 import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.util.StartupTracker;
 
 @RequiredArgsConstructor
 public class ChooseInitialServerListener {
 
-  private final ProxyServer proxy;
   private final KuvelServiceHandler handler;
+  private final StartupTracker startupTracker;
+  private final long startupWaitMillis;
 
   @Subscribe
-  public void onInitialServerChoose(PlayerChooseInitialServerEvent event) {
-    if (handler.getInitialServerNames().isEmpty()) {
-      return;
+  public EventTask onInitialServerChoose(PlayerChooseInitialServerEvent event) {
+    if (startupTracker.isServing()) {
+      chooseInitialServer(event);
+      return null;
     }
 
-    List<String> initialServerNames = new ArrayList<>(handler.getInitialServerNames());
-    Collections.shuffle(initialServerNames);
-
-    RegisteredServer server = null;
-    for (String initialServerName : initialServerNames) {
-      Optional<RegisteredServer> optionalServer = proxy.getServer(initialServerName);
-      if (optionalServer.isPresent()) {
-        server = optionalServer.get();
-        break;
-      }
-    }
+    // hold the login until the first discovery finished, then fall back to Velocity's servers
+    return EventTask.resumeWhenComplete(
+        startupTracker.awaitReady(startupWaitMillis).thenRun(() -> chooseInitialServer(event)));
+  }
 
+  private void chooseInitialServer(PlayerChooseInitialServerEvent event) {
+    RegisteredServer server = handler.chooseInitialServer();
     if (server == null) {
       return;
     }
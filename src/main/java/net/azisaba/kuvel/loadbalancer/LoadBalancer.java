@@ -3,11 +3,14 @@ package net.azisaba.kuvel.loadbalancer;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.metrics.LatencyHistogram;
 
 @Getter
 @RequiredArgsConstructor
@@ -19,31 +22,73 @@ public class LoadBalancer {
   private final String replicaSetUid;
 
   private final boolean isInitialServer;
-  private final List<String> endpointServers = new ArrayList<>();
+  // read on every connection and written by discovery threads
+  private final CopyOnWriteArrayList<String> endpointServers = new CopyOnWriteArrayList<>();
+  // the registered servers of the endpoints, resolved when the endpoints change so choosing a
+  // target does not allocate
+  private volatile List<RegisteredServer> targets = List.of();
+  // endpoint server name to the number of times it was chosen
+  private final ConcurrentHashMap<String, LongAdder> pickCounts = new ConcurrentHashMap<>();
+  private final LatencyHistogram selectionLatency = new LatencyHistogram();
 
+  /**
+   * Adds an endpoint. The registered server of the endpoint is resolved again even if it is known,
+   * since a re-registered server has a new handle.
+   *
+   * @param serverName The name of the endpoint server.
+   */
   public void addEndpoint(String serverName) {
-    if (!endpointServers.contains(serverName)) {
-      endpointServers.add(serverName);
-    }
+    endpointServers.addIfAbsent(serverName);
+    refreshTargets();
+  }
+
+  public void addEndpoints(Collection<String> serverNames) {
+    endpointServers.addAllAbsent(serverNames);
+    refreshTargets();
   }
 
   public void removeEndpoint(String serverName) {
     endpointServers.remove(serverName);
+    refreshTargets();
+  }
+
+  public void removeEndpoints(Collection<String> serverNames) {
+    endpointServers.removeAll(serverNames);
+    refreshTargets();
   }
 
-  public void setEndpoints(List<String> endpoints) {
-    endpointServers.clear();
-    endpointServers.addAll(endpoints);
+  public synchronized void setEndpoints(List<String> endpoints) {
+    endpointServers.retainAll(endpoints);
+    endpointServers.addAllAbsent(endpoints);
+    refreshTargets();
   }
 
+  /**
+   * Chooses the target server of a connection among the endpoints with the strategy.
+   *
+   * @return The target server, or null if no endpoint is registered.
+   */
   public RegisteredServer getTarget() {
-    List<RegisteredServer> servers =
-        endpointServers.stream()
-            .map(name -> proxy.getServer(name).orElse(null))
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
+    long start = System.nanoTime();
+    RegisteredServer target = strategy.choose(targets);
+    if (target != null) {
+      LongAdder pickCount = pickCounts.get(target.getServerInfo().getName());
+      if (pickCount != null) {
+        pickCount.increment();
+      }
+    }
+    selectionLatency.record(System.nanoTime() - start);
+    return target;
+  }
 
-    return strategy.choose(servers);
+  private synchronized void refreshTargets() {
+    List<RegisteredServer> servers = new ArrayList<>(endpointServers.size());
+    for (String serverName : endpointServers) {
+      proxy.getServer(serverName).ifPresent(servers::add);
+      pickCounts.computeIfAbsent(serverName, k -> new LongAdder());
+    }
+    pickCounts.keySet().retainAll(endpointServers);
+    targets = List.copyOf(servers);
   }
 
   //  public List<RegisteredServer> getTargets(int count) {
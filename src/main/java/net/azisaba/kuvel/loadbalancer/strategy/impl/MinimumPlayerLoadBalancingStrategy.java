@@ -1,21 +1,34 @@
 package net.azisaba.kuvel.loadbalancer.strategy.impl;
 
 import com.velocitypowered.api.proxy.server.RegisteredServer;
-import java.util.Comparator;
 import java.util.List;
+import java.util.function.ToIntFunction;
+import lombok.RequiredArgsConstructor;
 import net.azisaba.kuvel.loadbalancer.LoadBalancingStrategy;
 
+@RequiredArgsConstructor
 public class MinimumPlayerLoadBalancingStrategy implements LoadBalancingStrategy {
 
+  // counts the players of a server, e.g. those of the endpoints of a load balancer
+  private final ToIntFunction<RegisteredServer> playerCounter;
+
+  public MinimumPlayerLoadBalancingStrategy() {
+    this(server -> server.getPlayersConnected().size());
+  }
+
   @Override
   public RegisteredServer choose(List<RegisteredServer> servers) {
-    if (servers.isEmpty()) {
-      return null;
+    RegisteredServer chosen = null;
+    int minimumPlayers = Integer.MAX_VALUE;
+    for (int i = 0; i < servers.size(); i++) {
+      RegisteredServer server = servers.get(i);
+      int players = playerCounter.applyAsInt(server);
+      if (players < minimumPlayers) {
+        chosen = server;
+        minimumPlayers = players;
+      }
     }
-
-    return servers.stream()
-        .min(Comparator.comparingInt(a -> a.getPlayersConnected().size()))
-        .orElse(null);
+    return chosen;
   }
 
   //  @Override
@@ -0,0 +1,18 @@
+package net.azisaba.kuvel.loadbalancer.strategy.impl;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import net.azisaba.kuvel.loadbalancer.LoadBalancingStrategy;
+
+public class RandomLoadBalancingStrategy implements LoadBalancingStrategy {
+
+  @Override
+  public RegisteredServer choose(List<RegisteredServer> servers) {
+    if (servers.isEmpty()) {
+      return null;
+    }
+
+    return servers.get(ThreadLocalRandom.current().nextInt(servers.size()));
+  }
+}
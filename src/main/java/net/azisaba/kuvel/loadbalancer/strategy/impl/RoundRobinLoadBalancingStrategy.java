@@ -2,11 +2,13 @@ package net.azisaba.kuvel.loadbalancer.strategy.impl;
 
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.azisaba.kuvel.loadbalancer.LoadBalancingStrategy;
 
 public class RoundRobinLoadBalancingStrategy implements LoadBalancingStrategy {
 
-  private int lastIndex = 0;
+  // chosen concurrently by every login, so the index is advanced atomically
+  private final AtomicInteger lastIndex = new AtomicInteger();
 
   @Override
   public RegisteredServer choose(List<RegisteredServer> servers) {
@@ -14,12 +16,7 @@ public class RoundRobinLoadBalancingStrategy implements LoadBalancingStrategy {
       return null;
     }
 
-    lastIndex++;
-    if (servers.size() <= lastIndex) {
-      lastIndex = 0;
-      return servers.get(0);
-    }
-    return servers.get(lastIndex);
+    return servers.get(Math.floorMod(lastIndex.incrementAndGet(), servers.size()));
   }
 
   //  @Override
@@ -0,0 +1,305 @@
+package net.azisaba.kuvel.metrics;
+
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.AccessLevel;
+import lombok.Getter;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.kubernetes.KubernetesAccess;
+import net.azisaba.kuvel.loadbalancer.LoadBalancer;
+import net.azisaba.kuvel.redis.InstrumentedJedisPool;
+import net.azisaba.kuvel.redis.RedisConnectionLeader;
+import net.azisaba.kuvel.redis.RedisPoolManager;
+import net.azisaba.kuvel.util.KeyedWorkerPool;
+
+/**
+ * The metrics of the plugin. The events which are not owned by a component, e.g. registrations and
+ * leader changes, are counted here. The components which measure themselves, e.g. {@link
+ * KubernetesAccess} and {@link InstrumentedJedisPool}, are read when the metrics are scraped.
+ *
+ * <p>The propagation of new pods is also reported to the log periodically, since the endpoint is
+ * disabled by default.
+ */
+@Getter
+public class KuvelMetrics {
+
+  private static final long PROPAGATION_REPORT_INTERVAL_SECONDS = 60;
+
+  private final Kuvel plugin;
+
+  private final LatencyHistogram podDiscoveryTicks = new LatencyHistogram();
+  private final LatencyHistogram replicaSetDiscoveryTicks = new LatencyHistogram();
+  // from the time an entry was added to the change stream until it was applied by this proxy
+  private final LatencyHistogram changeFeedLag = new LatencyHistogram();
+
+  private final LongAdder serverRegistrations = new LongAdder();
+  private final LongAdder serverUnregistrations = new LongAdder();
+  private final LongAdder loadBalancerRegistrations = new LongAdder();
+  private final LongAdder loadBalancerUnregistrations = new LongAdder();
+  private final LongAdder leaderAcquisitions = new LongAdder();
+  private final LongAdder leaderLosses = new LongAdder();
+  private final EnumMap<PropagationStage, LatencyHistogram> propagation =
+      new EnumMap<>(PropagationStage.class);
+
+  @Getter(AccessLevel.NONE)
+  private ScheduledTask reportTask;
+  @Getter(AccessLevel.NONE)
+  private long lastReportedPropagationCount = 0;
+
+  public KuvelMetrics(Kuvel plugin) {
+    this.plugin = plugin;
+    for (PropagationStage stage : PropagationStage.values()) {
+      propagation.put(stage, new LatencyHistogram());
+    }
+  }
+
+  public void runTask() {
+    reportTask =
+        plugin
+            .getProxy()
+            .getScheduler()
+            .buildTask(plugin, this::reportPropagation)
+            .repeat(PROPAGATION_REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            .schedule();
+  }
+
+  public void shutdown() {
+    if (reportTask != null) {
+      reportTask.cancel();
+    }
+  }
+
+  /**
+   * Records a stage of the propagation of a new pod. Nothing is recorded if a timestamp is
+   * unknown.
+   *
+   * @param stage The stage.
+   * @param fromMillis The wall clock time the stage started, or 0 if unknown.
+   * @param toMillis The wall clock time the stage ended, or 0 if unknown.
+   */
+  public void recordPropagation(PropagationStage stage, long fromMillis, long toMillis) {
+    if (fromMillis <= 0 || toMillis <= 0) {
+      return;
+    }
+
+    // negative if the clocks of the hosts are skewed, which is recorded as 0
+    propagation.get(stage).record(TimeUnit.MILLISECONDS.toNanos(toMillis - fromMillis));
+  }
+
+  /**
+   * Writes all metrics in the Prometheus text format.
+   *
+   * @return The metrics.
+   */
+  public String scrape() {
+    PrometheusTextWriter writer = new PrometheusTextWriter();
+
+    writer.histogram(
+        "kuvel_discovery_tick_seconds",
+        "Duration of a periodic discovery pass.",
+        podDiscoveryTicks,
+        "kind",
+        "pods");
+    writer.histogram(
+        "kuvel_discovery_tick_seconds",
+        "Duration of a periodic discovery pass.",
+        replicaSetDiscoveryTicks,
+        "kind",
+        "replicasets");
+    writer.histogram(
+        "kuvel_change_feed_lag_seconds",
+        "Time from a registry change in Redis until this proxy applied it.",
+        changeFeedLag);
+    for (PropagationStage stage : PropagationStage.values()) {
+      writer.histogram(
+          "kuvel_propagation_seconds",
+          "Time of each stage from a pod becoming ready until this proxy can route to it.",
+          propagation.get(stage),
+          "stage",
+          stage.getKey());
+    }
+
+    writeRegistrations(writer);
+    writeLeadership(writer);
+    writeKubernetes(writer);
+    writeRedis(writer);
+    writeLoadBalancers(writer);
+    return writer.toString();
+  }
+
+  private void reportPropagation() {
+    long count = propagation.get(PropagationStage.TOTAL).getCount();
+    if (count == lastReportedPropagationCount) {
+      return;
+    }
+    lastReportedPropagationCount = count;
+
+    StringBuilder builder = new StringBuilder("Server propagation:");
+    for (PropagationStage stage : PropagationStage.values()) {
+      builder.append(' ').append(stage.getKey()).append("=[").append(propagation.get(stage));
+      builder.append(']');
+    }
+    plugin.getLogger().info(builder.toString());
+  }
+
+  private void writeRegistrations(PrometheusTextWriter writer) {
+    String help = "Servers and load balancers registered to this proxy.";
+    writer.counter("kuvel_registrations", help, serverRegistrations.sum(), "kind", "server");
+    writer.counter(
+        "kuvel_registrations", help, loadBalancerRegistrations.sum(), "kind", "load_balancer");
+
+    help = "Servers and load balancers unregistered from this proxy.";
+    writer.counter("kuvel_unregistrations", help, serverUnregistrations.sum(), "kind", "server");
+    writer.counter(
+        "kuvel_unregistrations", help, loadBalancerUnregistrations.sum(), "kind", "load_balancer");
+
+    KuvelServiceHandler handler = plugin.getKuvelServiceHandler();
+    if (handler != null) {
+      writer.gauge(
+          "kuvel_registered_servers",
+          "Pod servers registered to this proxy.",
+          handler.getPodUidAndServerNameMap().getAllMap().size());
+    }
+  }
+
+  private void writeLeadership(PrometheusTextWriter writer) {
+    String help = "Times this proxy started or stopped the discovery as the leader.";
+    writer.counter(
+        "kuvel_leader_changes", help, leaderAcquisitions.sum(), "transition", "acquired");
+    writer.counter("kuvel_leader_changes", help, leaderLosses.sum(), "transition", "lost");
+
+    RedisConnectionLeader leader = plugin.getRedisConnectionLeader();
+    if (leader != null) {
+      writer.gauge(
+          "kuvel_leader",
+          "Whether this proxy writes to the registry.",
+          leader.isWriter() ? 1 : 0);
+    }
+  }
+
+  private void writeKubernetes(PrometheusTextWriter writer) {
+    KubernetesAccess access = plugin.getKubernetesAccess();
+    if (access == null) {
+      return;
+    }
+
+    writer.histogram(
+        "kuvel_kubernetes_request_seconds",
+        "Latency of Kubernetes API requests, including retries of the same request.",
+        access.getCallLatency());
+    writer.counter(
+        "kuvel_kubernetes_requests_failed",
+        "Kubernetes API requests which failed after all retries.",
+        access.getFailedCount());
+    writer.counter(
+        "kuvel_kubernetes_retries", "Retried Kubernetes API requests.", access.getRetryCount());
+    writer.counter(
+        "kuvel_kubernetes_requests_coalesced",
+        "Lists which shared the result of an identical list in flight.",
+        access.getCoalescedCount());
+    writer.counter(
+        "kuvel_kubernetes_requests_throttled",
+        "Kubernetes API requests which waited for the QPS budget.",
+        access.getThrottledCount());
+    writer.counter(
+        "kuvel_kubernetes_requests_server_throttled",
+        "Kubernetes API requests rejected with 429 Too Many Requests.",
+        access.getServerThrottledCount());
+    writer.counter(
+        "kuvel_kubernetes_lists_restarted",
+        "Lists restarted from the first page because their continue token expired.",
+        access.getRestartedListCount());
+  }
+
+  private void writeRedis(PrometheusTextWriter writer) {
+    RedisPoolManager poolManager = plugin.getRedisPoolManager();
+    if (poolManager == null) {
+      return;
+    }
+
+    for (InstrumentedJedisPool pool : poolManager.getPools()) {
+      writer.histogram(
+          "kuvel_redis_borrow_seconds",
+          "Time to borrow a Redis connection from the pool.",
+          pool.getBorrowLatency(),
+          "pool",
+          pool.getName());
+    }
+    for (InstrumentedJedisPool pool : poolManager.getPools()) {
+      writer.histogram(
+          "kuvel_redis_call_seconds",
+          "Time a Redis connection was held for a call. Subscriptions hold it while subscribed.",
+          pool.getCallLatency(),
+          "pool",
+          pool.getName());
+    }
+    for (InstrumentedJedisPool pool : poolManager.getPools()) {
+      writer.counter(
+          "kuvel_redis_pool_exhausted",
+          "Borrows which timed out because the pool was exhausted.",
+          pool.getExhaustedCount(),
+          "pool",
+          pool.getName());
+    }
+    for (InstrumentedJedisPool pool : poolManager.getPools()) {
+      writer.gauge(
+          "kuvel_redis_pool_active",
+          "Borrowed Redis connections.",
+          pool.getNumActive(),
+          "pool",
+          pool.getName());
+    }
+
+    KeyedWorkerPool workerPool = plugin.getRegistryWorkerPool();
+    if (workerPool != null) {
+      writer.gauge(
+          "kuvel_registry_worker_queue_depth",
+          "Registry changes waiting for a worker.",
+          workerPool.getQueueDepth());
+    }
+  }
+
+  private void writeLoadBalancers(PrometheusTextWriter writer) {
+    KuvelServiceHandler handler = plugin.getKuvelServiceHandler();
+    if (handler == null) {
+      return;
+    }
+
+    // sorted, so the series keep their order between scrapes
+    TreeMap<String, LoadBalancer> loadBalancers = new TreeMap<>(handler.getLoadBalancerServerMap());
+    for (Map.Entry<String, LoadBalancer> entry : loadBalancers.entrySet()) {
+      writer.gauge(
+          "kuvel_load_balancer_endpoints",
+          "Endpoint servers of a load balancer.",
+          entry.getValue().getEndpointServers().size(),
+          "load_balancer",
+          entry.getKey());
+    }
+    for (Map.Entry<String, LoadBalancer> entry : loadBalancers.entrySet()) {
+      writer.histogram(
+          "kuvel_load_balancer_selection_seconds",
+          "Time to choose the target of a load balancer.",
+          entry.getValue().getSelectionLatency(),
+          "load_balancer",
+          entry.getKey());
+    }
+    for (Map.Entry<String, LoadBalancer> entry : loadBalancers.entrySet()) {
+      TreeMap<String, LongAdder> pickCounts = new TreeMap<>(entry.getValue().getPickCounts());
+      for (Map.Entry<String, LongAdder> pickCount : pickCounts.entrySet()) {
+        writer.counter(
+            "kuvel_load_balancer_picks",
+            "Times an endpoint was chosen as the target of a load balancer.",
+            pickCount.getValue().sum(),
+            "load_balancer",
+            entry.getKey(),
+            "endpoint",
+            pickCount.getKey());
+      }
+    }
+  }
+}
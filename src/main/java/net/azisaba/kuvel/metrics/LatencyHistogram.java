@@ -0,0 +1,154 @@
+package net.azisaba.kuvel.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations with a bounded relative error, like an HDR histogram with two
+ * significant bits. Every power of two of microseconds is split into four buckets, so a recorded
+ * value is off by at most 25% from the bucket it is counted in. Recording does not allocate.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // values up to 2^40 microseconds (about 12 days), longer ones are counted in the last bucket
+  private static final int MAX_MAGNITUDE = 40;
+  private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos The duration in nanoseconds.
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(getBucketIndex(TimeUnit.NANOSECONDS.toMicros(value)));
+    count.increment();
+    sumNanos.add(value);
+    maxNanos.accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * Wraps a task, so the duration of every run is recorded.
+   *
+   * @param task The task to time.
+   * @return The timed task.
+   */
+  public Runnable timed(Runnable task) {
+    return () -> {
+      long start = System.nanoTime();
+      try {
+        task.run();
+      } finally {
+        record(System.nanoTime() - start);
+      }
+    };
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSumNanos() {
+    return sumNanos.sum();
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Estimates a quantile of the recorded durations.
+   *
+   * @param quantile The quantile between 0 and 1.
+   * @return The upper bound of the bucket of the quantile in nanoseconds, or 0 if nothing was
+   *     recorded.
+   */
+  public long getQuantileNanos(double quantile) {
+    long[] snapshot = getBucketCounts();
+    long total = 0;
+    for (long bucketCount : snapshot) {
+      total += bucketCount;
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= Math.max(1, rank)) {
+        return Math.min(
+            TimeUnit.MICROSECONDS.toNanos(getBucketUpperBoundMicros(i)), maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  /**
+   * Takes a copy of the bucket counts. Buckets may be updated while they are copied, so the copy
+   * is not an atomic snapshot, which is fine for reporting.
+   *
+   * @return The count of every bucket.
+   */
+  long[] getBucketCounts() {
+    long[] snapshot = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = counts.get(i);
+    }
+    return snapshot;
+  }
+
+  static int getBucketCount() {
+    return BUCKET_COUNT;
+  }
+
+  /**
+   * Returns the exclusive upper bound of a bucket.
+   *
+   * @param index The index of the bucket.
+   * @return The upper bound in microseconds.
+   */
+  static long getBucketUpperBoundMicros(int index) {
+    if (index < SUB_BUCKETS) {
+      return index + 1;
+    }
+
+    int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int subBucket = index % SUB_BUCKETS;
+    return (1L << magnitude) + ((long) subBucket + 1 << (magnitude - SUB_BUCKET_BITS));
+  }
+
+  private static int getBucketIndex(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+
+    int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    int index = (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    return Math.min(index, BUCKET_COUNT - 1);
+  }
+
+  @Override
+  public String toString() {
+    return "count="
+        + getCount()
+        + ", p50="
+        + TimeUnit.NANOSECONDS.toMicros(getQuantileNanos(0.5))
+        + "us, p99="
+        + TimeUnit.NANOSECONDS.toMicros(getQuantileNanos(0.99))
+        + "us, max="
+        + TimeUnit.NANOSECONDS.toMicros(getMaxNanos())
+        + "us";
+  }
+}
@@ -0,0 +1,58 @@
+package net.azisaba.kuvel.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import lombok.RequiredArgsConstructor;
+
+/** Serves the metrics in the Prometheus text format at {@code /metrics}. */
+@RequiredArgsConstructor
+public class MetricsHttpServer {
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final KuvelMetrics metrics;
+  private final Executor executor;
+
+  private HttpServer server;
+
+  /**
+   * Starts listening.
+   *
+   * @param host The address to bind to.
+   * @param port The port to bind to.
+   * @throws IOException If the address cannot be bound.
+   */
+  public void start(String host, int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(host, port), 0);
+    server.createContext("/metrics", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public void shutdown() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+
+      byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+}
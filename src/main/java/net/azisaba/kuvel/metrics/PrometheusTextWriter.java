@@ -0,0 +1,132 @@
+package net.azisaba.kuvel.metrics;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes metrics in the Prometheus text exposition format. Durations are written in seconds.
+ * Histograms are written with a bucket for every power of four of microseconds, from 4 microseconds
+ * to about a minute.
+ */
+public class PrometheusTextWriter {
+
+  // every second power of two, i.e. the buckets up to 4us, 16us, 64us, ... of the histograms
+  private static final int EXPORTED_BUCKET_STRIDE = 8;
+  private static final long MAX_EXPORTED_BUCKET_MICROS = 100_000_000;
+
+  private final StringBuilder builder = new StringBuilder(4096);
+  private final Set<String> writtenFamilies = new HashSet<>();
+
+  /**
+   * Writes a counter sample.
+   *
+   * @param name The name of the metric without the _total suffix.
+   * @param help The description of the metric.
+   * @param value The value.
+   * @param labels The label names and values, alternating.
+   */
+  public void counter(String name, String help, long value, String... labels) {
+    family(name, "counter", help);
+    sample(name + "_total", labels, null, null, Long.toString(value));
+  }
+
+  /**
+   * Writes a gauge sample.
+   *
+   * @param name The name of the metric.
+   * @param help The description of the metric.
+   * @param value The value.
+   * @param labels The label names and values, alternating.
+   */
+  public void gauge(String name, String help, double value, String... labels) {
+    family(name, "gauge", help);
+    sample(name, labels, null, null, formatDouble(value));
+  }
+
+  /**
+   * Writes a histogram of durations in seconds.
+   *
+   * @param name The name of the metric.
+   * @param help The description of the metric.
+   * @param histogram The histogram.
+   * @param labels The label names and values, alternating.
+   */
+  public void histogram(String name, String help, LatencyHistogram histogram, String... labels) {
+    family(name, "histogram", help);
+
+    long[] counts = histogram.getBucketCounts();
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      long upperBoundMicros = LatencyHistogram.getBucketUpperBoundMicros(i);
+      if (i % EXPORTED_BUCKET_STRIDE == 3 && upperBoundMicros <= MAX_EXPORTED_BUCKET_MICROS) {
+        sample(
+            name + "_bucket",
+            labels,
+            "le",
+            formatDouble(upperBoundMicros / 1e6),
+            Long.toString(cumulative));
+      }
+    }
+    sample(name + "_bucket", labels, "le", "+Inf", Long.toString(cumulative));
+    sample(name + "_sum", labels, null, null, formatDouble(histogram.getSumNanos() / 1e9));
+    sample(name + "_count", labels, null, null, Long.toString(cumulative));
+  }
+
+  @Override
+  public String toString() {
+    return builder.toString();
+  }
+
+  private void family(String name, String type, String help) {
+    if (!writtenFamilies.add(name)) {
+      return;
+    }
+
+    builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private void sample(
+      String name, String[] labels, String extraLabel, String extraValue, String value) {
+    builder.append(name);
+    if (labels.length > 0 || extraLabel != null) {
+      builder.append('{');
+      for (int i = 0; i + 1 < labels.length; i += 2) {
+        if (i > 0) {
+          builder.append(',');
+        }
+        appendLabel(labels[i], labels[i + 1]);
+      }
+      if (extraLabel != null) {
+        if (labels.length > 0) {
+          builder.append(',');
+        }
+        appendLabel(extraLabel, extraValue);
+      }
+      builder.append('}');
+    }
+    builder.append(' ').append(value).append('\n');
+  }
+
+  private void appendLabel(String name, String value) {
+    builder.append(name).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\' -> builder.append("\\\\");
+        case '"' -> builder.append("\\\"");
+        case '\n' -> builder.append("\\n");
+        default -> builder.append(c);
+      }
+    }
+    builder.append('"');
+  }
+
+  private static String formatDouble(double value) {
+    if (value == (long) value) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+}
@@ -0,0 +1,29 @@
+package net.azisaba.kuvel.metrics;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The stages a pod passes from becoming ready until a proxy routes to it. Each stage is measured
+ * from the end of the previous one, except {@link #TOTAL}.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum PropagationStage {
+  // the pod became ready, until the leader detected it
+  DETECT("detect"),
+  // until the leader batched it into a registry write, i.e. the wait of the batch window
+  BATCH("batch"),
+  // until Redis executed the write, by the clock of Redis
+  WRITE("write"),
+  // until the change was added to the change stream, or the write returned on the leader
+  PUBLISH("publish"),
+  // until a follower read the change from the stream
+  RECEIVE("receive"),
+  // until Velocity registered the server
+  REGISTER("register"),
+  // the pod became ready, until Velocity registered the server
+  TOTAL("total");
+
+  private final String key;
+}
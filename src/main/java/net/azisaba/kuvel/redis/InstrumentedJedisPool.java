@@ -0,0 +1,141 @@
+package net.azisaba.kuvel.redis;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import net.azisaba.kuvel.metrics.LatencyHistogram;
+import net.azisaba.kuvel.util.RedisConnectionData;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * A {@link JedisPool} which records how long borrowing a connection takes, how long it is held and
+ * how often the pool was exhausted.
+ */
+public class InstrumentedJedisPool extends JedisPool {
+
+  @Getter private final String name;
+
+  private final LongAdder borrowCount = new LongAdder();
+  private final LongAdder borrowNanos = new LongAdder();
+  private final AtomicLong maxBorrowNanos = new AtomicLong();
+  private final LongAdder exhaustedCount = new LongAdder();
+  private final LongAdder failedCount = new LongAdder();
+  @Getter private final LatencyHistogram borrowLatency = new LatencyHistogram();
+  @Getter private final LatencyHistogram callLatency = new LatencyHistogram();
+  // the time each borrowed connection was handed out, to measure how long it is held
+  private final ConcurrentHashMap<Jedis, Long> borrowedAt = new ConcurrentHashMap<>();
+
+  public InstrumentedJedisPool(
+      String name,
+      JedisPoolConfig poolConfig,
+      RedisConnectionData connectionData,
+      int timeoutMillis) {
+    super(
+        poolConfig,
+        connectionData.getHostname(),
+        connectionData.getPort(),
+        timeoutMillis,
+        connectionData.getUsername(),
+        connectionData.getPassword(),
+        connectionData.getDatabase());
+    this.name = name;
+  }
+
+  @Override
+  public Jedis getResource() {
+    long start = System.nanoTime();
+    try {
+      Jedis jedis = super.getResource();
+      long elapsed = System.nanoTime() - start;
+      borrowCount.increment();
+      borrowNanos.add(elapsed);
+      maxBorrowNanos.accumulateAndGet(elapsed, Math::max);
+      borrowLatency.record(elapsed);
+      borrowedAt.put(jedis, System.nanoTime());
+      return jedis;
+    } catch (JedisException e) {
+      if (e.getCause() instanceof NoSuchElementException) {
+        exhaustedCount.increment();
+      } else {
+        failedCount.increment();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void returnResource(Jedis resource) {
+    recordHeld(resource);
+    super.returnResource(resource);
+  }
+
+  @Override
+  public void returnBrokenResource(Jedis resource) {
+    recordHeld(resource);
+    super.returnBrokenResource(resource);
+  }
+
+  private void recordHeld(Jedis resource) {
+    if (resource == null) {
+      return;
+    }
+
+    Long start = borrowedAt.remove(resource);
+    if (start != null) {
+      callLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  public long getBorrowCount() {
+    return borrowCount.sum();
+  }
+
+  public long getAverageBorrowMicros() {
+    long count = borrowCount.sum();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(borrowNanos.sum() / count);
+  }
+
+  public long getMaxBorrowMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxBorrowNanos.get());
+  }
+
+  /**
+   * Returns the number of borrows which failed because no connection became available within the
+   * max wait time.
+   */
+  public long getExhaustedCount() {
+    return exhaustedCount.sum();
+  }
+
+  /** Returns the number of borrows which failed for another reason, e.g. Redis is unreachable. */
+  public long getFailedCount() {
+    return failedCount.sum();
+  }
+
+  @Override
+  public String toString() {
+    return name
+        + ": active="
+        + getNumActive()
+        + ", idle="
+        + getNumIdle()
+        + ", waiters="
+        + getNumWaiters()
+        + ", borrows="
+        + getBorrowCount()
+        + ", avgBorrow="
+        + getAverageBorrowMicros()
+        + "us, maxBorrow="
+        + getMaxBorrowMicros()
+        + "us, exhausted="
+        + getExhaustedCount()
+        + ", failed="
+        + getFailedCount();
+  }
+}
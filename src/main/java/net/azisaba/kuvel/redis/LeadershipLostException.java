@@ -0,0 +1,13 @@
+package net.azisaba.kuvel.redis;
+
+/** Thrown when a registry write is rejected because this proxy is no longer the leader. */
+public class LeadershipLostException extends RuntimeException {
+
+  public LeadershipLostException(String message) {
+    super(message);
+  }
+
+  public LeadershipLostException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
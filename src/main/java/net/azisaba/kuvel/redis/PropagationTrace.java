@@ -0,0 +1,118 @@
+package net.azisaba.kuvel.redis;
+
+import java.util.LinkedHashMap;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import net.azisaba.kuvel.metrics.KuvelMetrics;
+import net.azisaba.kuvel.metrics.PropagationStage;
+
+/**
+ * The stage timestamps of the pods added by a registry change. The leader records when each pod
+ * became ready and when it was detected, and when the change was batched. The script which writes
+ * the change appends the time of the write by the clock of Redis. The trace is stored in the
+ * {@code trace} field of the change stream entry, so every follower can tell how long each hop
+ * took until it registered the server. The time of the entry ID is the publish time and the time
+ * the entry was read is the receive time.
+ *
+ * <p>The timestamps are wall clock times of different hosts, so the stages across hosts include
+ * their clock skew. Kubernetes records the ready time with a precision of seconds.
+ */
+@RequiredArgsConstructor
+public class PropagationTrace {
+
+  @Getter private final long batchedAtMillis;
+  private final LinkedHashMap<String, long[]> pods = new LinkedHashMap<>();
+
+  // 0 if unknown
+  @Getter @Setter private long writtenAtMillis;
+  @Getter @Setter private long publishedAtMillis;
+  @Getter @Setter private long receivedAtMillis;
+
+  /**
+   * Adds a pod to the trace.
+   *
+   * @param podUid The uid of the pod.
+   * @param readyAtMillis When the pod became ready, or 0 if unknown.
+   * @param detectedAtMillis When the leader detected the pod.
+   */
+  public void addPod(String podUid, long readyAtMillis, long detectedAtMillis) {
+    pods.put(podUid, new long[] {readyAtMillis, detectedAtMillis});
+  }
+
+  public boolean contains(String podUid) {
+    return pods.containsKey(podUid);
+  }
+
+  public boolean isEmpty() {
+    return pods.isEmpty();
+  }
+
+  /**
+   * Records the stages of a pod whose server was registered just now. On the leader, the receive
+   * time is unknown and the register stage starts at the publish time.
+   *
+   * @param metrics The metrics to record to.
+   * @param podUid The uid of the pod.
+   */
+  public void recordRegistered(KuvelMetrics metrics, String podUid) {
+    long[] times = pods.get(podUid);
+    if (times == null) {
+      return;
+    }
+
+    long registeredAtMillis = System.currentTimeMillis();
+    long readyAtMillis = times[0];
+    long detectedAtMillis = times[1];
+    metrics.recordPropagation(PropagationStage.DETECT, readyAtMillis, detectedAtMillis);
+    metrics.recordPropagation(PropagationStage.BATCH, detectedAtMillis, batchedAtMillis);
+    metrics.recordPropagation(PropagationStage.WRITE, batchedAtMillis, writtenAtMillis);
+    metrics.recordPropagation(PropagationStage.PUBLISH, writtenAtMillis, publishedAtMillis);
+    metrics.recordPropagation(PropagationStage.RECEIVE, publishedAtMillis, receivedAtMillis);
+    metrics.recordPropagation(
+        PropagationStage.REGISTER,
+        receivedAtMillis != 0 ? receivedAtMillis : publishedAtMillis,
+        registeredAtMillis);
+    metrics.recordPropagation(PropagationStage.TOTAL, readyAtMillis, registeredAtMillis);
+  }
+
+  /**
+   * Encodes the trace with {@link RedisMessageCodec}: the batch time, the number of pods, and the
+   * uid, ready time and detection time of each pod. The write time is appended by Redis.
+   *
+   * @return The payload.
+   */
+  public String encode() {
+    String[] fields = new String[2 + pods.size() * 3];
+    int i = 0;
+    fields[i++] = Long.toString(batchedAtMillis);
+    fields[i++] = Integer.toString(pods.size());
+    for (var entry : pods.entrySet()) {
+      fields[i++] = entry.getKey();
+      fields[i++] = Long.toString(entry.getValue()[0]);
+      fields[i++] = Long.toString(entry.getValue()[1]);
+    }
+    return RedisMessageCodec.encode(fields);
+  }
+
+  /**
+   * Decodes a trace. The write time after the pods is optional, and fields after it are ignored,
+   * so they can be appended later.
+   *
+   * @param payload The payload.
+   * @return The trace.
+   * @throws IllegalArgumentException If the payload is malformed.
+   */
+  public static PropagationTrace decode(String payload) {
+    RedisMessageCodec.Reader reader = RedisMessageCodec.decode(payload);
+    PropagationTrace trace = new PropagationTrace(Long.parseLong(reader.next()));
+    int count = Integer.parseInt(reader.next());
+    for (int i = 0; i < count; i++) {
+      trace.addPod(reader.next(), Long.parseLong(reader.next()), Long.parseLong(reader.next()));
+    }
+    if (reader.hasNext()) {
+      trace.setWrittenAtMillis(Long.parseLong(reader.next()));
+    }
+    return trace;
+  }
+}
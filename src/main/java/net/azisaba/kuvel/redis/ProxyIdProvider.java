@@ -1,8 +1,8 @@
 package net.azisaba.kuvel.redis;
 
-import com.velocitypowered.api.proxy.ProxyServer;
 import java.util.concurrent.TimeUnit;
 import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.util.TaskScope;
 import org.apache.commons.lang3.RandomStringUtils;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -39,18 +39,16 @@ public class ProxyIdProvider {
     return id;
   }
 
-  public void runTask(ProxyServer proxy, Object plugin) {
-    proxy
-        .getScheduler()
-        .buildTask(
-            plugin,
-            () -> {
-              try (Jedis jedis = jedisPool.getResource()) {
-                jedis.expire(RedisKeys.PROXY_ID_PREFIX.getKey() + groupName + ":" + id, 300);
-              }
-            })
-        .repeat(2, TimeUnit.MINUTES)
-        .schedule();
+  public void runTask(TaskScope taskScope) {
+    taskScope.repeat(
+        () -> {
+          try (Jedis jedis = jedisPool.getResource()) {
+            jedis.expire(RedisKeys.PROXY_ID_PREFIX.getKey() + groupName + ":" + id, 300);
+          }
+        },
+        0,
+        2,
+        TimeUnit.MINUTES);
   }
 
   public void deleteProxyId() {
@@ -0,0 +1,178 @@
+package net.azisaba.kuvel.redis;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.util.TaskScope;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.params.XReadParams;
+import redis.clients.jedis.resps.StreamEntry;
+
+/**
+ * Reads the registry change stream of the group. The ID of the last applied entry is tracked, so
+ * after a reconnect the reader continues right after it and no change is lost or applied twice.
+ * If the stream was trimmed past that ID while disconnected, a resynchronization is requested.
+ */
+@RequiredArgsConstructor
+public class RedisChangeFeedReader {
+
+  // must be shorter than the socket timeout of the connection
+  private static final int READ_BLOCK_MILLIS = 1000;
+  private static final int READ_COUNT = 256;
+
+  private final Kuvel plugin;
+  private final JedisPool jedisPool;
+  private final String groupName;
+
+  private TaskScope taskScope;
+  private volatile StreamEntryID lastAppliedId = new StreamEntryID();
+  private volatile boolean running = false;
+
+  /**
+   * Records the latest entry of the stream as applied. Call this before loading the registry from
+   * the hashes, so the changes made while loading are read again afterwards.
+   */
+  public void markStartPosition() {
+    try (Jedis jedis = jedisPool.getResource()) {
+      markStartPosition(jedis);
+    }
+  }
+
+  /**
+   * Starts reading the stream.
+   *
+   * @param changeConsumer The consumer of the changes.
+   * @param resyncTask The task to run when changes were trimmed before they were read.
+   */
+  public void start(ChangeConsumer changeConsumer, Runnable resyncTask) {
+    running = true;
+    taskScope = plugin.getKuvelExecutor().newScope("change-feed");
+    taskScope.submit(
+        () -> {
+          while (running) {
+            try {
+              read(changeConsumer, resyncTask);
+            } catch (Exception e) {
+              if (!running) {
+                break;
+              }
+              plugin.getLogger().warn("Lost the connection for the registry change stream", e);
+
+              try {
+                Thread.sleep(3000);
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+              }
+            }
+          }
+        });
+  }
+
+  public void shutdown() {
+    running = false;
+    if (taskScope != null) {
+      taskScope.cancel();
+    }
+  }
+
+  private void read(ChangeConsumer changeConsumer, Runnable resyncTask) {
+    try (Jedis jedis = jedisPool.getResource()) {
+      if (isTrimmedAfterLastApplied(jedis)) {
+        plugin
+            .getLogger()
+            .warn("Registry changes after " + lastAppliedId + " were trimmed. Resynchronizing.");
+        markStartPosition(jedis);
+        resyncTask.run();
+      }
+
+      XReadParams params = XReadParams.xReadParams().block(READ_BLOCK_MILLIS).count(READ_COUNT);
+      while (running) {
+        List<Map.Entry<String, List<StreamEntry>>> result =
+            jedis.xread(params, Collections.singletonMap(getStreamKey(), lastAppliedId));
+        if (result == null) {
+          continue;
+        }
+
+        long receivedAtMillis = System.currentTimeMillis();
+        for (Map.Entry<String, List<StreamEntry>> stream : result) {
+          for (StreamEntry entry : stream.getValue()) {
+            try {
+              changeConsumer.accept(
+                  entry.getFields().get("type"),
+                  entry.getFields().get("data"),
+                  entry.getFields().get("version"),
+                  decodeTrace(entry, receivedAtMillis));
+            } catch (Exception e) {
+              plugin.getLogger().error("Failed to apply registry change " + entry.getID(), e);
+            }
+            lastAppliedId = entry.getID();
+            long lagMillis = System.currentTimeMillis() - entry.getID().getTime();
+            plugin.getMetrics().getChangeFeedLag().record(TimeUnit.MILLISECONDS.toNanos(lagMillis));
+          }
+        }
+      }
+    }
+  }
+
+  @Nullable
+  private PropagationTrace decodeTrace(StreamEntry entry, long receivedAtMillis) {
+    String payload = entry.getFields().get("trace");
+    if (payload == null) {
+      return null;
+    }
+
+    PropagationTrace trace;
+    try {
+      trace = PropagationTrace.decode(payload);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    // the first part of an entry ID is the time Redis added it
+    trace.setPublishedAtMillis(entry.getID().getTime());
+    trace.setReceivedAtMillis(receivedAtMillis);
+    return trace;
+  }
+
+  private boolean isTrimmedAfterLastApplied(Jedis jedis) {
+    if (lastAppliedId.equals(new StreamEntryID())) {
+      return false;
+    }
+
+    List<StreamEntry> first = jedis.xrange(getStreamKey(), "-", "+", 1);
+    return !first.isEmpty() && first.get(0).getID().compareTo(lastAppliedId) > 0;
+  }
+
+  private void markStartPosition(Jedis jedis) {
+    List<StreamEntry> latest = jedis.xrevrange(getStreamKey(), "+", "-", 1);
+    lastAppliedId = latest.isEmpty() ? new StreamEntryID() : latest.get(0).getID();
+  }
+
+  private String getStreamKey() {
+    return RedisKeys.CHANGE_STREAM_PREFIX.getKey() + groupName;
+  }
+
+  @FunctionalInterface
+  public interface ChangeConsumer {
+
+    /**
+     * Applies a change.
+     *
+     * @param typeKey The key of the change type.
+     * @param data The change data.
+     * @param version The registry version after the change, or null if not recorded.
+     * @param trace The propagation trace of the added servers, or null if not recorded.
+     */
+    void accept(
+        String typeKey,
+        String data,
+        @Nullable String version,
+        @Nullable PropagationTrace trace);
+  }
+}
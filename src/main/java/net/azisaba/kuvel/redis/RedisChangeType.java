@@ -0,0 +1,34 @@
+package net.azisaba.kuvel.redis;
+
+import javax.annotation.Nullable;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+
+/** Types of the entries in the registry change stream. */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public enum RedisChangeType {
+  SERVERS("servers"),
+  LOAD_BALANCER_ADDED("lb-add"),
+  LOAD_BALANCER_DELETED("lb-del");
+
+  private final String key;
+
+  public String getKey() {
+    return key;
+  }
+
+  @Nullable
+  public static RedisChangeType fromKey(String key) {
+    for (RedisChangeType type : values()) {
+      if (type.key.equals(key)) {
+        return type;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return getKey();
+  }
+}
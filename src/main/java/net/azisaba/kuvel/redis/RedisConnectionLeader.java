@@ -1,118 +1,555 @@
 package net.azisaba.kuvel.redis;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import lombok.RequiredArgsConstructor;
 import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.config.KuvelConfig;
+import net.azisaba.kuvel.config.LeaderElectionBackend;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
 import net.azisaba.kuvel.discovery.impl.redis.RedisLoadBalancerDiscovery;
 import net.azisaba.kuvel.discovery.impl.redis.RedisServerDiscovery;
+import net.azisaba.kuvel.election.KubernetesLeaseElector;
+import net.azisaba.kuvel.util.RedisConnectionData;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
 
+/**
+ * Elects the leader of the proxy group with a lease in Redis, or with a Kubernetes Lease if
+ * configured. Every acquisition of the lease issues a new epoch in Redis, and every registry write
+ * carries the epoch it was made under. Redis rejects writes of an older epoch, so a proxy which
+ * lost its lease, e.g. after a long pause, can never overwrite the registry of the new leader.
+ *
+ * <p>In sharded mode there is no leader. Every live shard member writes the registry entries of
+ * the objects it owns, and its writes are fenced by its membership instead of an epoch.
+ */
 @RequiredArgsConstructor
 public class RedisConnectionLeader {
 
+  // the lease is considered lost slightly before it expires in Redis
+  private static final double LEASE_SAFETY_RATIO = 0.8;
+
   private final Kuvel plugin;
   private final JedisPool jedisPool;
   private final String groupName;
   private final String proxyId;
 
-  private boolean leader = false;
-  private long leaderExpireAt = 0;
+  // 0 if this proxy is not the leader
+  private volatile long epoch = 0;
+  private volatile long leaseDeadlineNanos = 0;
+
+  // null if the leader is elected with Redis
+  @Nullable private KubernetesLeaseElector leaseElector;
+  // whether this proxy holds the Kubernetes Lease
+  private volatile boolean leaseHeld = false;
+  // null unless the discovery is sharded
+  @Nullable private volatile ShardCoordinator shardCoordinator;
+  // until the startup reconciliation installed the discoveries, leadership changes only take
+  // effect afterwards, so the discoveries are never installed by two threads at once
+  private boolean startupReconciled = false;
+
+  /**
+   * Switches to sharded mode. No leader is elected, and the registry is written by every live
+   * member for the objects it owns.
+   *
+   * @param coordinator The started shard coordinator.
+   */
+  public void enableSharding(ShardCoordinator coordinator) {
+    shardCoordinator = coordinator;
+    try (Jedis jedis = jedisPool.getResource()) {
+      reserveStaticServerNames(jedis);
+    } catch (JedisException | LeadershipLostException e) {
+      plugin
+          .getLogger()
+          .warn("Failed to reserve the names of the servers in velocity.toml in Redis.", e);
+    }
+  }
+
+  /**
+   * Returns whether this proxy may write to the registry, i.e. it is the leader or a live shard
+   * member.
+   *
+   * @return true if this proxy runs the discovery.
+   */
+  public boolean isWriter() {
+    ShardCoordinator coordinator = shardCoordinator;
+    return coordinator != null ? coordinator.isMember() : isLeader();
+  }
+
+  /**
+   * Returns whether this proxy discovers the specified pod or ReplicaSet. The leader is
+   * responsible for everything unless the discovery is sharded.
+   *
+   * @param uid The uid of the pod or ReplicaSet.
+   * @return true if this proxy is responsible for the uid.
+   */
+  public boolean isResponsibleFor(String uid) {
+    ShardCoordinator coordinator = shardCoordinator;
+    return coordinator == null || coordinator.owns(uid);
+  }
+
+  /**
+   * Starts the election with the configured backend. With the Kubernetes backend, this proxy
+   * becomes a candidate for the Lease and Redis is only used to issue the epoch.
+   */
+  public void startElection() {
+    KuvelConfig config = plugin.getKuvelConfig();
+    if (config.getLeaderElectionBackend() != LeaderElectionBackend.KUBERNETES) {
+      trySwitch();
+      return;
+    }
 
+    leaseElector =
+        new KubernetesLeaseElector(
+            plugin.getClient(),
+            config.getNamespace(),
+            "kuvel-leader-" + groupName.toLowerCase(Locale.ROOT),
+            proxyId,
+            Duration.ofSeconds(config.getLeaseDurationSeconds()),
+            Duration.ofSeconds(config.getLeaseRenewDeadlineSeconds()),
+            Duration.ofSeconds(config.getLeaseRetryPeriodSeconds()),
+            this::onLeaseAcquired,
+            this::onLeaseLost,
+            plugin.getLogger());
+    leaseElector.start();
+  }
+
+  /**
+   * Returns whether this proxy holds the leader lease. The lease is measured with the monotonic
+   * clock from the time the lease was requested, so it never outlives the lease in Redis.
+   *
+   * @return true if this proxy is the leader.
+   */
   public boolean isLeader() {
-    if (leader && leaderExpireAt < System.currentTimeMillis()) {
-      leader = false;
+    if (leaseElector != null) {
+      return leaseHeld && epoch != 0;
     }
-    return leader;
+    return epoch != 0 && System.nanoTime() - leaseDeadlineNanos < 0;
   }
 
-  public boolean trySwitch() {
-    try (Jedis jedis = jedisPool.getResource()) {
-      String key = RedisKeys.LEADER_PREFIX.getKey() + groupName;
-      String result = jedis.set(key, proxyId, SetParams.setParams().nx().ex(10));
+  /**
+   * Acquires the leader lease if it is free, or renews it if this proxy holds it. The discovery
+   * tasks are started when the lease is newly acquired and stopped when it is lost. With the
+   * Kubernetes backend, the Lease is renewed by the elector and this only retries issuing the
+   * epoch.
+   *
+   * @return true if this proxy is the leader.
+   */
+  public synchronized boolean trySwitch() {
+    if (shardCoordinator != null) {
+      return false;
+    }
+    if (leaseElector != null) {
+      return claimEpoch();
+    }
 
-      if (result != null) {
-        leader = true;
-        leaderExpireAt = System.currentTimeMillis() + (10 * 1000);
+    long leaseMillis = plugin.getKuvelConfig().getLeaderLeaseMillis();
+    long requestedAt = System.nanoTime();
 
-        plugin.getLogger().info("This proxy was selected as a new leader.");
-        jedis.publish(RedisKeys.LEADER_CHANGED_NOTIFY_PREFIX.getKey() + groupName, proxyId);
-        runDiscoveryTask();
-        return true;
-      } else {
-        String currentLeader = jedis.get(RedisKeys.LEADER_PREFIX.getKey() + groupName);
-        if (Objects.equals(proxyId, currentLeader)) {
-          leader = true;
-          return true;
-        }
+    try (Jedis jedis = jedisPool.getResource()) {
+      long result =
+          (Long)
+              RedisScripts.ACQUIRE_LEADER.eval(
+                  jedis,
+                  List.of(getLeaderKey(), RedisKeys.LEADER_EPOCH_PREFIX.getKey() + groupName),
+                  List.of(proxyId, String.valueOf(leaseMillis)));
 
-        if (leader) {
+      if (result == 0) {
+        if (epoch != 0) {
+          epoch = 0;
+          plugin.getLogger().info("This proxy is no longer the leader.");
           stopDiscoveryTask();
         }
-        leader = false;
         return false;
       }
+
+      leaseDeadlineNanos =
+          requestedAt + TimeUnit.MILLISECONDS.toNanos((long) (leaseMillis * LEASE_SAFETY_RATIO));
+      if (result == epoch) {
+        return true;
+      }
+
+      epoch = result;
+      onElected(jedis);
+      return true;
     }
   }
 
-  public void extendLeaderExpire() {
-    if (!trySwitch()) {
+  /**
+   * Marks the startup reconciliation as done. Leadership changes while it ran were deferred, so the
+   * discoveries are replaced now if this proxy became or stopped being the leader meanwhile.
+   *
+   * @param reconciledAsLeader Whether this proxy was the leader when the reconciliation started.
+   */
+  public synchronized void onStartupReconciled(boolean reconciledAsLeader) {
+    startupReconciled = true;
+    if (shardCoordinator != null) {
       return;
     }
 
+    boolean leader = isLeader();
+    if (leader && !reconciledAsLeader) {
+      // the registry was just loaded from Redis, so the discovery continues from it
+      runDiscoveryTask(true);
+    } else if (!leader && reconciledAsLeader) {
+      removeDiscoveries();
+    }
+  }
+
+  private synchronized void onLeaseAcquired() {
+    leaseHeld = true;
+    claimEpoch();
+  }
+
+  private synchronized void onLeaseLost() {
+    leaseHeld = false;
+    if (epoch != 0) {
+      epoch = 0;
+      plugin.getLogger().info("This proxy is no longer the leader.");
+      stopDiscoveryTask();
+    }
+  }
+
+  /**
+   * Issues a new epoch for the Kubernetes Lease held by this proxy, which fences the writes of the
+   * previous leader. If Redis is unreachable, it is retried on the next renewal.
+   *
+   * @return true if this proxy is the leader.
+   */
+  private synchronized boolean claimEpoch() {
+    if (!leaseHeld) {
+      return false;
+    }
+    if (epoch != 0) {
+      return true;
+    }
+
     try (Jedis jedis = jedisPool.getResource()) {
-      jedis.expire(RedisKeys.LEADER_PREFIX.getKey() + groupName, 10);
-      leaderExpireAt = System.currentTimeMillis() + (10 * 1000);
+      epoch = jedis.incr(RedisKeys.LEADER_EPOCH_PREFIX.getKey() + groupName);
+      onElected(jedis);
+      return true;
+    } catch (JedisException e) {
+      epoch = 0;
+      plugin.getLogger().warn("Failed to issue a leader epoch. Retrying on the next renewal.", e);
+      return false;
     }
   }
 
-  public void leaveLeader() {
+  private void onElected(Jedis jedis) {
+    plugin.getLogger().info("This proxy was selected as a new leader (epoch " + epoch + ").");
+    plugin.getMetrics().getLeaderAcquisitions().increment();
+    rebuildRegistryIndex(jedis);
+    reserveStaticServerNames(jedis);
+    jedis.publish(RedisKeys.LEADER_CHANGED_NOTIFY_PREFIX.getKey() + groupName, proxyId);
+    runDiscoveryTask(false);
+  }
+
+  public void extendLeaderExpire() {
+    trySwitch();
+  }
+
+  public synchronized void leaveLeader() {
+    epoch = 0;
+    if (leaseElector != null) {
+      // cancelling the election releases the Lease
+      leaseElector.stop();
+      leaseHeld = false;
+      return;
+    }
+
     try (Jedis jedis = jedisPool.getResource()) {
-      String currentLeader = jedis.get(RedisKeys.LEADER_PREFIX.getKey() + groupName);
-      if (!Objects.equals(proxyId, currentLeader)) {
-        return;
+      Object released =
+          RedisScripts.RELEASE_LEADER.eval(jedis, List.of(getLeaderKey()), List.of(proxyId));
+      if (Objects.equals(released, 1L)) {
+        jedis.publish(RedisKeys.LEADER_LEAVE_NOTIFY_PREFIX.getKey() + groupName, proxyId);
       }
+    }
+  }
 
-      jedis.del(RedisKeys.LEADER_PREFIX.getKey() + groupName);
-      jedis.publish(RedisKeys.LEADER_LEAVE_NOTIFY_PREFIX.getKey() + groupName, proxyId);
+  /**
+   * Checks whether Redis publishes the expiry and deletion events of keys, so followers are
+   * notified as soon as the lease of the leader expires instead of at the next renewal. The events
+   * must be enabled by the operator with {@code notify-keyspace-events}. This only reads the
+   * setting and warns if the flags are missing.
+   */
+  public void checkLeaderExpiryNotifications() {
+    try (Jedis jedis = jedisPool.getResource()) {
+      Map<String, String> config = jedis.configGet("notify-keyspace-events");
+      String flags = config.getOrDefault("notify-keyspace-events", "");
+      boolean enabled =
+          flags.indexOf('K') >= 0
+              && (flags.indexOf('A') >= 0 || (flags.indexOf('g') >= 0 && flags.indexOf('x') >= 0));
+      if (!enabled) {
+        plugin
+            .getLogger()
+            .warn(
+                "Keyspace notifications of the leader key are disabled (notify-keyspace-events is '"
+                    + flags
+                    + "'). Set it to include 'Kgx' to elect a new leader as soon as the lease"
+                    + " expires. Until then, a new leader is elected when the next proxy renews its"
+                    + " lease.");
+      }
+    } catch (JedisException e) {
+      plugin
+          .getLogger()
+          .warn(
+              "Could not read notify-keyspace-events ("
+                  + e.getMessage()
+                  + "). Keyspace notifications of the leader key may be disabled.");
     }
   }
 
-  public void publishNewLoadBalancer(
+  /**
+   * Returns the channel which receives the events of the leader key in the configured database.
+   *
+   * @return The keyspace notification channel.
+   */
+  public String getLeaderKeyspaceChannel() {
+    RedisConnectionData connectionData =
+        Objects.requireNonNull(plugin.getKuvelConfig().getRedisConnectionData());
+    return "__keyspace@" + connectionData.getDatabase() + "__:" + getLeaderKey();
+  }
+
+  /**
+   * Claims the name of a new load balancer, stores it to the registry and records the change
+   * atomically.
+   *
+   * @param replicaSetUid The ReplicaSet UID of the load balancer.
+   * @param serverName The server name of the load balancer.
+   * @param initialServer Whether the load balancer is an initial server.
+   * @return true if registered, false if the name is used by another server.
+   */
+  public boolean registerLoadBalancer(
       String replicaSetUid, String serverName, boolean initialServer) {
     try (Jedis jedis = jedisPool.getResource()) {
-      jedis.publish(
-          RedisKeys.LOAD_BALANCER_ADDED_NOTIFY_PREFIX.getKey() + groupName,
-          replicaSetUid + ":" + serverName + ":" + initialServer);
+      Object result =
+          evalFenced(
+              jedis,
+              RedisScripts.REGISTER_LOAD_BALANCER,
+              List.of(
+                  getEpochToken(),
+                  getChangeStreamMaxLength(),
+                  RedisChangeType.LOAD_BALANCER_ADDED.getKey(),
+                  RedisMessageCodec.encode(replicaSetUid, serverName, initialServer ? "1" : "0"),
+                  replicaSetUid,
+                  serverName));
+      return Objects.equals(result, 1L);
     }
   }
 
-  public void publishNewServer(String podUid, String serverName) {
+  /**
+   * Removes a load balancer and its name from the registry and records the change atomically.
+   *
+   * @param replicaSetUid The ReplicaSet UID of the load balancer.
+   */
+  public void unregisterLoadBalancer(String replicaSetUid) {
     try (Jedis jedis = jedisPool.getResource()) {
-      jedis.publish(
-          RedisKeys.POD_ADDED_NOTIFY_PREFIX.getKey() + groupName, podUid + ":" + serverName);
+      evalFenced(
+          jedis,
+          RedisScripts.UNREGISTER_LOAD_BALANCER,
+          List.of(
+              getEpochToken(),
+              getChangeStreamMaxLength(),
+              RedisChangeType.LOAD_BALANCER_DELETED.getKey(),
+              RedisMessageCodec.encode(replicaSetUid),
+              replicaSetUid));
     }
   }
 
-  public void publishDeletedLoadBalancer(String replicaSetUid) {
+  /**
+   * Allocates server names for added pods, removes deleted pods and records one change for the
+   * batch atomically.
+   *
+   * @param preferredServerNames The map of added pod uids and their preferred server names.
+   * @param deletedPodUids The deleted pod uids.
+   * @return The map of added pod uids and allocated server names.
+   */
+  public Map<String, String> updateServers(
+      Map<String, String> preferredServerNames, Collection<String> deletedPodUids) {
+    return updateServers(preferredServerNames, deletedPodUids, null);
+  }
+
+  /**
+   * Allocates server names for added pods, removes deleted pods and records one change for the
+   * batch atomically. The trace is stored with the change. Its write time is set to the time Redis
+   * executed the write, and its publish time to the time the write returned.
+   *
+   * @param preferredServerNames The map of added pod uids and their preferred server names.
+   * @param deletedPodUids The deleted pod uids.
+   * @param trace The propagation trace of the added pods, or null.
+   * @return The map of added pod uids and allocated server names.
+   */
+  public Map<String, String> updateServers(
+      Map<String, String> preferredServerNames,
+      Collection<String> deletedPodUids,
+      @Nullable PropagationTrace trace) {
+    if (preferredServerNames.isEmpty() && deletedPodUids.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    List<String> args =
+        new ArrayList<>(5 + preferredServerNames.size() * 2 + deletedPodUids.size());
+    args.add(getEpochToken());
+    args.add(getChangeStreamMaxLength());
+    args.add(RedisChangeType.SERVERS.getKey());
+    args.add(String.valueOf(preferredServerNames.size()));
+    args.add(trace == null || trace.isEmpty() ? "" : trace.encode());
+    for (Map.Entry<String, String> entry : preferredServerNames.entrySet()) {
+      args.add(entry.getKey());
+      args.add(entry.getValue());
+    }
+    args.addAll(deletedPodUids);
+
+    Object result;
     try (Jedis jedis = jedisPool.getResource()) {
-      jedis.publish(
-          RedisKeys.LOAD_BALANCER_DELETED_NOTIFY_PREFIX.getKey() + groupName, replicaSetUid);
+      result = evalFenced(jedis, RedisScripts.UPDATE_SERVERS, args);
+    }
+    List<?> reply = (List<?>) result;
+    if (trace != null) {
+      trace.setWrittenAtMillis(Long.parseLong(String.valueOf(reply.get(0))));
+      trace.setPublishedAtMillis(System.currentTimeMillis());
+    }
+
+    LinkedHashMap<String, String> allocatedServerNames = new LinkedHashMap<>();
+    List<?> pairs = (List<?>) reply.get(1);
+    for (int i = 0; i + 1 < pairs.size(); i += 2) {
+      allocatedServerNames.put(String.valueOf(pairs.get(i)), String.valueOf(pairs.get(i + 1)));
     }
+    return allocatedServerNames;
   }
 
-  public void publishDeletedServer(String podUid) {
-    try (Jedis jedis = jedisPool.getResource()) {
-      jedis.publish(RedisKeys.POD_DELETED_NOTIFY_PREFIX.getKey() + groupName, podUid);
+  /**
+   * Removes a server from the registry and records the change atomically.
+   *
+   * @param podUid The pod uid of the server.
+   */
+  public void unregisterServer(String podUid) {
+    updateServers(Collections.emptyMap(), Collections.singletonList(podUid));
+  }
+
+  private String getChangeStreamMaxLength() {
+    return String.valueOf(plugin.getKuvelConfig().getChangeStreamMaxLength());
+  }
+
+  private String getEpochToken() {
+    ShardCoordinator coordinator = shardCoordinator;
+    if (coordinator != null) {
+      if (!coordinator.isMember()) {
+        throw new LeadershipLostException("This proxy is not a live shard member");
+      }
+      return coordinator.getWriteToken();
+    }
+
+    long currentEpoch = epoch;
+    if (currentEpoch == 0) {
+      throw new LeadershipLostException("This proxy is not the leader");
     }
+    return String.valueOf(currentEpoch);
   }
 
-  private void runDiscoveryTask() {
+  private Object evalFenced(Jedis jedis, RedisScripts script, List<String> args) {
+    try {
+      return script.eval(jedis, RedisScripts.getRegistryKeys(groupName), args);
+    } catch (JedisDataException e) {
+      if (e.getMessage() == null || !e.getMessage().startsWith("FENCED")) {
+        throw e;
+      }
+
+      onFenced(args.get(0));
+      throw new LeadershipLostException(
+          "Registry write of epoch " + args.get(0) + " was fenced", e);
+    }
+  }
+
+  private void onFenced(String fencedEpoch) {
+    synchronized (this) {
+      if (!String.valueOf(epoch).equals(fencedEpoch)) {
+        return;
+      }
+      epoch = 0;
+    }
+
+    plugin.getLogger().warn("Another proxy took over the leadership. Stopping discovery.");
+    // the discovery may be the caller, so stop it from another thread
+    plugin
+        .getKuvelExecutor()
+        .getRootScope()
+        .submit(
+            () -> {
+              synchronized (this) {
+                if (epoch == 0) {
+                  stopDiscoveryTask();
+                }
+              }
+            });
+  }
+
+  private void rebuildRegistryIndex(Jedis jedis) {
+    evalFenced(jedis, RedisScripts.REBUILD_REGISTRY_INDEX, List.of(getEpochToken()));
+  }
+
+  /**
+   * Reserves the names of the servers in velocity.toml in the name index, so the registry never
+   * allocates them. This runs once when this proxy starts writing the registry, after the index
+   * was rebuilt.
+   */
+  private void reserveStaticServerNames(Jedis jedis) {
+    Collection<String> names = plugin.getProxy().getConfiguration().getServers().keySet();
+    if (names.isEmpty()) {
+      return;
+    }
+
+    List<String> args = new ArrayList<>(1 + names.size());
+    args.add(getEpochToken());
+    args.addAll(names);
+    for (Object name : (List<?>) evalFenced(jedis, RedisScripts.RESERVE_SERVER_NAMES, args)) {
+      plugin
+          .getLogger()
+          .warn(
+              "The server name "
+                  + name
+                  + " of velocity.toml is already used by a server of Kuvel. Rename either one.");
+    }
+  }
+
+  private String getLeaderKey() {
+    return RedisKeys.LEADER_PREFIX.getKey() + groupName;
+  }
+
+  private void runDiscoveryTask(boolean registryLoaded) {
     if (plugin.getKuvelConfig().getRedisConnectionData() == null) {
       leaveLeader();
       return;
     }
+    if (!startupReconciled) {
+      // the startup reconciliation installs the discoveries of the leader
+      return;
+    }
+
+    // a warm follower already mirrors the registry and the cluster state, so the discovery only
+    // has to process what diverged instead of reloading everything from Redis and the API server
+    DiscoveryCache discoveryCache = plugin.getDiscoveryCache();
+    RedisRegistrySynchronizer synchronizer = plugin.getRedisRegistrySynchronizer();
+    boolean warm =
+        registryLoaded
+            || discoveryCache != null
+                && discoveryCache.isSynced()
+                && synchronizer != null
+                && synchronizer.isInitialized();
+    if (warm) {
+      plugin.getLogger().info("Taking over the discovery from the warm standby state.");
+    }
 
     plugin
         .getKuvelServiceHandler()
@@ -121,10 +558,12 @@ public class RedisConnectionLeader {
                 plugin.getClient(),
                 plugin,
                 plugin.getKuvelConfig().getNamespace(),
-                plugin.getKuvelConfig().getRedisConnectionData().createJedisPool(),
+                plugin.getRedisPoolManager().getPool(),
                 plugin.getKuvelConfig().getProxyGroupName(),
                 this,
-                plugin.getKuvelServiceHandler()));
+                plugin.getKuvelServiceHandler(),
+                discoveryCache),
+            warm);
 
     plugin
         .getKuvelServiceHandler()
@@ -133,13 +572,23 @@ public class RedisConnectionLeader {
                 plugin.getClient(),
                 plugin,
                 plugin.getKuvelConfig().getNamespace(),
-                plugin.getKuvelConfig().getRedisConnectionData().createJedisPool(),
+                plugin.getRedisPoolManager().getPool(),
                 plugin.getKuvelConfig().getProxyGroupName(),
                 this,
-                plugin.getKuvelServiceHandler()));
+                plugin.getKuvelServiceHandler(),
+                discoveryCache),
+            warm);
   }
 
   private void stopDiscoveryTask() {
+    plugin.getMetrics().getLeaderLosses().increment();
+    if (!startupReconciled) {
+      return;
+    }
+    removeDiscoveries();
+  }
+
+  private void removeDiscoveries() {
     plugin.getKuvelServiceHandler().setAndRunLoadBalancerDiscovery(null);
     plugin.getKuvelServiceHandler().setAndRunServerDiscovery(null);
   }
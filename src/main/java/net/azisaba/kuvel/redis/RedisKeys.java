@@ -6,15 +6,18 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
 public enum RedisKeys {
   LEADER_PREFIX("kuvel:leader:"),
+  LEADER_EPOCH_PREFIX("kuvel:leader-epoch:"),
   PROXY_ID_PREFIX("kuvel:proxy-id:"),
   SERVERS_PREFIX("kuvel:servers:"),
   LOAD_BALANCERS_PREFIX("kuvel:load-balancers:"),
+  SERVER_NAMES_PREFIX("kuvel:server-names:"),
+  SERVER_NAME_COUNTERS_PREFIX("kuvel:server-name-counters:"),
+  CHANGE_STREAM_PREFIX("kuvel:changes:"),
+  REGISTRY_META_PREFIX("kuvel:registry-meta:"),
+  REGISTRY_CHANGES_PREFIX("kuvel:registry-changes:"),
+  SHARD_MEMBERS_PREFIX("kuvel:shard-members:"),
 
   NOTIFY_CHANNEL_PREFIX("kuvel:notify:"),
-  POD_ADDED_NOTIFY_PREFIX("kuvel:notify:add:pod:"),
-  LOAD_BALANCER_ADDED_NOTIFY_PREFIX("kuvel:notify:add:lb:"),
-  POD_DELETED_NOTIFY_PREFIX("kuvel:notify:del:pod:"),
-  LOAD_BALANCER_DELETED_NOTIFY_PREFIX("kuvel:notify:del:lb:"),
   LEADER_LEAVE_NOTIFY_PREFIX("kuvel:notify:leader-leave:"),
   LEADER_CHANGED_NOTIFY_PREFIX("kuvel:notify:leader-changed:");
 
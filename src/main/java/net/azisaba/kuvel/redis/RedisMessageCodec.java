@@ -0,0 +1,157 @@
+package net.azisaba.kuvel.redis;
+
+import java.nio.charset.StandardCharsets;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * Encodes and decodes the payloads of registry changes. A payload is the schema version followed
+ * by {@code #} and length-prefixed fields, e.g. {@code 1#3:abc5:lobby}. The length is the number
+ * of UTF-8 bytes of the field, so a field may contain any character including {@code :}.
+ *
+ * <p>New fields are only ever appended, so a reader ignores the fields it does not know and a
+ * payload of a newer schema version can still be read.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class RedisMessageCodec {
+
+  public static final int SCHEMA_VERSION = 1;
+
+  /**
+   * Encodes the fields with the current schema version.
+   *
+   * @param fields The fields to encode.
+   * @return The payload.
+   */
+  public static String encode(String... fields) {
+    StringBuilder builder = new StringBuilder(fields.length * 24).append(SCHEMA_VERSION).append('#');
+    for (String field : fields) {
+      appendField(builder, field);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Appends a length-prefixed field to the builder.
+   *
+   * @param builder The builder of the payload.
+   * @param field The field to append.
+   */
+  public static void appendField(StringBuilder builder, String field) {
+    builder.append(utf8Length(field)).append(':').append(field);
+  }
+
+  /**
+   * Starts decoding the payload. The fields are read in one pass as they are requested.
+   *
+   * @param message The payload.
+   * @return The reader of the fields.
+   * @throws IllegalArgumentException If the payload has no schema version.
+   */
+  public static Reader decode(String message) {
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    int version = 0;
+    int position = 0;
+    while (position < bytes.length && bytes[position] != '#') {
+      version = version * 10 + digit(bytes[position++]);
+    }
+    if (position == 0 || position == bytes.length) {
+      throw new IllegalArgumentException("Missing schema version: " + message);
+    }
+    return new Reader(bytes, version, position + 1);
+  }
+
+  /**
+   * Counts the bytes of the value encoded with {@link String#getBytes} in UTF-8, without encoding
+   * it. A surrogate pair is 4 bytes, and an unpaired surrogate is replaced with 1 byte ({@code ?}),
+   * the same as the encoder does.
+   */
+  private static int utf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isSurrogate(c)) {
+        if (i + 1 < value.length() && Character.isSurrogatePair(c, value.charAt(i + 1))) {
+          length += 4;
+          i++;
+        } else {
+          length++;
+        }
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private static int digit(byte b) {
+    if (b < '0' || b > '9') {
+      throw new IllegalArgumentException("Malformed payload: unexpected '" + (char) b + "'");
+    }
+    return b - '0';
+  }
+
+  /** Reads the fields of a payload in order without copying the skipped ones. */
+  public static final class Reader {
+
+    private final byte[] bytes;
+    @Getter private final int schemaVersion;
+    private int position;
+
+    private Reader(byte[] bytes, int schemaVersion, int position) {
+      this.bytes = bytes;
+      this.schemaVersion = schemaVersion;
+      this.position = position;
+    }
+
+    public boolean hasNext() {
+      return position < bytes.length;
+    }
+
+    /**
+     * Reads the next field.
+     *
+     * @return The field.
+     * @throws IllegalArgumentException If there is no next field or the payload is malformed.
+     */
+    public String next() {
+      int length = nextLength();
+      String field = new String(bytes, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return field;
+    }
+
+    public boolean nextBoolean() {
+      int length = nextLength();
+      boolean value = length == 1 && bytes[position] == '1';
+      position += length;
+      return value;
+    }
+
+    /** Skips the next field. */
+    public void skip() {
+      position += nextLength();
+    }
+
+    private int nextLength() {
+      int length = 0;
+      int start = position;
+      while (position < bytes.length && bytes[position] != ':') {
+        length = length * 10 + digit(bytes[position++]);
+      }
+      if (position == start || position == bytes.length) {
+        throw new IllegalArgumentException("Malformed payload: missing field length");
+      }
+      position++;
+      if (length > bytes.length - position) {
+        throw new IllegalArgumentException("Malformed payload: field exceeds the payload");
+      }
+      return length;
+    }
+  }
+}
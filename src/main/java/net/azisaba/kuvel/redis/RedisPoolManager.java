@@ -0,0 +1,103 @@
+package net.azisaba.kuvel.redis;
+
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.config.KuvelConfig;
+import net.azisaba.kuvel.util.RedisConnectionData;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Owns the Redis connection pools of the plugin. Short commands share one pool. Pub/sub and
+ * blocking stream reads hold a connection for a long time, so they use a separate pool which is
+ * sized for exactly those connections and cannot starve the shared pool.
+ */
+public class RedisPoolManager {
+
+  // the leader notification subscription and the change stream reader
+  private static final int BLOCKING_CONNECTIONS = 2;
+  private static final long STATS_INTERVAL_SECONDS = 60;
+
+  private final Kuvel plugin;
+
+  @Getter private final InstrumentedJedisPool pool;
+  @Getter private final InstrumentedJedisPool blockingPool;
+
+  private ScheduledTask statsTask;
+  private long lastReportedExhaustedCount = 0;
+
+  public RedisPoolManager(Kuvel plugin, RedisConnectionData connectionData) {
+    if (connectionData.getUsername() != null && connectionData.getPassword() == null) {
+      throw new IllegalArgumentException(
+          "Redis password cannot be null if redis username is not null");
+    }
+
+    this.plugin = plugin;
+
+    KuvelConfig config = plugin.getKuvelConfig();
+    int timeoutMillis = config.getRedisTimeoutMillis();
+
+    JedisPoolConfig poolConfig = new JedisPoolConfig();
+    poolConfig.setMaxTotal(config.getRedisPoolMaxTotal());
+    poolConfig.setMaxIdle(config.getRedisPoolMaxIdle());
+    poolConfig.setMinIdle(config.getRedisPoolMinIdle());
+    poolConfig.setMaxWait(Duration.ofMillis(config.getRedisPoolMaxWaitMillis()));
+    poolConfig.setTimeBetweenEvictionRuns(
+        Duration.ofSeconds(config.getRedisPoolEvictionIntervalSeconds()));
+    poolConfig.setMinEvictableIdleTime(
+        Duration.ofSeconds(config.getRedisPoolMinEvictableIdleSeconds()));
+    poolConfig.setTestWhileIdle(true);
+    pool = new InstrumentedJedisPool("shared", poolConfig, connectionData, timeoutMillis);
+
+    JedisPoolConfig blockingPoolConfig = new JedisPoolConfig();
+    blockingPoolConfig.setMaxTotal(BLOCKING_CONNECTIONS);
+    blockingPoolConfig.setMaxIdle(BLOCKING_CONNECTIONS);
+    blockingPoolConfig.setMinIdle(0);
+    blockingPoolConfig.setMaxWait(Duration.ofMillis(config.getRedisPoolMaxWaitMillis()));
+    blockingPool =
+        new InstrumentedJedisPool("blocking", blockingPoolConfig, connectionData, timeoutMillis);
+  }
+
+  /** Starts logging the pool statistics when a pool was exhausted. */
+  public void runTask() {
+    statsTask =
+        plugin
+            .getProxy()
+            .getScheduler()
+            .buildTask(plugin, this::reportExhaustion)
+            .repeat(STATS_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            .schedule();
+  }
+
+  public List<InstrumentedJedisPool> getPools() {
+    return List.of(pool, blockingPool);
+  }
+
+  /** Closes all pools. Connections which are still borrowed are closed when they are returned. */
+  public void shutdown() {
+    if (statsTask != null) {
+      statsTask.cancel();
+    }
+
+    for (JedisPool jedisPool : getPools()) {
+      jedisPool.close();
+    }
+  }
+
+  private void reportExhaustion() {
+    long exhaustedCount =
+        getPools().stream().mapToLong(InstrumentedJedisPool::getExhaustedCount).sum();
+    if (exhaustedCount == lastReportedExhaustedCount) {
+      return;
+    }
+    lastReportedExhaustedCount = exhaustedCount;
+
+    for (InstrumentedJedisPool jedisPool : getPools()) {
+      plugin.getLogger().warn("Redis pool " + jedisPool);
+    }
+  }
+}
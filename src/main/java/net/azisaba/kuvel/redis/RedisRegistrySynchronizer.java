@@ -0,0 +1,552 @@
+package net.azisaba.kuvel.redis;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+import io.fabric8.kubernetes.api.model.apps.ReplicaSet;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.discovery.DiscoveryCache;
+import net.azisaba.kuvel.loadbalancer.LoadBalancer;
+import net.azisaba.kuvel.loadbalancer.strategy.impl.RoundRobinLoadBalancingStrategy;
+import net.azisaba.kuvel.util.KeyedWorkerPool;
+import net.azisaba.kuvel.util.LabelKeys;
+import net.azisaba.kuvel.util.UidAndServerNameMap;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Keeps the registry of a follower in sync with the registry in Redis. Changes are applied from
+ * the change stream as they arrive. In addition, the version and the digest of the registry are
+ * compared periodically, so a missed change is noticed within one interval. Only the entries
+ * which changed after the local version are fetched, and the whole registry is loaded only if
+ * those changes are no longer retained or the digest still differs afterwards.
+ *
+ * <p>The local registry is updated on the worker pool, in order per pod or ReplicaSet uid. The
+ * mirror and its digest record what the workers actually registered, not what they were asked to,
+ * so a change which failed to apply leaves the digest different from Redis and is applied again by
+ * the next check.
+ */
+@RequiredArgsConstructor
+public class RedisRegistrySynchronizer {
+
+  private static final String SERVER_KIND = "s";
+  private static final String LOAD_BALANCER_KIND = "l";
+
+  private final Kuvel plugin;
+  private final JedisPool jedisPool;
+  private final String groupName;
+  private final KuvelServiceHandler kuvelServiceHandler;
+  private final RedisConnectionLeader redisConnectionLeader;
+  private final KeyedWorkerPool workerPool;
+
+  private final AtomicReference<Future<?>> taskReference = new AtomicReference<>();
+  // pod uid to the trace of its registration, until the worker registered the server
+  private final ConcurrentHashMap<String, PropagationTrace> pendingTraces =
+      new ConcurrentHashMap<>();
+
+  // the entries the workers registered, i.e. uid to server name, and their digest. Guarded by
+  // mirrorLock, which is never held while submitting to the workers.
+  private final HashMap<String, String> servers = new HashMap<>();
+  private final HashMap<String, String> loadBalancers = new HashMap<>();
+  private final Object mirrorLock = new Object();
+  private int digest = 0;
+  // the number of submitted entries which the workers did not apply yet
+  private final AtomicInteger pendingChanges = new AtomicInteger();
+  private long version = 0;
+  private boolean initialized = false;
+
+  /**
+   * Returns whether the mirror was loaded from Redis at least once.
+   *
+   * @return true if the registry of this proxy follows Redis.
+   */
+  public synchronized boolean isInitialized() {
+    return initialized;
+  }
+
+  /** Starts the periodic consistency check. */
+  public void start() {
+    long interval = plugin.getKuvelConfig().getAntiEntropyIntervalSeconds();
+    Future<?> task =
+        plugin
+            .getKuvelExecutor()
+            .getRootScope()
+            .repeat(this::runConsistencyCheck, 0, interval, TimeUnit.SECONDS);
+    Future<?> oldTask = taskReference.getAndSet(task);
+    if (oldTask != null) {
+      oldTask.cancel(true);
+    }
+  }
+
+  public void shutdown() {
+    Future<?> task = taskReference.getAndSet(null);
+    if (task != null) {
+      task.cancel(true);
+    }
+  }
+
+  /**
+   * Applies an entry of the registry change stream. The leader ignores the changes because it
+   * applied them when it wrote them. Entries which are already covered by the local version are
+   * skipped.
+   *
+   * @param typeKey The key of the change type.
+   * @param data The change data.
+   * @param entryVersion The registry version after the change, or null if not recorded.
+   * @param trace The propagation trace of the added servers, or null if not recorded.
+   */
+  public synchronized void applyChange(
+      String typeKey,
+      String data,
+      @Nullable String entryVersion,
+      @Nullable PropagationTrace trace) {
+    if (redisConnectionLeader.isLeader()) {
+      return;
+    }
+
+    RedisChangeType type = RedisChangeType.fromKey(typeKey);
+    if (type == null || data == null) {
+      plugin.getLogger().warn("Ignored unknown registry change: " + typeKey);
+      return;
+    }
+
+    long changeVersion = entryVersion == null ? -1 : Long.parseLong(entryVersion);
+    if (initialized && changeVersion >= 0 && changeVersion <= version) {
+      return;
+    }
+
+    RedisMessageCodec.Reader reader;
+    try {
+      reader = RedisMessageCodec.decode(data);
+    } catch (IllegalArgumentException e) {
+      plugin.getLogger().warn("Ignored malformed registry change: " + e.getMessage());
+      return;
+    }
+
+    switch (type) {
+      case SERVERS -> {
+        LinkedHashMap<String, String> changes = new LinkedHashMap<>();
+        while (reader.hasNext()) {
+          String operation = reader.next();
+          String uid = reader.next();
+          changes.put(uid, operation.equals("+") ? reader.next() : null);
+          if (trace != null && trace.contains(uid)) {
+            pendingTraces.put(uid, trace);
+          }
+        }
+
+        applyServerChanges(changes);
+      }
+      case LOAD_BALANCER_ADDED -> {
+        String uid = reader.next();
+        String serverName = reader.next();
+        boolean initialServer = reader.nextBoolean();
+        applyLoadBalancerChanges(
+            Collections.singletonMap(uid, serverName),
+            Collections.singletonMap(uid, initialServer));
+      }
+      case LOAD_BALANCER_DELETED ->
+          applyLoadBalancerChanges(
+              Collections.singletonMap(reader.next(), null), Collections.emptyMap());
+    }
+
+    if (changeVersion > version) {
+      version = changeVersion;
+    }
+  }
+
+  /**
+   * Compares the local version and digest with the registry in Redis and fetches the entries
+   * which changed after the local version. The whole registry is loaded if it was not loaded yet,
+   * the changes were trimmed or the digest still differs. The digest is only compared once the
+   * workers applied every submitted change, since it covers the applied entries.
+   */
+  public synchronized void checkConsistency() {
+    if (redisConnectionLeader.isLeader()) {
+      return;
+    }
+    if (!initialized) {
+      resynchronize();
+      return;
+    }
+
+    List<?> result;
+    try (Jedis jedis = jedisPool.getResource()) {
+      result =
+          (List<?>)
+              RedisScripts.READ_REGISTRY_CHANGES.eval(
+                  jedis,
+                  RedisScripts.getRegistryKeys(groupName),
+                  Collections.singletonList(String.valueOf(version)));
+    }
+
+    long remoteVersion = Long.parseLong(String.valueOf(result.get(0)));
+    int remoteDigest = Integer.parseInt(String.valueOf(result.get(1)));
+    long trimmedVersion = Long.parseLong(String.valueOf(result.get(2)));
+    if (remoteVersion == version && (remoteDigest == getDigest() || isApplying())) {
+      return;
+    }
+
+    // the registry was reset or the changes after the local version are gone
+    if (remoteVersion < version || version < trimmedVersion) {
+      resynchronize();
+      return;
+    }
+
+    if (result.size() > 3) {
+      LinkedHashMap<String, String> serverChanges = new LinkedHashMap<>();
+      LinkedHashMap<String, String> loadBalancerChanges = new LinkedHashMap<>();
+      List<?> changes = (List<?>) result.get(3);
+      for (int i = 0; i + 1 < changes.size(); i += 2) {
+        String member = String.valueOf(changes.get(i));
+        String name = changes.get(i + 1) == null ? null : String.valueOf(changes.get(i + 1));
+        String uid = member.substring(2);
+        if (member.startsWith(LOAD_BALANCER_KIND + ":")) {
+          loadBalancerChanges.put(uid, name);
+        } else {
+          serverChanges.put(uid, name);
+        }
+      }
+
+      applyServerChanges(serverChanges);
+      applyLoadBalancerChanges(loadBalancerChanges, Collections.emptyMap());
+      plugin
+          .getLogger()
+          .info(
+              "Caught up registry from version "
+                  + version
+                  + " to "
+                  + remoteVersion
+                  + ": "
+                  + serverChanges.size()
+                  + " servers, "
+                  + loadBalancerChanges.size()
+                  + " load balancers changed");
+    }
+    version = remoteVersion;
+
+    if (!isApplying() && getDigest() != remoteDigest) {
+      plugin
+          .getLogger()
+          .warn("Registry digest differs at version " + version + ". Resynchronizing.");
+      resynchronize();
+    }
+  }
+
+  /**
+   * Loads the whole registry from Redis and reconciles the local registry with it. This is used
+   * when changes may have been missed, e.g. the change stream was trimmed while this proxy was
+   * disconnected.
+   */
+  public synchronized void resynchronize() {
+    if (redisConnectionLeader.isLeader()) {
+      return;
+    }
+
+    List<?> result;
+    try (Jedis jedis = jedisPool.getResource()) {
+      result =
+          (List<?>)
+              RedisScripts.READ_REGISTRY_SNAPSHOT.eval(
+                  jedis, RedisScripts.getRegistryKeys(groupName), Collections.emptyList());
+    }
+
+    Map<String, String> remoteServers = toMap((List<?>) result.get(2));
+    Map<String, String> remoteLoadBalancers = toMap((List<?>) result.get(3));
+
+    // every entry is reconciled again, so the mirror is corrected even for the entries which are
+    // registered the same way and are skipped by the workers
+    HashMap<String, String> serverChanges = new HashMap<>(remoteServers);
+    for (String uid : kuvelServiceHandler.getPodUidAndServerNameMap().getAllMap().keySet()) {
+      serverChanges.putIfAbsent(uid, null);
+    }
+    HashMap<String, String> loadBalancerChanges = new HashMap<>(remoteLoadBalancers);
+    for (String uid : kuvelServiceHandler.getReplicaSetUidAndServerNameMap().getAllMap().keySet()) {
+      loadBalancerChanges.putIfAbsent(uid, null);
+    }
+    synchronized (mirrorLock) {
+      for (String uid : servers.keySet()) {
+        serverChanges.putIfAbsent(uid, null);
+      }
+      for (String uid : loadBalancers.keySet()) {
+        loadBalancerChanges.putIfAbsent(uid, null);
+      }
+    }
+
+    applyServerChanges(serverChanges);
+    applyLoadBalancerChanges(loadBalancerChanges, Collections.emptyMap());
+
+    version = Long.parseLong(String.valueOf(result.get(0)));
+    initialized = true;
+    if (getDigest(remoteServers, remoteLoadBalancers)
+        != Integer.parseInt(String.valueOf(result.get(1)))) {
+      plugin.getLogger().warn("Registry digest in Redis does not match its entries.");
+    }
+
+    plugin
+        .getLogger()
+        .info(
+            "Resynchronized registry at version "
+                + version
+                + ": "
+                + remoteServers.size()
+                + " servers, "
+                + remoteLoadBalancers.size()
+                + " load balancers");
+  }
+
+  private void runConsistencyCheck() {
+    try {
+      checkConsistency();
+    } catch (Exception e) {
+      plugin.getLogger().warn("Failed to check the registry consistency", e);
+    }
+  }
+
+  /**
+   * Returns whether submitted entries are not applied yet, including pods which wait for their
+   * discovery source to sync. The digest is not compared meanwhile.
+   */
+  private boolean isApplying() {
+    return pendingChanges.get() > 0 || kuvelServiceHandler.hasPendingPodRegistrations();
+  }
+
+  private int getDigest() {
+    synchronized (mirrorLock) {
+      return digest;
+    }
+  }
+
+  private void applyServerChanges(Map<String, String> changes) {
+    pendingChanges.addAndGet(changes.size());
+    workerPool.submitAll(
+        changes,
+        partition -> {
+          try {
+            reconcileServers(partition);
+          } finally {
+            recordApplied(
+                servers,
+                SERVER_KIND,
+                partition.keySet(),
+                kuvelServiceHandler.getPodUidAndServerNameMap());
+            pendingChanges.addAndGet(-partition.size());
+          }
+        });
+  }
+
+  private void applyLoadBalancerChanges(
+      Map<String, String> changes, Map<String, Boolean> knownInitialServers) {
+    pendingChanges.addAndGet(changes.size());
+    workerPool.submitAll(
+        changes,
+        partition -> {
+          try {
+            reconcileLoadBalancers(partition, knownInitialServers);
+          } finally {
+            recordApplied(
+                loadBalancers,
+                LOAD_BALANCER_KIND,
+                partition.keySet(),
+                kuvelServiceHandler.getReplicaSetUidAndServerNameMap());
+            pendingChanges.addAndGet(-partition.size());
+          }
+        });
+  }
+
+  /**
+   * Records the entries as they are registered on this proxy after a worker reconciled them, so
+   * an entry which failed to register is missing from the digest.
+   */
+  private void recordApplied(
+      Map<String, String> mirror, String kind, Collection<String> uids, UidAndServerNameMap map) {
+    synchronized (mirrorLock) {
+      for (String uid : uids) {
+        updateMirror(mirror, kind, uid, map.getServerNameFromUid(uid));
+      }
+    }
+  }
+
+  private void reconcileServers(Map<String, String> changes) {
+    List<String> deletedPodUids = new ArrayList<>();
+    LinkedHashMap<String, String> addedServers = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry : changes.entrySet()) {
+      String uid = entry.getKey();
+      String serverName = entry.getValue();
+
+      // a deletion is always passed on, since it also cancels a pending registration
+      if (serverName == null) {
+        deletedPodUids.add(uid);
+        continue;
+      }
+
+      String current = kuvelServiceHandler.getPodUidAndServerNameMap().getServerNameFromUid(uid);
+      if (Objects.equals(current, serverName)) {
+        continue;
+      }
+      if (current != null) {
+        deletedPodUids.add(uid);
+      }
+      addedServers.put(uid, serverName);
+    }
+
+    kuvelServiceHandler.unregisterPods(deletedPodUids);
+    kuvelServiceHandler.registerPodsByUid(addedServers);
+
+    for (String uid : changes.keySet()) {
+      PropagationTrace trace = pendingTraces.remove(uid);
+      if (trace != null
+          && addedServers.containsKey(uid)
+          && kuvelServiceHandler.isPodRegistered(uid)) {
+        trace.recordRegistered(plugin.getMetrics(), uid);
+      }
+    }
+  }
+
+  private void reconcileLoadBalancers(
+      Map<String, String> changes, Map<String, Boolean> knownInitialServers) {
+    HashMap<String, String> addedLoadBalancers = new HashMap<>();
+    for (Map.Entry<String, String> entry : changes.entrySet()) {
+      String uid = entry.getKey();
+      String serverName = entry.getValue();
+
+      String current =
+          kuvelServiceHandler.getReplicaSetUidAndServerNameMap().getServerNameFromUid(uid);
+      if (Objects.equals(current, serverName)) {
+        continue;
+      }
+      if (current != null) {
+        kuvelServiceHandler.unregisterLoadBalancer(uid);
+      }
+      if (serverName != null) {
+        addedLoadBalancers.put(uid, serverName);
+      }
+    }
+
+    HashMap<String, Boolean> initialServers = new HashMap<>(knownInitialServers);
+    if (!initialServers.keySet().containsAll(addedLoadBalancers.keySet())) {
+      String labelKeyPrefix = plugin.getKuvelConfig().getLabelKeyPrefix();
+      DiscoveryCache discoveryCache = plugin.getDiscoveryCache();
+      List<ReplicaSet> replicaSets =
+          discoveryCache != null && discoveryCache.isSynced()
+              ? discoveryCache.getReplicaSets()
+              : plugin
+                  .getKubernetesAccess()
+                  .list(
+                      "replicasets/" + kuvelServiceHandler.getNamespace() + "/discovery",
+                      plugin
+                          .getClient()
+                          .apps()
+                          .replicaSets()
+                          .inNamespace(kuvelServiceHandler.getNamespace())
+                          .withLabel(
+                              LabelKeys.ENABLE_SERVER_DISCOVERY.getKey(labelKeyPrefix), "true"));
+      for (ReplicaSet replicaSet : replicaSets) {
+        initialServers.putIfAbsent(
+            replicaSet.getMetadata().getUid(),
+            replicaSet
+                .getMetadata()
+                .getLabels()
+                .getOrDefault(LabelKeys.INITIAL_SERVER.getKey(labelKeyPrefix), "false")
+                .equalsIgnoreCase("true"));
+      }
+    }
+
+    for (Map.Entry<String, String> entry : addedLoadBalancers.entrySet()) {
+      Boolean initialServer = initialServers.get(entry.getKey());
+      if (initialServer == null) {
+        continue;
+      }
+
+      registerLoadBalancer(entry.getKey(), entry.getValue(), initialServer);
+    }
+  }
+
+  private void registerLoadBalancer(
+      String replicaSetUid, String serverName, boolean initialServer) {
+    RegisteredServer server =
+        plugin
+            .getProxy()
+            .registerServer(new ServerInfo(serverName, new InetSocketAddress("0.0.0.0", 0)));
+    LoadBalancer loadBalancer =
+        new LoadBalancer(
+            plugin.getProxy(),
+            server,
+            new RoundRobinLoadBalancingStrategy(),
+            replicaSetUid,
+            initialServer);
+    kuvelServiceHandler.registerLoadBalancer(loadBalancer);
+  }
+
+  private void updateMirror(
+      Map<String, String> mirror, String kind, String uid, @Nullable String serverName) {
+    String previous = serverName == null ? mirror.remove(uid) : mirror.put(uid, serverName);
+    if (Objects.equals(previous, serverName)) {
+      return;
+    }
+
+    if (previous != null) {
+      digest ^= entryDigest(kind, uid, previous);
+    }
+    if (serverName != null) {
+      digest ^= entryDigest(kind, uid, serverName);
+    }
+  }
+
+  private static int getDigest(
+      Map<String, String> remoteServers, Map<String, String> remoteLoadBalancers) {
+    int remoteDigest = 0;
+    for (Map.Entry<String, String> entry : remoteServers.entrySet()) {
+      remoteDigest ^= entryDigest(SERVER_KIND, entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<String, String> entry : remoteLoadBalancers.entrySet()) {
+      remoteDigest ^= entryDigest(LOAD_BALANCER_KIND, entry.getKey(), entry.getValue());
+    }
+    return remoteDigest;
+  }
+
+  private static Map<String, String> toMap(List<?> pairs) {
+    HashMap<String, String> map = new HashMap<>();
+    for (int i = 0; i + 1 < pairs.size(); i += 2) {
+      map.put(String.valueOf(pairs.get(i)), String.valueOf(pairs.get(i + 1)));
+    }
+    return map;
+  }
+
+  /**
+   * Calculates the digest of a registry entry in the same way as the registry scripts: the first
+   * 32 bits of SHA-1 of {@code <kind>:<uid>=<name>}.
+   */
+  private static int entryDigest(String kind, String uid, String serverName) {
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-1")
+              .digest((kind + ":" + uid + "=" + serverName).getBytes(StandardCharsets.UTF_8));
+      return ((hash[0] & 0xff) << 24)
+          | ((hash[1] & 0xff) << 16)
+          | ((hash[2] & 0xff) << 8)
+          | (hash[3] & 0xff);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,437 @@
+package net.azisaba.kuvel.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * Lua scripts executed on the Redis server. A script runs atomically, so registry hashes and the
+ * change stream entries for them can never get out of sync, and each call needs only one round
+ * trip.
+ *
+ * <p>All registry scripts take the same keys: KEYS[1]: the servers hash. KEYS[2]: the load
+ * balancers hash. KEYS[3]: the name index (server name to uid). KEYS[4]: the name suffix counters.
+ * KEYS[5]: the change stream. KEYS[6]: the registry meta hash (version, digest, trimmed). KEYS[7]:
+ * the registry change index (entry to the version of its last change). KEYS[8]: the leader epoch.
+ * KEYS[9]: the live shard members.
+ *
+ * <p>Scripts which change the registry take the leader epoch as ARGV[1] and fail with a {@code
+ * FENCED} error if it is not the current epoch, so a proxy which lost its leadership can never
+ * write to the registry. In sharded mode, ARGV[1] is {@code m:<member timeout>:<proxy id>}
+ * instead and the write fails if the last heartbeat of the proxy is older than the member timeout
+ * by the clock of Redis. Scripts which record changes take the max
+ * length of the history as ARGV[2] and the change type as ARGV[3].
+ */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public enum RedisScripts {
+
+  /**
+   * Allocates server names for new pods, removes deleted pods and appends one change for the whole
+   * batch to the change stream. The change is encoded as {@link RedisMessageCodec} fields: {@code
+   * +}, uid and name for each allocation, {@code -} and uid for each removal. Names are claimed in
+   * the name index with HSETNX, so two allocations can never return the same name. When the
+   * preferred name is taken, the suffix comes from a per-prefix counter instead of probing. Names
+   * reserved by {@link #RESERVE_SERVER_NAMES} are taken, so they are never allocated.
+   *
+   * <p>ARGV[4]: the number of added pods (n). ARGV[5]: the {@link PropagationTrace} of the added
+   * pods, or an empty string. The time of the write by the clock of Redis is appended to it. ARGV[6
+   * .. 5+2n]: pod uid and preferred name pairs. The rest: pod uids to remove. Returns the time of
+   * the write in milliseconds and the flat list of pod uid and allocated name pairs.
+   */
+  UPDATE_SERVERS(
+      Functions.REGISTRY
+          + """
+      if not holdsEpoch() then
+        return redis.error_reply(FENCED_ERROR)
+      end
+
+      local addCount = tonumber(ARGV[4])
+      local message = {}
+      for i = 6 + addCount * 2, #ARGV do
+        local uid = ARGV[i]
+        local name = redis.call('HGET', KEYS[1], uid)
+        if name then
+          redis.call('HDEL', KEYS[1], uid)
+          if redis.call('HGET', KEYS[3], name) == uid then
+            redis.call('HDEL', KEYS[3], name)
+          end
+          recordChange('s', uid, name, false)
+        end
+        table.insert(message, encodeField('-') .. encodeField(uid))
+      end
+
+      local allocated = {}
+      for i = 0, addCount - 1 do
+        local uid = ARGV[6 + i * 2]
+        local prefer = ARGV[7 + i * 2]
+        local name = redis.call('HGET', KEYS[1], uid)
+        if not name then
+          if redis.call('HSETNX', KEYS[3], prefer, uid) == 1 then
+            name = prefer
+          end
+          while not name do
+            local candidate = prefer .. '-' .. redis.call('HINCRBY', KEYS[4], prefer, 1)
+            if redis.call('HSETNX', KEYS[3], candidate, uid) == 1 then
+              name = candidate
+            end
+          end
+          redis.call('HSET', KEYS[1], uid, name)
+          recordChange('s', uid, false, name)
+        end
+        table.insert(allocated, uid)
+        table.insert(allocated, name)
+        table.insert(message, encodeField('+') .. encodeField(uid) .. encodeField(name))
+      end
+
+      local now = nowMillis()
+      local trace = ARGV[5]
+      if trace ~= '' then
+        trace = trace .. encodeField(string.format('%d', now))
+      end
+      if #message > 0 then
+        appendChange(MESSAGE_SCHEMA_VERSION .. '#' .. table.concat(message), trace)
+      end
+      return {now, allocated}
+      """),
+
+  /**
+   * Claims the name of a load balancer in the name index, stores it and appends the change to the
+   * change stream.
+   *
+   * <p>ARGV[4]: the change data. ARGV[5]: the ReplicaSet uid. ARGV[6]: the server name. Returns 1
+   * if registered, 0 if the name is used by another server.
+   */
+  REGISTER_LOAD_BALANCER(
+      Functions.REGISTRY
+          + """
+      if not holdsEpoch() then
+        return redis.error_reply(FENCED_ERROR)
+      end
+      if redis.call('HSETNX', KEYS[3], ARGV[6], ARGV[5]) == 0
+          and redis.call('HGET', KEYS[3], ARGV[6]) ~= ARGV[5] then
+        return 0
+      end
+      recordChange('l', ARGV[5], redis.call('HGET', KEYS[2], ARGV[5]), ARGV[6])
+      redis.call('HSET', KEYS[2], ARGV[5], ARGV[6])
+      appendChange(ARGV[4])
+      return 1
+      """),
+
+  /**
+   * Removes a load balancer and its name from the registry and appends the change to the change
+   * stream.
+   *
+   * <p>ARGV[4]: the change data. ARGV[5]: the ReplicaSet uid.
+   */
+  UNREGISTER_LOAD_BALANCER(
+      Functions.REGISTRY
+          + """
+      if not holdsEpoch() then
+        return redis.error_reply(FENCED_ERROR)
+      end
+      local name = redis.call('HGET', KEYS[2], ARGV[5])
+      if name then
+        redis.call('HDEL', KEYS[2], ARGV[5])
+        if redis.call('HGET', KEYS[3], name) == ARGV[5] then
+          redis.call('HDEL', KEYS[3], name)
+        end
+        recordChange('l', ARGV[5], name, false)
+      end
+      appendChange(ARGV[4])
+      return 1
+      """),
+
+  /**
+   * Rebuilds the name index and the registry digest from the servers and load balancers hashes.
+   * The version is incremented if the digest was wrong, so followers notice the difference.
+   */
+  REBUILD_REGISTRY_INDEX(
+      Functions.REGISTRY
+          + """
+      if not holdsEpoch() then
+        return redis.error_reply(FENCED_ERROR)
+      end
+      redis.call('DEL', KEYS[3])
+      local digest = 0
+      local servers = redis.call('HGETALL', KEYS[1])
+      for i = 1, #servers, 2 do
+        redis.call('HSET', KEYS[3], servers[i + 1], servers[i])
+        digest = bit.bxor(digest, entryDigest('s', servers[i], servers[i + 1]))
+      end
+      local loadBalancers = redis.call('HGETALL', KEYS[2])
+      for i = 1, #loadBalancers, 2 do
+        redis.call('HSET', KEYS[3], loadBalancers[i + 1], loadBalancers[i])
+        digest = bit.bxor(digest, entryDigest('l', loadBalancers[i], loadBalancers[i + 1]))
+      end
+      if tonumber(redis.call('HGET', KEYS[6], 'digest') or '0') ~= digest then
+        redis.call('HSET', KEYS[6], 'digest', digest)
+        redis.call('HINCRBY', KEYS[6], 'version', 1)
+      end
+      return (#servers + #loadBalancers) / 2
+      """),
+
+  /**
+   * Reserves the names of servers which are not managed by Kuvel, e.g. servers defined in
+   * velocity.toml, in the name index, so they are never allocated to a pod or a load balancer. The
+   * reserved names map to {@code -} instead of a uid, so removing an entry never releases them.
+   *
+   * <p>ARGV[2 ..]: the names to reserve. Returns the names which are already used by a server of
+   * Kuvel.
+   */
+  RESERVE_SERVER_NAMES(
+      Functions.REGISTRY
+          + """
+      if not holdsEpoch() then
+        return redis.error_reply(FENCED_ERROR)
+      end
+      local used = {}
+      for i = 2, #ARGV do
+        if redis.call('HSETNX', KEYS[3], ARGV[i], '-') == 0
+            and redis.call('HGET', KEYS[3], ARGV[i]) ~= '-' then
+          table.insert(used, ARGV[i])
+        end
+      end
+      return used
+      """),
+
+  /**
+   * Acquires or renews the leader lease. A new epoch is issued whenever the lease is newly
+   * acquired.
+   *
+   * <p>KEYS[1]: the leader key. KEYS[2]: the leader epoch. ARGV[1]: the proxy id. ARGV[2]: the
+   * lease in milliseconds. Returns the epoch of the lease, or 0 if another proxy holds it.
+   */
+  ACQUIRE_LEADER(
+      """
+      if redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then
+        return redis.call('INCR', KEYS[2])
+      end
+      if redis.call('GET', KEYS[1]) ~= ARGV[1] then
+        return 0
+      end
+      redis.call('PEXPIRE', KEYS[1], ARGV[2])
+      local epoch = redis.call('GET', KEYS[2])
+      if not epoch then
+        return redis.call('INCR', KEYS[2])
+      end
+      return tonumber(epoch)
+      """),
+
+  /**
+   * Records the heartbeat of a shard member, removes the members whose heartbeat is too old and
+   * returns the live members. The heartbeats are timed by the clock of Redis, so a proxy whose
+   * clock is off can neither remove live members nor keep itself alive.
+   *
+   * <p>KEYS[1]: the shard members. ARGV[1]: the proxy id. ARGV[2]: the member timeout in
+   * milliseconds. ARGV[3]: the expiry of the key in milliseconds.
+   */
+  SHARD_HEARTBEAT(
+      """
+      local time = redis.call('TIME')
+      local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+      redis.call('ZADD', KEYS[1], now, ARGV[1])
+      redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', '(' .. (now - tonumber(ARGV[2])))
+      redis.call('PEXPIRE', KEYS[1], ARGV[3])
+      return redis.call('ZRANGE', KEYS[1], 0, -1)
+      """),
+
+  /**
+   * Releases the leader lease if it is held by the proxy.
+   *
+   * <p>KEYS[1]: the leader key. ARGV[1]: the proxy id. Returns 1 if released.
+   */
+  RELEASE_LEADER(
+      """
+      if redis.call('GET', KEYS[1]) == ARGV[1] then
+        return redis.call('DEL', KEYS[1])
+      end
+      return 0
+      """),
+
+  /**
+   * Reads the whole registry. Returns the version, the digest, the flat servers hash and the flat
+   * load balancers hash.
+   */
+  READ_REGISTRY_SNAPSHOT(
+      """
+      local meta = redis.call('HMGET', KEYS[6], 'version', 'digest')
+      return {meta[1] or '0', meta[2] or '0',
+          redis.call('HGETALL', KEYS[1]), redis.call('HGETALL', KEYS[2])}
+      """),
+
+  /**
+   * Reads the registry entries which changed after the specified version.
+   *
+   * <p>ARGV[1]: the version the caller already has. Returns the version, the digest, the trimmed
+   * version and, if the caller is behind and the changes are still retained, the flat list of the
+   * changed entries ({@code s:<uid>} or {@code l:<uid>}) and their current names (nil if deleted).
+   */
+  READ_REGISTRY_CHANGES(
+      """
+      local meta = redis.call('HMGET', KEYS[6], 'version', 'digest', 'trimmed')
+      local version = meta[1] or '0'
+      local trimmed = meta[3] or '0'
+      local result = {version, meta[2] or '0', trimmed}
+      local since = tonumber(ARGV[1])
+      if since < tonumber(trimmed) or since >= tonumber(version) then
+        return result
+      end
+
+      local changes = {}
+      for _, member in ipairs(redis.call('ZRANGEBYSCORE', KEYS[7], '(' .. ARGV[1], '+inf')) do
+        local hash = KEYS[1]
+        if string.sub(member, 1, 1) == 'l' then
+          hash = KEYS[2]
+        end
+        table.insert(changes, member)
+        table.insert(changes, redis.call('HGET', hash, string.sub(member, 3)))
+      end
+      table.insert(result, changes)
+      return result
+      """);
+
+  private final String source;
+  private String sha1;
+
+  /**
+   * Executes the script. The cached script is used if the server already knows it, otherwise the
+   * script body is sent.
+   *
+   * @param jedis The connection to use.
+   * @param keys The keys of the script.
+   * @param args The arguments of the script.
+   * @return The result of the script.
+   */
+  public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+    try {
+      return jedis.evalsha(getSha1(), keys, args);
+    } catch (JedisNoScriptException e) {
+      return jedis.eval(source, keys, args);
+    }
+  }
+
+  /**
+   * Returns the keys of the registry of the specified group in the order the registry scripts
+   * take them.
+   *
+   * @param groupName The proxy group name.
+   * @return The registry keys.
+   */
+  public static List<String> getRegistryKeys(String groupName) {
+    return List.of(
+        RedisKeys.SERVERS_PREFIX.getKey() + groupName,
+        RedisKeys.LOAD_BALANCERS_PREFIX.getKey() + groupName,
+        RedisKeys.SERVER_NAMES_PREFIX.getKey() + groupName,
+        RedisKeys.SERVER_NAME_COUNTERS_PREFIX.getKey() + groupName,
+        RedisKeys.CHANGE_STREAM_PREFIX.getKey() + groupName,
+        RedisKeys.REGISTRY_META_PREFIX.getKey() + groupName,
+        RedisKeys.REGISTRY_CHANGES_PREFIX.getKey() + groupName,
+        RedisKeys.LEADER_EPOCH_PREFIX.getKey() + groupName,
+        RedisKeys.SHARD_MEMBERS_PREFIX.getKey() + groupName);
+  }
+
+  private String getSha1() {
+    if (sha1 != null) {
+      return sha1;
+    }
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      StringBuilder builder = new StringBuilder();
+      for (byte b : digest.digest(source.getBytes(StandardCharsets.UTF_8))) {
+        builder.append(String.format("%02x", b));
+      }
+      sha1 = builder.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+    return sha1;
+  }
+
+  private static class Functions {
+
+    /**
+     * Functions shared by the registry scripts. {@code nowMillis} returns the time of Redis in
+     * milliseconds. {@code holdsEpoch} checks the fencing token, and
+     * for a shard member whether its heartbeat is within the member timeout by the clock of Redis,
+     * so a paused member is fenced even before another heartbeat removes it. Every
+     * change of an entry increments the version, updates the digest (XOR of the first 32 bits of
+     * SHA-1 of each entry) and records the version in the change index. {@code appendChange} trims
+     * the change index to the history length and appends the change to the stream with the
+     * resulting version, and with the trace if one is given. {@code encodeField} encodes a field
+     * in the same way as {@link RedisMessageCodec}.
+     */
+    private static final String REGISTRY =
+        "local MESSAGE_SCHEMA_VERSION = '"
+            + RedisMessageCodec.SCHEMA_VERSION
+            + "'\n"
+            + """
+
+        local FENCED_ERROR = 'FENCED stale leader epoch'
+
+        local function nowMillis()
+          local time = redis.call('TIME')
+          return tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+        end
+
+        local function holdsEpoch()
+          if string.sub(ARGV[1], 1, 2) == 'm:' then
+            local separator = string.find(ARGV[1], ':', 3, true)
+            local timeout = tonumber(string.sub(ARGV[1], 3, separator - 1))
+            local heartbeat = redis.call('ZSCORE', KEYS[9], string.sub(ARGV[1], separator + 1))
+            if not heartbeat then
+              return false
+            end
+            return tonumber(heartbeat) >= nowMillis() - timeout
+          end
+          return redis.call('GET', KEYS[8]) == ARGV[1]
+        end
+
+        local function encodeField(value)
+          return #value .. ':' .. value
+        end
+
+        local function entryDigest(kind, uid, name)
+          local hash = redis.sha1hex(kind .. ':' .. uid .. '=' .. name)
+          return bit.tobit(tonumber(string.sub(hash, 1, 8), 16))
+        end
+
+        local function recordChange(kind, uid, oldName, newName)
+          if oldName == newName then
+            return
+          end
+          local digest = tonumber(redis.call('HGET', KEYS[6], 'digest') or '0')
+          if oldName then
+            digest = bit.bxor(digest, entryDigest(kind, uid, oldName))
+          end
+          if newName then
+            digest = bit.bxor(digest, entryDigest(kind, uid, newName))
+          end
+          local version = redis.call('HINCRBY', KEYS[6], 'version', 1)
+          redis.call('HSET', KEYS[6], 'digest', digest)
+          redis.call('ZADD', KEYS[7], version, kind .. ':' .. uid)
+        end
+
+        local function appendChange(data, trace)
+          local version = tonumber(redis.call('HGET', KEYS[6], 'version') or '0')
+          local floor = version - tonumber(ARGV[2])
+          if floor > 0 and redis.call('ZREMRANGEBYSCORE', KEYS[7], '-inf', floor) > 0 then
+            redis.call('HSET', KEYS[6], 'trimmed', floor)
+          end
+          if trace and trace ~= '' then
+            redis.call('XADD', KEYS[5], 'MAXLEN', '~', ARGV[2], '*',
+                'type', ARGV[3], 'data', data, 'version', version, 'trace', trace)
+          else
+            redis.call('XADD', KEYS[5], 'MAXLEN', '~', ARGV[2], '*',
+                'type', ARGV[3], 'data', data, 'version', version)
+          end
+        end
+
+        """;
+  }
+}
@@ -1,67 +1,54 @@
 package net.azisaba.kuvel.redis;
 
-import com.velocitypowered.api.proxy.server.RegisteredServer;
-import com.velocitypowered.api.proxy.server.ServerInfo;
-import java.net.InetSocketAddress;
-import lombok.AccessLevel;
-import lombok.RequiredArgsConstructor;
-import net.azisaba.kuvel.Kuvel;
-import net.azisaba.kuvel.KuvelServiceHandler;
-import net.azisaba.kuvel.loadbalancer.LoadBalancer;
-import net.azisaba.kuvel.loadbalancer.strategy.impl.RoundRobinLoadBalancingStrategy;
+import java.util.Map;
+import java.util.function.Consumer;
+import net.azisaba.kuvel.util.KeyedWorkerPool;
 import redis.clients.jedis.JedisPubSub;
 
-@RequiredArgsConstructor(access = AccessLevel.PROTECTED)
+/**
+ * Receives leader notifications and the expiry of the leader lease, so a follower can take over as
+ * soon as the lease of a failed leader expires. Handling a notification needs Redis calls, so the
+ * handlers run on the worker pool and the subscription thread only routes messages.
+ */
 public class RedisSubscriber extends JedisPubSub {
 
-  private final Kuvel plugin;
-  private final String groupName;
-  private final KuvelServiceHandler kuvelServiceHandler;
-  private final RedisConnectionLeader redisConnectionLeader;
-
-  @Override
-  public void onPMessage(String pattern, String channel, String message) {
-    String receivedGroupName = channel.split(":")[channel.split(":").length - 1];
-    if (!receivedGroupName.equalsIgnoreCase(groupName)) {
-      return;
-    }
-
-    if (channel.startsWith(RedisKeys.LEADER_CHANGED_NOTIFY_PREFIX.getKey())
-        || channel.startsWith(RedisKeys.LEADER_LEAVE_NOTIFY_PREFIX.getKey())) {
-      redisConnectionLeader.trySwitch();
-      return;
-    }
-
-    if (redisConnectionLeader.isLeader()) {
-      return;
-    }
-
-    if (channel.startsWith(RedisKeys.POD_ADDED_NOTIFY_PREFIX.getKey())) {
-      String podUid = message.split(":")[0];
-      String serverName = message.split(":")[1];
+  private static final String LEADER_TASK_KEY = "leader";
+
+  private final KeyedWorkerPool workerPool;
+  // exact channel name to the handler of its messages
+  private final Map<String, Consumer<String>> routes;
+
+  protected RedisSubscriber(
+      String groupName, RedisConnectionLeader redisConnectionLeader, KeyedWorkerPool workerPool) {
+    this.workerPool = workerPool;
+    routes =
+        Map.of(
+            RedisKeys.LEADER_CHANGED_NOTIFY_PREFIX.getKey() + groupName,
+            message -> redisConnectionLeader.trySwitch(),
+            RedisKeys.LEADER_LEAVE_NOTIFY_PREFIX.getKey() + groupName,
+            message -> redisConnectionLeader.trySwitch(),
+            redisConnectionLeader.getLeaderKeyspaceChannel(),
+            event -> {
+              if (event.equals("expired") || event.equals("del")) {
+                redisConnectionLeader.trySwitch();
+              }
+            });
+  }
 
-      kuvelServiceHandler.registerPod(podUid, serverName);
-    } else if (channel.startsWith(RedisKeys.LOAD_BALANCER_ADDED_NOTIFY_PREFIX.getKey())) {
-      String replicaSetUid = message.split(":")[0];
-      String serverName = message.split(":")[1];
-      boolean initialServer = Boolean.parseBoolean(message.split(":")[2]);
+  /**
+   * Returns the channels this subscriber handles.
+   *
+   * @return The channel names.
+   */
+  public String[] getChannels() {
+    return routes.keySet().toArray(new String[0]);
+  }
 
-      RegisteredServer server =
-          plugin
-              .getProxy()
-              .registerServer(new ServerInfo(serverName, new InetSocketAddress("0.0.0.0", 0)));
-      LoadBalancer loadBalancer =
-          new LoadBalancer(
-              plugin.getProxy(),
-              server,
-              new RoundRobinLoadBalancingStrategy(),
-              replicaSetUid,
-              initialServer);
-      kuvelServiceHandler.registerLoadBalancer(loadBalancer);
-    } else if (channel.startsWith(RedisKeys.POD_DELETED_NOTIFY_PREFIX.getKey())) {
-      kuvelServiceHandler.unregisterPod(message);
-    } else if (channel.startsWith(RedisKeys.LOAD_BALANCER_DELETED_NOTIFY_PREFIX.getKey())) {
-      kuvelServiceHandler.unregisterLoadBalancer(message);
+  @Override
+  public void onMessage(String channel, String message) {
+    Consumer<String> handler = routes.get(channel);
+    if (handler != null) {
+      workerPool.submit(LEADER_TASK_KEY, () -> handler.accept(message));
     }
   }
 }
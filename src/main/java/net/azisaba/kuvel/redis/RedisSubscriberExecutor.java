@@ -1,58 +1,59 @@
 package net.azisaba.kuvel.redis;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import lombok.Getter;
+import java.util.concurrent.TimeUnit;
 import lombok.RequiredArgsConstructor;
-import lombok.Setter;
-import net.azisaba.kuvel.Kuvel;
-import net.azisaba.kuvel.KuvelServiceHandler;
+import net.azisaba.kuvel.util.KeyedWorkerPool;
+import net.azisaba.kuvel.util.TaskScope;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPubSub;
 
 @RequiredArgsConstructor
 public class RedisSubscriberExecutor {
 
+  private static final long RESUBSCRIBE_DELAY_MILLIS = 3000;
+
   private final JedisPool jedisPool;
   private final String groupName;
-
-  @Getter @Setter private ExecutorService executorService = Executors.newFixedThreadPool(1);
-
+  private final TaskScope taskScope;
+
+  private volatile RedisSubscriber subscriber;
+
+  /**
+   * Subscribes the leader notifications and starts reading the registry change stream.
+   *
+   * @param redisConnectionLeader The leader of the group.
+   * @param changeFeedReader The reader of the change stream. The start position must be marked
+   *     before the registry was loaded.
+   * @param registrySynchronizer The synchronizer to apply the changes with.
+   * @param workerPool The worker pool to handle the notifications on.
+   */
   public void subscribe(
-      Kuvel plugin,
-      KuvelServiceHandler kuvelServiceHandler,
-      RedisConnectionLeader redisConnectionLeader) {
+      RedisConnectionLeader redisConnectionLeader,
+      RedisChangeFeedReader changeFeedReader,
+      RedisRegistrySynchronizer registrySynchronizer,
+      KeyedWorkerPool workerPool) {
 
-    JedisPubSub subscriber =
-        new RedisSubscriber(plugin, groupName, kuvelServiceHandler, redisConnectionLeader);
+    subscriber = new RedisSubscriber(groupName, redisConnectionLeader, workerPool);
+    changeFeedReader.start(registrySynchronizer::applyChange, registrySynchronizer::resynchronize);
+    registrySynchronizer.start();
 
-    Runnable task =
+    // the subscription blocks until the connection is lost, then it is made again after the delay
+    taskScope.repeat(
         () -> {
           try (Jedis jedis = jedisPool.getResource()) {
-            jedis.psubscribe(
-                subscriber, RedisKeys.NOTIFY_CHANNEL_PREFIX.getKey() + "*:" + groupName);
+            jedis.subscribe(subscriber, subscriber.getChannels());
           }
-        };
-
-    executorService.submit(getDelayRunnable(executorService, task));
+        },
+        RESUBSCRIBE_DELAY_MILLIS,
+        RESUBSCRIBE_DELAY_MILLIS,
+        TimeUnit.MILLISECONDS);
   }
 
-  private Runnable getDelayRunnable(ExecutorService executor, Runnable runnable) {
-    return () -> {
-      try {
-        Thread.sleep(3000);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-      }
-
-      try {
-        runnable.run();
-      } catch (Exception ex) {
-        ex.printStackTrace();
-      } finally {
-        executor.submit(getDelayRunnable(executor, runnable));
-      }
-    };
+  /** Unsubscribes the notifications and stops resubscribing. */
+  public void shutdown() {
+    taskScope.cancel();
+    if (subscriber != null && subscriber.isSubscribed()) {
+      subscriber.unsubscribe();
+    }
   }
 }
@@ -0,0 +1,166 @@
+package net.azisaba.kuvel.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import net.azisaba.kuvel.Kuvel;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Spreads the discovery of a proxy group across its live proxies. Every proxy sends a heartbeat
+ * to a sorted set in Redis with its {@link ProxyIdProvider} id, and the owner of a pod or
+ * ReplicaSet is chosen by rendezvous hashing of its uid over the live members. When a proxy joins
+ * or leaves, only the objects it owned or now owns move, and every proxy computes the same owners
+ * from the same member list without further coordination.
+ */
+@RequiredArgsConstructor
+public class ShardCoordinator {
+
+  private final Kuvel plugin;
+  private final JedisPool jedisPool;
+  private final String groupName;
+  private final String proxyId;
+
+  private final List<Runnable> rebalanceListeners = new CopyOnWriteArrayList<>();
+  private volatile List<String> members = Collections.emptyList();
+  private Future<?> heartbeatTask;
+
+  /** Joins the group and starts sending heartbeats. */
+  public void start() {
+    heartbeat();
+    long interval = plugin.getKuvelConfig().getLeaderRenewIntervalMillis();
+    heartbeatTask =
+        plugin
+            .getKuvelExecutor()
+            .getRootScope()
+            .repeat(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /** Leaves the group, so the other proxies take over the objects of this proxy right away. */
+  public void shutdown() {
+    if (heartbeatTask != null) {
+      heartbeatTask.cancel(true);
+    }
+    members = Collections.emptyList();
+
+    try (Jedis jedis = jedisPool.getResource()) {
+      jedis.zrem(getMembersKey(), proxyId);
+    } catch (JedisException e) {
+      plugin.getLogger().warn("Failed to leave the shard members", e);
+    }
+  }
+
+  /**
+   * Adds a listener which is called when the live members changed.
+   *
+   * @param listener The listener to add.
+   */
+  public void addRebalanceListener(Runnable listener) {
+    rebalanceListeners.add(listener);
+  }
+
+  public void removeRebalanceListener(Runnable listener) {
+    rebalanceListeners.remove(listener);
+  }
+
+  /**
+   * Returns whether this proxy is a live member, i.e. whether its heartbeat reached Redis recently
+   * enough for its registry writes to be accepted.
+   *
+   * @return true if this proxy is a live member.
+   */
+  public boolean isMember() {
+    return members.contains(proxyId);
+  }
+
+  /**
+   * Returns whether this proxy is responsible for the specified pod or ReplicaSet.
+   *
+   * @param uid The uid of the pod or ReplicaSet.
+   * @return true if this proxy owns the uid.
+   */
+  public boolean owns(String uid) {
+    List<String> currentMembers = members;
+    String owner = null;
+    long ownerScore = 0;
+    for (String member : currentMembers) {
+      long score = mix(((long) member.hashCode() << 32) ^ (uid.hashCode() & 0xFFFFFFFFL));
+      if (owner == null || score > ownerScore) {
+        owner = member;
+        ownerScore = score;
+      }
+    }
+    return proxyId.equals(owner);
+  }
+
+  /**
+   * Returns the token which authorizes the registry writes of this proxy. It carries the member
+   * timeout, so Redis rejects the writes once the last heartbeat of this proxy is too old.
+   *
+   * @return The fencing token of this member.
+   */
+  public String getWriteToken() {
+    return "m:" + plugin.getKuvelConfig().getLeaderLeaseMillis() + ":" + proxyId;
+  }
+
+  public List<String> getMembers() {
+    return members;
+  }
+
+  private void heartbeat() {
+    long memberTimeoutMillis = plugin.getKuvelConfig().getLeaderLeaseMillis();
+
+    List<String> liveMembers = new ArrayList<>();
+    try (Jedis jedis = jedisPool.getResource()) {
+      Object result =
+          RedisScripts.SHARD_HEARTBEAT.eval(
+              jedis,
+              List.of(getMembersKey()),
+              List.of(
+                  proxyId,
+                  String.valueOf(memberTimeoutMillis),
+                  String.valueOf(memberTimeoutMillis * 10)));
+      for (Object member : (List<?>) result) {
+        liveMembers.add(String.valueOf(member));
+      }
+    } catch (JedisException e) {
+      // the members are kept, the writes of this proxy are fenced anyway once it is removed
+      plugin.getLogger().warn("Failed to send the shard heartbeat", e);
+      return;
+    }
+
+    Collections.sort(liveMembers);
+    if (liveMembers.equals(members)) {
+      return;
+    }
+
+    members = Collections.unmodifiableList(liveMembers);
+    plugin
+        .getLogger()
+        .info("Shard members changed: " + liveMembers + ". Rebalancing the discovery.");
+    for (Runnable listener : rebalanceListeners) {
+      try {
+        listener.run();
+      } catch (Exception e) {
+        plugin.getLogger().error("Failed to rebalance the discovery", e);
+      }
+    }
+  }
+
+  private String getMembersKey() {
+    return RedisKeys.SHARD_MEMBERS_PREFIX.getKey() + groupName;
+  }
+
+  // the finalizer of SplitMix64, so similar inputs give unrelated scores
+  private static long mix(long value) {
+    value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+    value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+    return value ^ (value >>> 31);
+  }
+}
@@ -0,0 +1,46 @@
+package net.azisaba.kuvel.snapshot;
+
+import java.util.List;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The registered servers and load balancers of this proxy at a point in time, as persisted by
+ * {@link RegistrySnapshotStore}.
+ */
+@Getter
+@RequiredArgsConstructor
+public class RegistrySnapshot {
+
+  // identifies the registry the snapshot was taken of, e.g. the namespace and the discovery mode
+  private final String scope;
+  private final long createdAtMillis;
+  private final List<ServerEntry> servers;
+  private final List<LoadBalancerEntry> loadBalancers;
+
+  public boolean isEmpty() {
+    return servers.isEmpty() && loadBalancers.isEmpty();
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  public static class ServerEntry {
+
+    private final String name;
+    private final String podUid;
+    private final String host;
+    private final int port;
+    private final boolean initialServer;
+    // the uids of the ReplicaSets of the pod
+    private final List<String> ownerUids;
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  public static class LoadBalancerEntry {
+
+    private final String name;
+    private final String replicaSetUid;
+    private final boolean initialServer;
+  }
+}
@@ -0,0 +1,253 @@
+package net.azisaba.kuvel.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import net.azisaba.kuvel.Kuvel;
+import net.azisaba.kuvel.snapshot.RegistrySnapshot.LoadBalancerEntry;
+import net.azisaba.kuvel.snapshot.RegistrySnapshot.ServerEntry;
+
+/**
+ * Persists the registry of this proxy to the data directory, so a restarted proxy can route
+ * players with the last known registry while the discovery reconciles it in the background.
+ *
+ * <p>The file is a compact binary encoding with a CRC32 trailer. It is rewritten as a whole to a
+ * temporary file which is then moved over the previous one, so a crash never leaves a partially
+ * written snapshot behind. A snapshot is only written when the registry changed, or when the
+ * previous one is about to become too old to be loaded.
+ */
+public class RegistrySnapshotStore {
+
+  private static final String FILE_NAME = "registry-snapshot.bin";
+  private static final int MAGIC = 0x4B555653; // "KUVS"
+  private static final short VERSION = 1;
+
+  private final Kuvel plugin;
+  private final String scope;
+  private final Path file;
+  private final long maxAgeMillis;
+
+  private Future<?> writeTask;
+  private byte[] lastWrittenBody;
+  private long lastWrittenAt;
+
+  public RegistrySnapshotStore(Kuvel plugin, String scope) {
+    this.plugin = plugin;
+    this.scope = scope;
+    this.file = plugin.getDataDirectory().toPath().resolve(FILE_NAME);
+    this.maxAgeMillis =
+        TimeUnit.SECONDS.toMillis(plugin.getKuvelConfig().getRegistrySnapshotMaxAgeSeconds());
+  }
+
+  /**
+   * Loads the persisted snapshot.
+   *
+   * @return The snapshot, or null if there is none, or it is corrupt, too old or of another
+   *     registry.
+   */
+  @Nullable
+  public RegistrySnapshot load() {
+    if (!Files.exists(file)) {
+      return null;
+    }
+
+    RegistrySnapshot snapshot;
+    try {
+      snapshot = decode(Files.readAllBytes(file));
+    } catch (IOException e) {
+      plugin.getLogger().warn("Failed to load the registry snapshot. Ignoring it.", e);
+      return null;
+    }
+
+    if (snapshot == null) {
+      plugin.getLogger().warn("The registry snapshot is corrupt. Ignoring it.");
+      return null;
+    }
+    if (!snapshot.getScope().equals(scope)) {
+      plugin.getLogger().info("The registry snapshot is of another registry. Ignoring it.");
+      return null;
+    }
+    long age = System.currentTimeMillis() - snapshot.getCreatedAtMillis();
+    if (age > maxAgeMillis) {
+      plugin
+          .getLogger()
+          .info("The registry snapshot is " + age / 1000 + " seconds old. Ignoring it.");
+      return null;
+    }
+    return snapshot;
+  }
+
+  /** Starts writing the snapshot of the registry at the configured interval. */
+  public void runTask() {
+    long interval = plugin.getKuvelConfig().getRegistrySnapshotIntervalSeconds();
+    writeTask =
+        plugin
+            .getKuvelExecutor()
+            .getRootScope()
+            .repeat(this::writeIfChanged, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /** Stops the periodic writes and writes the snapshot one last time if they were started. */
+  public void shutdown() {
+    if (writeTask == null) {
+      return;
+    }
+    writeTask.cancel(false);
+    writeIfChanged();
+  }
+
+  private synchronized void writeIfChanged() {
+    RegistrySnapshot snapshot;
+    byte[] body;
+    try {
+      snapshot = plugin.getKuvelServiceHandler().createSnapshot(scope);
+      body = encodeBody(snapshot);
+    } catch (Exception e) {
+      plugin.getLogger().warn("Failed to take the registry snapshot", e);
+      return;
+    }
+
+    // rewritten before it expires even if unchanged, so a restart can still use it
+    boolean expiring = snapshot.getCreatedAtMillis() - lastWrittenAt > maxAgeMillis / 2;
+    if (!expiring && Arrays.equals(body, lastWrittenBody)) {
+      return;
+    }
+
+    try {
+      write(encode(snapshot, body));
+      lastWrittenBody = body;
+      lastWrittenAt = snapshot.getCreatedAtMillis();
+    } catch (IOException e) {
+      plugin.getLogger().warn("Failed to write the registry snapshot", e);
+    }
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path temporaryFile = file.resolveSibling(FILE_NAME + ".tmp");
+    Files.write(temporaryFile, bytes);
+    try {
+      Files.move(
+          temporaryFile,
+          file,
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private byte[] encode(RegistrySnapshot snapshot, byte[] body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeLong(snapshot.getCreatedAtMillis());
+    out.writeUTF(snapshot.getScope());
+    out.write(body);
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeLong(crc.getValue());
+    return bytes.toByteArray();
+  }
+
+  private byte[] encodeBody(RegistrySnapshot snapshot) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(snapshot.getServers().size());
+    for (ServerEntry server : snapshot.getServers()) {
+      out.writeUTF(server.getName());
+      out.writeUTF(server.getPodUid());
+      out.writeUTF(server.getHost());
+      out.writeInt(server.getPort());
+      out.writeBoolean(server.isInitialServer());
+      out.writeInt(server.getOwnerUids().size());
+      for (String ownerUid : server.getOwnerUids()) {
+        out.writeUTF(ownerUid);
+      }
+    }
+
+    out.writeInt(snapshot.getLoadBalancers().size());
+    for (LoadBalancerEntry loadBalancer : snapshot.getLoadBalancers()) {
+      out.writeUTF(loadBalancer.getName());
+      out.writeUTF(loadBalancer.getReplicaSetUid());
+      out.writeBoolean(loadBalancer.isInitialServer());
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a snapshot file.
+   *
+   * @param bytes The content of the file.
+   * @return The snapshot, or null if the file is not a valid snapshot.
+   */
+  @Nullable
+  private RegistrySnapshot decode(byte[] bytes) {
+    if (bytes.length < Long.BYTES) {
+      return null;
+    }
+
+    int contentLength = bytes.length - Long.BYTES;
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, contentLength);
+    if (ByteBuffer.wrap(bytes, contentLength, Long.BYTES).getLong() != crc.getValue()) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+        return null;
+      }
+      long createdAtMillis = in.readLong();
+      String snapshotScope = in.readUTF();
+
+      int serverCount = in.readInt();
+      List<ServerEntry> servers = new ArrayList<>(Math.max(0, Math.min(serverCount, 4096)));
+      for (int i = 0; i < serverCount; i++) {
+        String name = in.readUTF();
+        String podUid = in.readUTF();
+        String host = in.readUTF();
+        int port = in.readInt();
+        boolean initialServer = in.readBoolean();
+        int ownerCount = in.readInt();
+        List<String> ownerUids = new ArrayList<>(Math.max(0, Math.min(ownerCount, 16)));
+        for (int j = 0; j < ownerCount; j++) {
+          ownerUids.add(in.readUTF());
+        }
+        servers.add(new ServerEntry(name, podUid, host, port, initialServer, ownerUids));
+      }
+
+      int loadBalancerCount = in.readInt();
+      List<LoadBalancerEntry> loadBalancers =
+          new ArrayList<>(Math.max(0, Math.min(loadBalancerCount, 4096)));
+      for (int i = 0; i < loadBalancerCount; i++) {
+        loadBalancers.add(new LoadBalancerEntry(in.readUTF(), in.readUTF(), in.readBoolean()));
+      }
+
+      if (bytes.length - in.available() != contentLength) {
+        return null;
+      }
+      return new RegistrySnapshot(snapshotScope, createdAtMillis, servers, loadBalancers);
+    } catch (IOException e) {
+      // truncated
+      return null;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package net.azisaba.kuvel.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+
+/**
+ * Runs tasks on a fixed number of workers. Tasks with the same key always run on the same worker,
+ * so they run in the order they were submitted, while tasks with different keys may run in
+ * parallel. Each worker has a bounded queue. When it is full, submitting blocks until the worker
+ * catches up, so a slow consumer slows down the producer instead of using unbounded memory.
+ */
+public class KeyedWorkerPool {
+
+  private static final long FULL_QUEUE_WARN_INTERVAL_MILLIS = 10_000;
+
+  private final String name;
+  private final Logger logger;
+  private final List<BlockingQueue<Runnable>> queues;
+  private final List<Thread> workers = new ArrayList<>();
+
+  private final LongAdder blockedSubmitCount = new LongAdder();
+  private final AtomicLong lastFullQueueWarnAt = new AtomicLong();
+  private volatile boolean running = false;
+
+  public KeyedWorkerPool(String name, int workerCount, int queueCapacity, Logger logger) {
+    this.name = name;
+    this.logger = logger;
+    this.queues = new ArrayList<>(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      queues.add(new ArrayBlockingQueue<>(queueCapacity));
+    }
+  }
+
+  /** Starts the workers. */
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+
+    for (int i = 0; i < queues.size(); i++) {
+      BlockingQueue<Runnable> queue = queues.get(i);
+      Thread worker = new Thread(() -> runWorker(queue), name + "-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  /** Stops the workers. Queued tasks are discarded. */
+  public synchronized void shutdown() {
+    running = false;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    workers.clear();
+    for (BlockingQueue<Runnable> queue : queues) {
+      queue.clear();
+    }
+  }
+
+  /**
+   * Submits a task. Blocks while the queue of the worker for the key is full.
+   *
+   * @param key The key which decides the worker.
+   * @param task The task to run.
+   */
+  public void submit(String key, Runnable task) {
+    enqueue(queues.get(getWorkerIndex(key)), task);
+  }
+
+  /**
+   * Splits the entries by worker and submits one task per worker with the entries of its keys. The
+   * entries of a key are handled in the same order as single tasks with that key.
+   *
+   * @param entries The entries to handle.
+   * @param task The task to run with the entries of a worker.
+   * @param <V> The type of the values.
+   */
+  public <V> void submitAll(Map<String, V> entries, Consumer<Map<String, V>> task) {
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    List<Map<String, V>> partitions = new ArrayList<>(queues.size());
+    for (int i = 0; i < queues.size(); i++) {
+      partitions.add(null);
+    }
+    for (Map.Entry<String, V> entry : entries.entrySet()) {
+      int index = getWorkerIndex(entry.getKey());
+      if (partitions.get(index) == null) {
+        partitions.set(index, new LinkedHashMap<>());
+      }
+      partitions.get(index).put(entry.getKey(), entry.getValue());
+    }
+
+    for (int i = 0; i < partitions.size(); i++) {
+      Map<String, V> partition = partitions.get(i);
+      if (partition != null) {
+        enqueue(queues.get(i), () -> task.accept(partition));
+      }
+    }
+  }
+
+  /** Returns the number of tasks waiting in all queues. */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (BlockingQueue<Runnable> queue : queues) {
+      depth += queue.size();
+    }
+    return depth;
+  }
+
+  /** Returns the number of submits which had to wait for a full queue. */
+  public long getBlockedSubmitCount() {
+    return blockedSubmitCount.sum();
+  }
+
+  private int getWorkerIndex(String key) {
+    return Math.floorMod(key.hashCode(), queues.size());
+  }
+
+  private void enqueue(BlockingQueue<Runnable> queue, Runnable task) {
+    if (queue.offer(task)) {
+      return;
+    }
+
+    blockedSubmitCount.increment();
+    long now = System.currentTimeMillis();
+    long lastWarnAt = lastFullQueueWarnAt.get();
+    if (now - lastWarnAt >= FULL_QUEUE_WARN_INTERVAL_MILLIS
+        && lastFullQueueWarnAt.compareAndSet(lastWarnAt, now)) {
+      logger.warn(
+          "Worker queue of " + name + " is full (depth " + getQueueDepth() + "). Waiting.");
+    }
+
+    try {
+      queue.put(task);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warn("Interrupted while submitting a task to " + name + ". The task was dropped.");
+    }
+  }
+
+  private void runWorker(BlockingQueue<Runnable> queue) {
+    while (running) {
+      Runnable task;
+      try {
+        task = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      try {
+        task.run();
+      } catch (Exception e) {
+        logger.error("Failed to run a task on " + name, e);
+      }
+    }
+  }
+}
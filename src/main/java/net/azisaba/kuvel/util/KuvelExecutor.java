@@ -0,0 +1,128 @@
+package net.azisaba.kuvel.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.slf4j.Logger;
+
+/**
+ * Runs the blocking work of the plugin, e.g. the Kubernetes and Redis calls of the discovery, on
+ * threads of its own instead of the shared scheduler pool of Velocity. Tasks run on virtual
+ * threads on Java 21 or later, and on a bounded pool of platform threads otherwise. Delayed and
+ * repeating tasks are fired by a single timer thread which only hands them over to the workers.
+ *
+ * <p>Tasks are submitted through {@link TaskScope}s. Cancelling a scope cancels its tasks and its
+ * child scopes, so a component stops all of its work at once, e.g. the discovery on a leader
+ * change.
+ */
+public class KuvelExecutor {
+
+  private static final long PLATFORM_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  @Getter(AccessLevel.PACKAGE)
+  private final Logger logger;
+  @Getter(AccessLevel.PACKAGE)
+  private final ExecutorService workers;
+  @Getter(AccessLevel.PACKAGE)
+  private final ScheduledExecutorService timer;
+  @Getter private final boolean virtualThreads;
+  @Getter private final TaskScope rootScope;
+
+  /**
+   * Creates the executor.
+   *
+   * @param name The prefix of the thread names.
+   * @param preferVirtualThreads Whether to use virtual threads if the runtime supports them.
+   * @param maxPlatformThreads The maximum number of workers without virtual threads.
+   * @param logger The logger of the failed tasks.
+   */
+  public KuvelExecutor(
+      String name, boolean preferVirtualThreads, int maxPlatformThreads, Logger logger) {
+    this.logger = logger;
+
+    ExecutorService virtualThreadExecutor =
+        preferVirtualThreads ? createVirtualThreadExecutor(name + "-worker-") : null;
+    this.virtualThreads = virtualThreadExecutor != null;
+    if (virtualThreadExecutor != null) {
+      this.workers = virtualThreadExecutor;
+    } else {
+      ThreadPoolExecutor pool =
+          new ThreadPoolExecutor(
+              maxPlatformThreads,
+              maxPlatformThreads,
+              PLATFORM_THREAD_KEEP_ALIVE_SECONDS,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>(),
+              createDaemonThreadFactory(name + "-worker-"));
+      pool.allowCoreThreadTimeOut(true);
+      this.workers = pool;
+    }
+
+    ScheduledThreadPoolExecutor scheduler =
+        new ScheduledThreadPoolExecutor(1, createDaemonThreadFactory(name + "-timer-"));
+    scheduler.setRemoveOnCancelPolicy(true);
+    this.timer = scheduler;
+
+    this.rootScope = new TaskScope(this, name, null);
+  }
+
+  /**
+   * Creates a scope for the tasks of a component.
+   *
+   * @param name The name of the scope, used in the logs.
+   * @return The new scope.
+   */
+  public TaskScope newScope(String name) {
+    return rootScope.newScope(name);
+  }
+
+  /** Cancels all tasks and stops the threads. */
+  public void shutdown() {
+    rootScope.cancel();
+    timer.shutdownNow();
+    workers.shutdownNow();
+  }
+
+  /**
+   * Creates an executor which starts a virtual thread per task, which exists on Java 21 or later.
+   * It is looked up reflectively, since the plugin is compiled for Java 17.
+   *
+   * @param namePrefix The prefix of the thread names.
+   * @return The executor, or null if the runtime does not support virtual threads.
+   */
+  @Nullable
+  private static ExecutorService createVirtualThreadExecutor(String namePrefix) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService)
+          Executors.class
+              .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+              .invoke(null, factory);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      // Java 17, or virtual threads are a disabled preview feature
+      return null;
+    }
+  }
+
+  private static ThreadFactory createDaemonThreadFactory(String namePrefix) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + counter.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
@@ -2,8 +2,6 @@ package net.azisaba.kuvel.util;
 
 import java.util.Objects;
 import lombok.Data;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 
 @Data
 public class RedisConnectionData {
@@ -14,7 +12,10 @@ public class RedisConnectionData {
   private final String username;
   private final String password;
 
-  public RedisConnectionData(String hostname, int port, String username, String password) {
+  private final int database;
+
+  public RedisConnectionData(
+      String hostname, int port, String username, String password, int database) {
     if (Objects.equals(username, "")) {
       username = null;
     }
@@ -26,6 +27,11 @@ public class RedisConnectionData {
     this.port = port;
     this.username = username;
     this.password = password;
+    this.database = database;
+  }
+
+  public RedisConnectionData(String hostname, int port, String username, String password) {
+    this(hostname, port, username, password, 0);
   }
 
   public RedisConnectionData(String hostname, int port) {
@@ -35,17 +41,4 @@ public class RedisConnectionData {
   public RedisConnectionData(String hostname, int port, String password) {
     this(hostname, port, null, password);
   }
-
-  public JedisPool createJedisPool() {
-    if (username != null && password != null) {
-      return new JedisPool(hostname, port, username, password);
-    } else if (password != null) {
-      return new JedisPool(new JedisPoolConfig(), hostname, port, 3000, password);
-    } else if (username != null) {
-      throw new IllegalArgumentException(
-          "Redis password cannot be null if redis username is not null");
-    } else {
-      return new JedisPool(new JedisPoolConfig(), hostname, port);
-    }
-  }
 }
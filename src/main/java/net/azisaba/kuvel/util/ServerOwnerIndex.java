@@ -0,0 +1,84 @@
+package net.azisaba.kuvel.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes the registered servers by the uids of their owners, e.g. the ReplicaSets of the pods, in
+ * both directions. The endpoints of a load balancer are looked up by its ReplicaSet uid without
+ * listing the pods.
+ */
+public class ServerOwnerIndex {
+
+  private final ConcurrentHashMap<String, Set<String>> ownerUidToServerNames =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, List<String>> serverNameToOwnerUids =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Sets the owners of a server, replacing the previous ones.
+   *
+   * @param serverName The name of the server.
+   * @param ownerUids The uids of the owners.
+   */
+  public synchronized void put(String serverName, Collection<String> ownerUids) {
+    remove(serverName);
+
+    List<String> owners = List.copyOf(ownerUids);
+    serverNameToOwnerUids.put(serverName, owners);
+    for (String ownerUid : owners) {
+      ownerUidToServerNames
+          .computeIfAbsent(ownerUid, k -> ConcurrentHashMap.newKeySet())
+          .add(serverName);
+    }
+  }
+
+  /**
+   * Removes a server.
+   *
+   * @param serverName The name of the server.
+   * @return The uids of the owners of the removed server.
+   */
+  public synchronized List<String> remove(String serverName) {
+    List<String> owners = serverNameToOwnerUids.remove(serverName);
+    if (owners == null) {
+      return Collections.emptyList();
+    }
+
+    for (String ownerUid : owners) {
+      Set<String> serverNames = ownerUidToServerNames.get(ownerUid);
+      if (serverNames != null) {
+        serverNames.remove(serverName);
+        if (serverNames.isEmpty()) {
+          ownerUidToServerNames.remove(ownerUid);
+        }
+      }
+    }
+    return owners;
+  }
+
+  /**
+   * Gets the servers which are owned by the specified owner.
+   *
+   * @param ownerUid The uid of the owner.
+   * @return A copy of the names of the servers.
+   */
+  public Set<String> getServerNames(String ownerUid) {
+    Set<String> serverNames = ownerUidToServerNames.get(ownerUid);
+    return serverNames == null ? Collections.emptySet() : new HashSet<>(serverNames);
+  }
+
+  /**
+   * Gets the owners of the specified server.
+   *
+   * @param serverName The name of the server.
+   * @return The uids of the owners.
+   */
+  public List<String> getOwnerUids(String serverName) {
+    return serverNameToOwnerUids.getOrDefault(serverName, Collections.emptyList());
+  }
+}
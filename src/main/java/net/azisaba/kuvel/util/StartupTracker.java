@@ -0,0 +1,101 @@
+package net.azisaba.kuvel.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+
+/**
+ * Tracks the asynchronous startup of the plugin. It records how long each startup phase took and
+ * tells whether the first sync of the registry finished, so logins can wait for it.
+ */
+public class StartupTracker {
+
+  private final Logger logger;
+  private final long startedAt = System.nanoTime();
+  private final CompletableFuture<Void> ready = new CompletableFuture<>();
+  private volatile boolean serving = false;
+  // phase name -> elapsed millis, in the order the phases finished
+  private final LinkedHashMap<String, Long> phaseMillis = new LinkedHashMap<>();
+
+  public StartupTracker(Logger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * Runs a startup phase and records its duration.
+   *
+   * @param name The name of the phase.
+   * @param phase The phase to run.
+   */
+  public void phase(String name, Runnable phase) {
+    long start = System.nanoTime();
+    try {
+      phase.run();
+    } finally {
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      synchronized (phaseMillis) {
+        phaseMillis.put(name, elapsed);
+      }
+    }
+  }
+
+  /**
+   * Marks the startup as finished, which releases the waiting logins, and logs the phase timings.
+   *
+   * @param succeeded Whether the registry was synced. Logins are released in either case.
+   */
+  public void markReady(boolean succeeded) {
+    if (!ready.complete(null)) {
+      return;
+    }
+
+    StringBuilder timings = new StringBuilder();
+    synchronized (phaseMillis) {
+      for (Map.Entry<String, Long> entry : phaseMillis.entrySet()) {
+        if (timings.length() > 0) {
+          timings.append(", ");
+        }
+        timings.append(entry.getKey()).append(' ').append(entry.getValue()).append("ms");
+      }
+    }
+
+    long total = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    String message =
+        (succeeded ? "Startup finished in " : "Startup failed after ")
+            + total
+            + "ms ("
+            + timings
+            + ")";
+    if (succeeded) {
+      logger.info(message);
+    } else {
+      logger.warn(message);
+    }
+  }
+
+  public boolean isReady() {
+    return ready.isDone();
+  }
+
+  /** Marks that logins can be routed before the startup finished, e.g. from a restored registry. */
+  public void markServing() {
+    serving = true;
+  }
+
+  public boolean isServing() {
+    return serving || isReady();
+  }
+
+  /**
+   * Returns a future which completes when the startup finished or the timeout elapsed, whichever
+   * comes first.
+   *
+   * @param timeoutMillis The maximum time to wait.
+   * @return The future.
+   */
+  public CompletableFuture<Void> awaitReady(long timeoutMillis) {
+    return ready.copy().completeOnTimeout(null, timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,206 @@
+package net.azisaba.kuvel.util;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import lombok.Getter;
+
+/**
+ * A group of tasks on the {@link KuvelExecutor} which are cancelled together. Cancelling a scope
+ * interrupts its running tasks, drops its pending ones and cancels its child scopes. Tasks
+ * submitted after the scope was cancelled do not run.
+ */
+public class TaskScope implements Executor {
+
+  private final KuvelExecutor executor;
+  @Getter private final String name;
+  @Nullable private final TaskScope parent;
+
+  private final Set<Future<?>> tasks = ConcurrentHashMap.newKeySet();
+  private final Set<TaskScope> children = ConcurrentHashMap.newKeySet();
+  private volatile boolean cancelled = false;
+
+  TaskScope(KuvelExecutor executor, String name, @Nullable TaskScope parent) {
+    this.executor = executor;
+    this.name = name;
+    this.parent = parent;
+  }
+
+  /**
+   * Creates a child scope, which is cancelled with this scope.
+   *
+   * @param childName The name of the child scope.
+   * @return The child scope.
+   */
+  public TaskScope newScope(String childName) {
+    TaskScope child = new TaskScope(executor, name + "/" + childName, this);
+    children.add(child);
+    if (cancelled) {
+      child.cancel();
+    }
+    return child;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    submit(task);
+  }
+
+  /**
+   * Runs the task on a worker.
+   *
+   * @param task The task to run.
+   * @return The future of the task, which interrupts it when cancelled.
+   */
+  public Future<?> submit(Runnable task) {
+    ScopedTask scopedTask = track(new ScopedTask(task));
+    handOver(scopedTask);
+    return scopedTask;
+  }
+
+  /**
+   * Runs the task on a worker after the delay.
+   *
+   * @param task The task to run.
+   * @param delay The delay.
+   * @param unit The unit of the delay.
+   * @return The future of the task, which interrupts it when cancelled.
+   */
+  public Future<?> schedule(Runnable task, long delay, TimeUnit unit) {
+    ScopedTask scopedTask = track(new ScopedTask(task));
+    if (scopedTask.isDone()) {
+      return scopedTask;
+    }
+
+    try {
+      executor.getTimer().schedule(() -> handOver(scopedTask), delay, unit);
+    } catch (RejectedExecutionException e) {
+      scopedTask.cancel(false);
+    }
+    return scopedTask;
+  }
+
+  /**
+   * Runs the task repeatedly on a worker. The period is the delay between the end of a run and
+   * the start of the next, so a slow run never overlaps with the next one.
+   *
+   * @param task The task to run.
+   * @param initialDelay The delay of the first run.
+   * @param period The delay between the runs.
+   * @param unit The unit of the delays.
+   * @return The future of the repetition, which stops it and interrupts the current run when
+   *     cancelled.
+   */
+  public Future<?> repeat(Runnable task, long initialDelay, long period, TimeUnit unit) {
+    Repetition repetition = new Repetition();
+    tasks.add(repetition);
+    if (cancelled) {
+      repetition.cancel(true);
+      return repetition;
+    }
+
+    repetition.scheduleRun(task, initialDelay, period, unit);
+    return repetition;
+  }
+
+  /** Cancels the tasks and the child scopes of this scope. */
+  public void cancel() {
+    cancelled = true;
+    for (TaskScope child : children) {
+      child.cancel();
+    }
+    for (Future<?> task : tasks) {
+      task.cancel(true);
+    }
+    if (parent != null) {
+      parent.children.remove(this);
+    }
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  private ScopedTask track(ScopedTask task) {
+    tasks.add(task);
+    // checked after adding, so a concurrent cancel either sees the task or is seen here
+    if (cancelled) {
+      task.cancel(false);
+    }
+    return task;
+  }
+
+  private void handOver(ScopedTask task) {
+    if (task.isDone()) {
+      return;
+    }
+
+    try {
+      executor.getWorkers().execute(task);
+    } catch (RejectedExecutionException e) {
+      task.cancel(false);
+    }
+  }
+
+  private final class ScopedTask extends FutureTask<Void> {
+
+    private ScopedTask(Runnable task) {
+      super(
+          () -> {
+            try {
+              task.run();
+            } catch (Exception e) {
+              if (!cancelled) {
+                executor.getLogger().error("Failed to run a task of " + name, e);
+              }
+            }
+          },
+          null);
+    }
+
+    @Override
+    protected void done() {
+      tasks.remove(this);
+    }
+  }
+
+  private final class Repetition extends CompletableFuture<Void> {
+
+    private volatile Future<?> current;
+
+    private void scheduleRun(Runnable task, long delay, long period, TimeUnit unit) {
+      if (isDone()) {
+        return;
+      }
+
+      current =
+          schedule(
+              () -> {
+                try {
+                  task.run();
+                } finally {
+                  scheduleRun(task, period, period, unit);
+                }
+              },
+              delay,
+              unit);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean result = super.cancel(mayInterruptIfRunning);
+      Future<?> run = current;
+      if (run != null) {
+        run.cancel(mayInterruptIfRunning);
+      }
+      tasks.remove(this);
+      return result;
+    }
+  }
+}
@@ -2,33 +2,53 @@ package net.azisaba.kuvel.util;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A concurrent one-to-one map between uids and server names which is indexed in both directions.
+ * Lookups do not lock. Writes are serialized, so both directions always agree.
+ */
 public class UidAndServerNameMap {
 
-  private final HashMap<String, String> uidToServerName = new HashMap<>();
+  private final ConcurrentHashMap<String, String> uidToServerName = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> serverNameToUid = new ConcurrentHashMap<>();
 
   public String getServerNameFromUid(String podUid) {
     return uidToServerName.get(podUid);
   }
 
   public String getUidFromServerName(String serverName) {
-    for (String podUid : uidToServerName.keySet()) {
-      if (uidToServerName.get(podUid).equals(serverName)) {
-        return podUid;
-      }
-    }
-    return null;
+    return serverNameToUid.get(serverName);
   }
 
   public Map<String, String> getAllMap() {
     return new HashMap<>(uidToServerName);
   }
 
-  public void register(String uid, String serverName) {
-    uidToServerName.put(uid, serverName);
+  /**
+   * Maps the uid to the server name. A previous server name of the uid and a previous uid of the
+   * server name are unmapped.
+   *
+   * @param uid The uid.
+   * @param serverName The server name.
+   */
+  public synchronized void register(String uid, String serverName) {
+    String previousServerName = uidToServerName.put(uid, serverName);
+    if (previousServerName != null && !previousServerName.equals(serverName)) {
+      serverNameToUid.remove(previousServerName, uid);
+    }
+
+    String previousUid = serverNameToUid.put(serverName, uid);
+    if (previousUid != null && !previousUid.equals(uid)) {
+      uidToServerName.remove(previousUid, serverName);
+    }
   }
 
-  public String unregister(String uid) {
-    return uidToServerName.remove(uid);
+  public synchronized String unregister(String uid) {
+    String serverName = uidToServerName.remove(uid);
+    if (serverName != null) {
+      serverNameToUid.remove(serverName, uid);
+    }
+    return serverName;
   }
 }
@@ -0,0 +1,136 @@
+package net.azisaba.kuvel.election;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.fabric8.kubernetes.api.model.coordination.v1.Lease;
+import io.fabric8.kubernetes.api.model.coordination.v1.LeaseBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.EnableKubernetesMockClient;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import javax.annotation.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+@EnableKubernetesMockClient(crud = true)
+class KubernetesLeaseElectorTest {
+
+  private static final String NAMESPACE = "kuvel";
+  private static final String LEASE_NAME = "kuvel-leader-test";
+  private static final Duration LEASE_DURATION = Duration.ofSeconds(2);
+  private static final Duration RENEW_DEADLINE = Duration.ofMillis(1500);
+  private static final Duration RETRY_PERIOD = Duration.ofMillis(200);
+  private static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+  private KubernetesClient client;
+
+  private final List<KubernetesLeaseElector> electors = new ArrayList<>();
+
+  @AfterEach
+  void stopElectors() {
+    electors.forEach(KubernetesLeaseElector::stop);
+  }
+
+  @Test
+  void electsOneLeaderAndHandsOverOnStop() throws InterruptedException {
+    Candidate first = new Candidate("proxy-a");
+    Candidate second = new Candidate("proxy-b");
+    first.elector.start();
+    second.elector.start();
+
+    awaitUntil(() -> first.started.get() + second.started.get() > 0);
+    // both stay candidates for several lease durations, and still only one of them leads
+    Thread.sleep(LEASE_DURATION.multipliedBy(2).toMillis());
+    assertEquals(1, first.started.get() + second.started.get());
+
+    Candidate leader = first.started.get() == 1 ? first : second;
+    Candidate follower = leader == first ? second : first;
+    assertEquals(leader.identity, getHolderIdentity());
+
+    leader.elector.stop();
+    // released on stop, so the follower does not have to wait for the lease to expire
+    awaitUntil(() -> !leader.identity.equals(getHolderIdentity()));
+
+    awaitUntil(() -> follower.started.get() == 1);
+    assertEquals(follower.identity, getHolderIdentity());
+    assertEquals(1, leader.started.get());
+  }
+
+  @Test
+  void keepsCompetingAfterLosingTheLease() {
+    Candidate candidate = new Candidate("proxy-a");
+    candidate.elector.start();
+    awaitUntil(() -> candidate.started.get() == 1);
+
+    // another holder takes the Lease for longer than the renew deadline without renewing it, which
+    // ends the round of the candidate
+    client
+        .leases()
+        .inNamespace(NAMESPACE)
+        .withName(LEASE_NAME)
+        .edit(
+            lease ->
+                new LeaseBuilder(lease)
+                    .editSpec()
+                    .withHolderIdentity("proxy-x")
+                    .withLeaseDurationSeconds(3)
+                    .withRenewTime(ZonedDateTime.now())
+                    .endSpec()
+                    .build());
+    awaitUntil(() -> candidate.stopped.get() == 1);
+
+    // the next round acquires the Lease once the other holder let it expire
+    awaitUntil(() -> candidate.started.get() == 2);
+    assertEquals(candidate.identity, getHolderIdentity());
+  }
+
+  @Nullable
+  private String getHolderIdentity() {
+    Lease lease = client.leases().inNamespace(NAMESPACE).withName(LEASE_NAME).get();
+    return lease == null || lease.getSpec() == null ? null : lease.getSpec().getHolderIdentity();
+  }
+
+  private static void awaitUntil(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + TIMEOUT.toNanos();
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() - deadline < 0, "Timed out waiting for the condition");
+      try {
+        Thread.sleep(RETRY_PERIOD.toMillis() / 2);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private class Candidate {
+
+    private final String identity;
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger stopped = new AtomicInteger();
+    private final KubernetesLeaseElector elector;
+
+    private Candidate(String identity) {
+      this.identity = identity;
+      this.elector =
+          new KubernetesLeaseElector(
+              client,
+              NAMESPACE,
+              LEASE_NAME,
+              identity,
+              LEASE_DURATION,
+              RENEW_DEADLINE,
+              RETRY_PERIOD,
+              started::incrementAndGet,
+              stopped::incrementAndGet,
+              LoggerFactory.getLogger(KubernetesLeaseElectorTest.class));
+      electors.add(elector);
+    }
+  }
+}